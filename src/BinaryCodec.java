@@ -0,0 +1,474 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Codifica binaria compatta, negoziabile da ogni connessione al momento del login in alternativa a quella JSON.
+ *
+ *  Ogni messaggio inizia con il codice dell'operazione (1 byte) seguito da una maschera di bit (varint) che indica
+ *  quali campi dell'operazione sono presenti. I campi vengono poi scritti nell'ordine previsto dallo schema
+ *  dell'operazione: le stringhe sono in UTF-8 precedute dalla loro lunghezza, gli id e gli interi sono varint
+ *  (in codifica zigzag, in modo che anche i valori negativi occupino pochi byte) e i numeri decimali occupano 8 byte.
+ *  Infine, se l'operazione restituisce una lista di elementi, la lista viene scritta elemento per elemento.
+ *
+ */
+public class BinaryCodec implements WireCodec {
+    // Nome della codifica
+    public static final String NAME = "binary";
+    // Istanza condivisa: la codifica non ha stato
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    // Tipi dei campi
+    private static final char STRING = 'S';
+    private static final char LONG = 'L';
+    private static final char INT = 'I';
+    private static final char DOUBLE = 'D';
+
+    // Tipi delle liste di elementi
+    private static final int NO_ITEMS = 0;
+    private static final int POSTS = 1;
+    private static final int COMMENTS = 2;
+    private static final int TRANSACTIONS = 3;
+    private static final int NAMES = 4;
+    private static final int COMMON_TAGS = 5;
+
+    // Numero di codici operazione
+    private static final int N_OPS = 17;
+    // Schemi delle richieste, dei campi delle risposte e delle liste restituite da ogni operazione
+    private static final String[][] REQUEST_FIELDS = new String[N_OPS][];
+    private static final String[][] REPLY_FIELDS = new String[N_OPS][];
+    private static final int[] REPLY_ITEMS = new int[N_OPS];
+
+    static {
+        // Campi presenti in tutte le richieste e in tutte le risposte
+        String corrId = "corrId:L";
+        String op = "op:I";
+        String errCode = "errCode:I";
+        String errMsg = "errMsg:S";
+
+        for (int i=0; i<N_OPS; i++) {
+            REQUEST_FIELDS[i] = new String[] {op, corrId, "user:S"};
+            REPLY_FIELDS[i] = new String[] {corrId, errCode, errMsg};
+        }
+
+        REQUEST_FIELDS[OpCodes.LOGIN] = new String[] {op, corrId, "username:S", "password:S", "codec:S"};
+        REQUEST_FIELDS[OpCodes.LIST_USERS] = new String[] {op, corrId, "user:S", "limit:I", "after:S"};
+        REQUEST_FIELDS[OpCodes.FOLLOW] = new String[] {op, corrId, "user:S", "toFollow:S"};
+        REQUEST_FIELDS[OpCodes.UNFOLLOW] = new String[] {op, corrId, "user:S", "toUnfollow:S"};
+        REQUEST_FIELDS[OpCodes.CREATE_POST] = new String[] {op, corrId, "user:S", "postTitle:S", "postContent:S"};
+        REQUEST_FIELDS[OpCodes.SHOW_BLOG] = new String[] {op, corrId, "user:S", "limit:I", "before:L", "after:L"};
+        REQUEST_FIELDS[OpCodes.SHOW_FEED] = new String[] {op, corrId, "user:S", "limit:I", "before:L", "after:L"};
+        REQUEST_FIELDS[OpCodes.SHOW_POST] = new String[] {op, corrId, "user:S", "post:L"};
+        REQUEST_FIELDS[OpCodes.RATE_POST] = new String[] {op, corrId, "user:S", "post:L", "value:I"};
+        REQUEST_FIELDS[OpCodes.COMMENT_POST] = new String[] {op, corrId, "user:S", "post:L", "comment:S"};
+        REQUEST_FIELDS[OpCodes.DELETE_POST] = new String[] {op, corrId, "user:S", "post:L"};
+        REQUEST_FIELDS[OpCodes.REWIN_POST] = new String[] {op, corrId, "user:S", "post:L"};
+        REQUEST_FIELDS[OpCodes.WALLET] = new String[] {op, corrId, "user:S", "limit:I", "before:L"};
+
+        REPLY_FIELDS[OpCodes.LOGIN] = new String[] {corrId, errCode, errMsg, "mcAddress:S", "mcPort:I", "codec:S"};
+        REPLY_FIELDS[OpCodes.LIST_USERS] = new String[] {corrId, errCode, errMsg, "next:S"};
+        REPLY_FIELDS[OpCodes.SHOW_BLOG] = new String[] {corrId, errCode, errMsg, "next:L"};
+        REPLY_FIELDS[OpCodes.SHOW_FEED] = new String[] {corrId, errCode, errMsg, "next:L"};
+        REPLY_FIELDS[OpCodes.SHOW_POST] = new String[] {corrId, errCode, errMsg, "title:S", "content:S",
+                "nUpvotes:I", "nDownvotes:I"};
+        REPLY_FIELDS[OpCodes.WALLET] = new String[] {corrId, errCode, errMsg, "amount:D", "next:L"};
+        REPLY_FIELDS[OpCodes.WALLET_BTC] = new String[] {corrId, errCode, errMsg, "btc:D"};
+
+        REPLY_ITEMS[OpCodes.LIST_USERS] = COMMON_TAGS;
+        REPLY_ITEMS[OpCodes.LIST_FOLLOWING] = NAMES;
+        REPLY_ITEMS[OpCodes.SHOW_BLOG] = POSTS;
+        REPLY_ITEMS[OpCodes.SHOW_FEED] = POSTS;
+        REPLY_ITEMS[OpCodes.SHOW_POST] = COMMENTS;
+        REPLY_ITEMS[OpCodes.WALLET] = TRANSACTIONS;
+    }
+
+    private BinaryCodec() {}
+
+    @Override
+    public ByteBuffer encodeRequest(JSONObject request) {
+        int op = request.getInt("op");
+        Writer out = new Writer();
+
+        out.writeByte(op);
+        writeFields(out, REQUEST_FIELDS[op], request);
+
+        return out.toFrame();
+    }
+
+    @Override
+    public JSONObject decodeRequest(byte[] frame) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            int op = checkOp(in.get());
+
+            return readFields(in, REQUEST_FIELDS[op]);
+        }
+        catch (BufferUnderflowException e) {
+            throw new ProtocolException("Richiesta binaria troncata");
+        }
+    }
+
+    @Override
+    public ByteBuffer encodeReply(int op, JSONObject reply, Object items) {
+        Writer out = new Writer();
+
+        out.writeByte(op);
+        writeFields(out, REPLY_FIELDS[op], reply);
+
+        // Scrittura della lista di elementi, preceduta da un byte che ne indica la presenza
+        if (REPLY_ITEMS[op] != NO_ITEMS) {
+            out.writeByte(items == null ? 0 : 1);
+            if (items != null)
+                writeItems(out, REPLY_ITEMS[op], items);
+        }
+
+        return out.toFrame();
+    }
+
+    @Override
+    public ServerReply decodeReply(byte[] frame) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            int op = checkOp(in.get());
+            JSONObject fields = readFields(in, REPLY_FIELDS[op]);
+            Object items = null;
+
+            if (REPLY_ITEMS[op] != NO_ITEMS && in.get() != 0)
+                items = readItems(in, REPLY_ITEMS[op]);
+
+            return new ServerReply(fields, items);
+        }
+        catch (BufferUnderflowException e) {
+            throw new ProtocolException("Risposta binaria troncata");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /** Verifica che un codice operazione sia valido
+     *
+     * @param op Codice operazione letto dal messaggio
+     * @return Il codice stesso
+     * @throws ProtocolException Se il codice non corrisponde a nessuna operazione
+     */
+    private static int checkOp(int op) throws ProtocolException {
+        if (op <= 0 || op >= N_OPS)
+            throw new ProtocolException("Codice operazione non valido: " + op);
+        return op;
+    }
+
+    /** Scrive i campi di un oggetto secondo lo schema passato come parametro: prima la maschera dei campi presenti,
+     *  poi i valori dei campi presenti
+     *
+     * @param out Destinazione dei byte
+     * @param schema Schema dei campi, nella forma nome:tipo
+     * @param obj Oggetto da cui leggere i valori
+     */
+    private static void writeFields(Writer out, String[] schema, JSONObject obj) {
+        long mask = 0;
+        for (int i=0; i<schema.length; i++) {
+            if (obj.has(fieldName(schema[i])))
+                mask |= 1L << i;
+        }
+        out.writeVarLong(mask);
+
+        for (int i=0; i<schema.length; i++) {
+            if ((mask & (1L << i)) == 0)
+                continue;
+
+            String name = fieldName(schema[i]);
+            switch (fieldType(schema[i])) {
+                case STRING:
+                    out.writeString(String.valueOf(obj.get(name)));
+                    break;
+                case LONG:
+                    out.writeVarLong(zigzag(obj.getLong(name)));
+                    break;
+                case INT:
+                    out.writeVarLong(zigzag(obj.getInt(name)));
+                    break;
+                case DOUBLE:
+                    out.writeDouble(obj.getDouble(name));
+                    break;
+            }
+        }
+    }
+
+    /** Legge i campi di un oggetto secondo lo schema passato come parametro
+     *
+     * @param in Buffer da cui leggere
+     * @param schema Schema dei campi, nella forma nome:tipo
+     * @return L'oggetto contenente i campi letti
+     */
+    private static JSONObject readFields(ByteBuffer in, String[] schema) {
+        JSONObject ret = new JSONObject();
+        long mask = readVarLong(in);
+
+        for (int i=0; i<schema.length; i++) {
+            if ((mask & (1L << i)) == 0)
+                continue;
+
+            String name = fieldName(schema[i]);
+            switch (fieldType(schema[i])) {
+                case STRING:
+                    ret.put(name, readString(in));
+                    break;
+                case LONG:
+                    ret.put(name, unzigzag(readVarLong(in)));
+                    break;
+                case INT:
+                    ret.put(name, (int) unzigzag(readVarLong(in)));
+                    break;
+                case DOUBLE:
+                    ret.put(name, in.getDouble());
+                    break;
+            }
+        }
+
+        return ret;
+    }
+
+    /** Scrive una lista di elementi del tipo specificato
+     *
+     * @param out Destinazione dei byte
+     * @param type Tipo degli elementi
+     * @param items Lista da scrivere
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeItems(Writer out, int type, Object items) {
+        if (type == COMMON_TAGS) {
+            Map<String, String[]> users = (Map<String, String[]>) items;
+            out.writeVarLong(users.size());
+            for (Map.Entry<String, String[]> entry : users.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeVarLong(entry.getValue().length);
+                for (String tag : entry.getValue())
+                    out.writeString(tag);
+            }
+            return;
+        }
+
+        Collection<?> list = (Collection<?>) items;
+        out.writeVarLong(list.size());
+
+        for (Object item : list) {
+            switch (type) {
+                case POSTS: {
+                    Post p = (Post) item;
+                    out.writeVarLong(p.getId());
+                    out.writeString(p.getTitle());
+                    out.writeString(p.getContent());
+                    out.writeString(p.getAuthor());
+                    out.writeString(p.getRewinner());
+                    out.writeLong(p.getTimestamp());
+                    out.writeByte(p.isRewin() ? 1 : 0);
+                    out.writeVarLong(p.getRewardAmount());
+                    out.writeVarLong(p.getOriginalId());
+                }
+                break;
+                case COMMENTS: {
+                    Comment c = (Comment) item;
+                    out.writeString(c.getUser());
+                    out.writeString(c.getContent());
+                    out.writeLong(c.getTimestamp());
+                }
+                break;
+                case TRANSACTIONS: {
+                    Transaction t = (Transaction) item;
+                    out.writeLong(t.getTimestamp());
+                    out.writeDouble(t.getAmount());
+                    out.writeString(t.getCausal());
+                    out.writeVarLong(t.getPost() == null ? 0 : t.getPost() + 1);
+                }
+                break;
+                case NAMES:
+                    out.writeString((String) item);
+                    break;
+            }
+        }
+    }
+
+    /** Legge una lista di elementi del tipo specificato
+     *
+     * @param in Buffer da cui leggere
+     * @param type Tipo degli elementi
+     * @return La lista letta
+     */
+    private static Object readItems(ByteBuffer in, int type) {
+        int size = (int) readVarLong(in);
+
+        if (type == COMMON_TAGS) {
+            LinkedHashMap<String, String[]> users = new LinkedHashMap<>();
+            for (int i=0; i<size; i++) {
+                String name = readString(in);
+                String[] tags = new String[(int) readVarLong(in)];
+                for (int j=0; j<tags.length; j++)
+                    tags[j] = readString(in);
+                users.put(name, tags);
+            }
+            return users;
+        }
+
+        List<Object> ret = new ArrayList<>(size);
+        for (int i=0; i<size; i++) {
+            switch (type) {
+                case POSTS: {
+                    long id = readVarLong(in);
+                    String title = readString(in);
+                    String content = readString(in);
+                    String author = readString(in);
+                    String rewinner = readString(in);
+                    long timestamp = in.getLong();
+                    boolean rewin = in.get() != 0;
+                    int rewardAmount = (int) readVarLong(in);
+                    long originalId = readVarLong(in);
+                    ret.add(new Post(id, title, content, author, timestamp, rewin, rewinner, rewardAmount,
+                            originalId));
+                }
+                break;
+                case COMMENTS: {
+                    String user = readString(in);
+                    String content = readString(in);
+                    ret.add(new Comment(user, content, in.getLong()));
+                }
+                break;
+                case TRANSACTIONS: {
+                    long timestamp = in.getLong();
+                    double amount = in.getDouble();
+                    String causal = readString(in);
+                    long post = readVarLong(in);
+                    ret.add(new Transaction(causal, amount, post == 0 ? null : post - 1, timestamp));
+                }
+                break;
+                case NAMES:
+                    ret.add(readString(in));
+                    break;
+            }
+        }
+
+        return ret;
+    }
+
+    // Utility per la gestione dello schema
+    private static String fieldName(String field) {
+        return field.substring(0, field.length() - 2);
+    }
+    private static char fieldType(String field) {
+        return field.charAt(field.length() - 1);
+    }
+
+    // Codifica zigzag: i valori di modulo piccolo (anche negativi) vengono trasformati in valori positivi piccoli
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Legge un varint: ogni byte contiene 7 bit del valore, mentre il bit più significativo indica se il valore
+     *  continua nel byte successivo
+     *
+     * @param in Buffer da cui leggere
+     * @return Il valore letto
+     */
+    static long readVarLong(ByteBuffer in) {
+        long ret = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = in.get();
+            ret |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+
+        return ret;
+    }
+
+    /** Legge una stringa UTF-8 preceduta dalla sua lunghezza
+     *
+     * @param in Buffer da cui leggere
+     * @return La stringa letta
+     */
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        if (length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+
+        String ret = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return ret;
+    }
+
+    /** Buffer di scrittura che si ingrandisce automaticamente. I primi 4 byte sono riservati alla dimensione del
+     *  messaggio, in modo da non dover copiare il contenuto al momento dell'invio. Usato anche per i record degli
+     *  snapshot binari (vedi BinarySnapshot).
+     *
+     */
+    static class Writer {
+        private byte[] data;
+        private int size;
+
+        Writer() {
+            data = new byte[256];
+            size = 4;
+        }
+
+        /** Svuota il buffer per riutilizzarlo con un nuovo messaggio
+         *
+         */
+        void reset() {
+            size = 4;
+        }
+
+        private void ensure(int more) {
+            if (size + more > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + more));
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int i=7; i>=0; i--)
+                data[size++] = (byte) (value >>> (i * 8));
+        }
+
+        void writeDouble(double value) {
+            writeLong(Double.doubleToLongBits(value));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        ByteBuffer toFrame() {
+            ByteBuffer ret = ByteBuffer.wrap(data, 0, size);
+            ret.putInt(0, size - 4);
+            return ret;
+        }
+    }
+}
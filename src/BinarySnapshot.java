@@ -0,0 +1,681 @@
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Formato binario degli snapshot, alternativo a quello json.
+ *
+ *  Il file inizia con un'intestazione a dimensione fissa (identificativo del formato, versione, primo segmento del
+ *  log delle modifiche e prossima sequenza degli id dei post), seguita dalle sezioni. Ogni sezione è una sequenza di
+ *  record, ognuno preceduto dalla sua lunghezza in 4 byte, ed è suddivisa in blocchi di al più BLOCK_RECORDS record.
+ *  L'indice dei blocchi (sezione, posizione, lunghezza e numero di record di ogni blocco) viene scritto dopo le
+ *  sezioni, dal momento che la loro dimensione è nota solo una volta scritte, e la sua posizione occupa gli ultimi
+ *  8 byte del contenuto. I valori all'interno dei record usano la stessa codifica dei messaggi binari (vedi
+ *  BinaryCodec); gli utenti a cui fanno riferimento post, voti, commenti e relazioni sono indicati con gli id del
+ *  dizionario, che viene caricato per primo.
+ *
+ *  Il caricamento mappa in memoria ogni blocco e decodifica tutti i blocchi in parallelo, senza passare per una
+ *  rappresentazione intermedia: le colonne dei registri delle transazioni vengono copiate in blocco dalla memoria
+ *  mappata. Il riepilogo dei voti non viene salvato, ma ricostruito dai voti al caricamento.
+ *
+ *  Un nuovo snapshot può essere scritto a partire dal precedente: le sezioni non modificate nel frattempo vengono
+ *  copiate dal file precedente così come sono, senza visitare le strutture dati del server, e solo le sezioni
+ *  modificate vengono serializzate di nuovo. Ogni snapshot resta comunque un file completo e indipendente.
+ *
+ */
+public class BinarySnapshot {
+    // Identificativo del formato, all'inizio del file ("WSNP")
+    private static final int MAGIC = 0x57534E50;
+    // Versione del formato
+    private static final int VERSION = 1;
+    // Dimensione dell'intestazione
+    private static final int HEADER_SIZE = 24;
+    // Numero massimo di record di un blocco
+    private static final int BLOCK_RECORDS = 1 << 16;
+    // Dimensione oltre la quale un blocco viene chiuso anche se non ha raggiunto il numero massimo di record
+    private static final int BLOCK_BYTES = 1 << 26;
+
+    // Sezioni
+    private static final byte USER_IDS = 0;
+    private static final byte USERS = 1;
+    private static final byte FOLLOWING = 2;
+    private static final byte POSTS = 3;
+    private static final byte VOTES = 4;
+    private static final byte COMMENTS = 5;
+    private static final byte REWINS = 6;
+    private static final byte USER_REWINS = 7;
+    private static final byte REWARD_DELTAS = 8;
+    private static final int N_SECTIONS = 9;
+    // Sezione dello stato del server a cui corrisponde ogni sezione del file, usata per riconoscere le sezioni non
+    // modificate dallo snapshot precedente
+    private static final ChangeTracker.Section[] TRACKED = {ChangeTracker.Section.USERS,
+            ChangeTracker.Section.USERS, ChangeTracker.Section.FOLLOWS, ChangeTracker.Section.POSTS,
+            ChangeTracker.Section.VOTES, ChangeTracker.Section.COMMENTS, ChangeTracker.Section.REWINS,
+            ChangeTracker.Section.REWINS, ChangeTracker.Section.REWARDS};
+
+    /** Blocco di una sezione, come registrato nell'indice
+     *
+     */
+    private static class Block {
+        private final byte section;
+        private final long offset;
+        private final int length;
+        private final int records;
+
+        Block(byte section, long offset, int length, int records) {
+            this.section = section;
+            this.offset = offset;
+            this.length = length;
+            this.records = records;
+        }
+    }
+
+    /** Verifica se un file è uno snapshot binario, controllandone l'identificativo
+     *
+     * @param fileName Nome del file
+     * @return true se il file è uno snapshot binario, false altrimenti
+     * @throws IOException In caso di errore di lettura
+     */
+    public static boolean isBinary(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /** Scrive lo snapshot binario del server. Come per lo snapshot json, il server non deve essere modificato
+     *  durante la scrittura.
+     *
+     * @param server Server da salvare
+     * @param stream Stream su cui scrivere lo snapshot
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di scrittura
+     */
+    public static void write(WinsomeServerMain server, OutputStream stream, long segment) throws IOException {
+        write(server, stream, segment, null, EnumSet.allOf(ChangeTracker.Section.class));
+    }
+
+    /** Scrive lo snapshot binario del server a partire dallo snapshot precedente, da cui vengono copiate le sezioni
+     *  non modificate
+     *
+     * @param server Server da salvare
+     * @param stream Stream su cui scrivere lo snapshot
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @param previous Snapshot binario precedente, null per serializzare tutte le sezioni
+     * @param dirty Sezioni modificate dopo lo snapshot precedente
+     * @throws IOException In caso di errore di scrittura o di lettura dello snapshot precedente
+     */
+    public static void write(WinsomeServerMain server, OutputStream stream, long segment, Path previous,
+                             Set<ChangeTracker.Section> dirty) throws IOException {
+        try (FileChannel channel = previous == null ? null : FileChannel.open(previous, StandardOpenOption.READ)) {
+            SectionWriter out = new SectionWriter(stream, channel,
+                    channel == null ? Collections.emptyList() : readIndex(channel), dirty);
+            writeSections(server, out, segment);
+        }
+    }
+
+    /** Scrive l'intestazione e le sezioni dello snapshot, copiando dallo snapshot precedente quelle non modificate
+     *
+     * @param server Server da salvare
+     * @param out Writer delle sezioni
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di scrittura
+     */
+    private static void writeSections(WinsomeServerMain server, SectionWriter out, long segment) throws IOException {
+        UserIds userIds = server.getUserIds();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(segment).putLong(server.getPostIds().getNextSequence());
+        out.writeRaw(header.array());
+
+        // Portafogli degli utenti e stato dei calcoli delle ricompense vengono salvati insieme, senza calcoli
+        // completati a metà
+        synchronized (server.getRewardDeltas()) {
+            if (out.begin(USERS)) {
+                for (User user : server.getUsers().values()) {
+                    BinaryCodec.Writer record = out.record();
+                    record.writeString(user.getUsername());
+                    record.writeString(user.getPassword());
+                    record.writeVarLong(user.getTags().length);
+                    for (String tag : user.getTags())
+                        record.writeString(tag);
+                    synchronized (user) {
+                        record.writeDouble(user.getWallet());
+                        user.getLedger().write(record);
+                    }
+                    out.end();
+                }
+            }
+
+            if (out.begin(REWARD_DELTAS)) {
+                out.record().writeString(new Gson().toJson(server.getRewardDeltas(), RewardDeltas.class));
+                out.end();
+            }
+        }
+
+        if (out.begin(FOLLOWING)) {
+            FollowGraph graph = server.getFollowGraph();
+            for (int user : graph.getFollowingUsers()) {
+                int[] followed = graph.getFollowingIds(user);
+                if (followed.length == 0)
+                    continue;
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(user);
+                record.writeVarLong(followed.length);
+                for (int id : followed)
+                    record.writeVarLong(id);
+                out.end();
+            }
+        }
+
+        if (out.begin(POSTS)) {
+            for (Post p : server.getPosts().values()) {
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(p.getId());
+                record.writeString(p.getTitle());
+                record.writeString(p.getContent());
+                record.writeVarLong(userIds.intern(p.getAuthor()));
+                record.writeVarLong(p.getTimestamp());
+                record.writeByte(p.isRewin() ? 1 : 0);
+                record.writeVarLong(p.isRewin() ? userIds.intern(p.getRewinner()) : 0);
+                record.writeVarLong(p.getRewardAmount());
+                record.writeVarLong(p.getRewardCycle());
+                record.writeVarLong(p.getOriginalId());
+                out.end();
+            }
+        }
+
+        if (out.begin(VOTES)) {
+            for (Map.Entry<Long, Vector<Vote>> entry : server.getVotes().entrySet()) {
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(entry.getKey());
+                synchronized (entry.getValue()) {
+                    record.writeVarLong(entry.getValue().size());
+                    for (Vote v : entry.getValue()) {
+                        record.writeVarLong(userIds.intern(v.getUser()));
+                        record.writeVarLong(BinaryCodec.zigzag(v.getValue()));
+                        record.writeVarLong(v.getTimestamp());
+                    }
+                }
+                out.end();
+            }
+        }
+
+        if (out.begin(COMMENTS)) {
+            for (Map.Entry<Long, Vector<Comment>> entry : server.getComments().entrySet()) {
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(entry.getKey());
+                synchronized (entry.getValue()) {
+                    record.writeVarLong(entry.getValue().size());
+                    for (Comment c : entry.getValue()) {
+                        record.writeVarLong(userIds.intern(c.getUser()));
+                        record.writeString(c.getContent());
+                        record.writeVarLong(c.getTimestamp());
+                    }
+                }
+                out.end();
+            }
+        }
+
+        if (out.begin(REWINS)) {
+            for (Map.Entry<Long, Vector<Long>> entry : server.getRewins().entrySet()) {
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(entry.getKey());
+                synchronized (entry.getValue()) {
+                    record.writeVarLong(entry.getValue().size());
+                    for (long id : entry.getValue())
+                        record.writeVarLong(id);
+                }
+                out.end();
+            }
+        }
+
+        if (out.begin(USER_REWINS)) {
+            for (Map.Entry<String, ConcurrentHashMap<Long, Long>> entry : server.getUserRewins().entrySet()) {
+                BinaryCodec.Writer record = out.record();
+                record.writeVarLong(userIds.intern(entry.getKey()));
+                List<Map.Entry<Long, Long>> rewins = new ArrayList<>(entry.getValue().entrySet());
+                record.writeVarLong(rewins.size());
+                for (Map.Entry<Long, Long> rewin : rewins) {
+                    record.writeVarLong(rewin.getKey());
+                    record.writeVarLong(rewin.getValue());
+                }
+                out.end();
+            }
+        }
+
+        // Il dizionario viene scritto per ultimo, perché le sezioni precedenti possono avervi registrato utenti. Il
+        // dizionario cresce soltanto, per cui è invariato se ha ancora lo stesso numero di utenti
+        if (out.begin(USER_IDS, userIds.size())) {
+            for (int i=0, n=userIds.size(); i<n; i++) {
+                out.record().writeString(userIds.getName(i));
+                out.end();
+            }
+        }
+
+        out.finish();
+    }
+
+    /** Carica il server da uno snapshot binario
+     *
+     * @param fileName Nome del file contenente lo snapshot
+     * @param toLoad Server da caricare
+     * @return Il primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di lettura del file
+     * @throws IllegalStateException Se il file non è uno snapshot binario valido
+     */
+    public static long load(String fileName, WinsomeServerMain toLoad) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IllegalStateException("Formato dello snapshot non riconosciuto");
+            long segment = header.getLong();
+            long nextPostSequence = header.getLong();
+
+            List<Block> blocks = readIndex(channel);
+            int[] counts = new int[N_SECTIONS];
+            for (Block b : blocks)
+                counts[b.section] += b.records;
+
+            new Loader(toLoad, channel, counts).load(blocks);
+            toLoad.getPostIds().ensureNextSequence(nextPostSequence);
+            return segment;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalStateException("Snapshot binario corrotto", e);
+        }
+    }
+
+    /** Legge l'indice dei blocchi di uno snapshot
+     *
+     * @param channel Canale del file dello snapshot
+     * @return I blocchi dello snapshot, in ordine di posizione
+     * @throws IOException In caso di errore di lettura
+     */
+    private static List<Block> readIndex(FileChannel channel) throws IOException {
+        long length = ServerPersistence.contentLength(channel);
+        ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, length - 8, 8);
+        long indexOffset = footer.getLong();
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, length - 8 - indexOffset);
+
+        int nBlocks = index.getInt();
+        List<Block> blocks = new ArrayList<>(nBlocks);
+        for (int i=0; i<nBlocks; i++) {
+            Block b = new Block(index.get(), index.getLong(), index.getInt(), index.getInt());
+            if (b.section < 0 || b.section >= N_SECTIONS)
+                throw new IllegalStateException("Sezione sconosciuta nello snapshot: " + b.section);
+            blocks.add(b);
+        }
+        return blocks;
+    }
+
+    /** Decodifica dei blocchi di uno snapshot nelle strutture dati del server
+     *
+     */
+    private static class Loader {
+        private final WinsomeServerMain server;
+        private final FileChannel channel;
+        private final UserIds userIds;
+
+        private final ConcurrentHashMap<String, User> users;
+        private final ConcurrentHashMap<Long, Post> posts;
+        private final ConcurrentHashMap<Long, Vector<Vote>> votes;
+        private final ConcurrentHashMap<Long, Vector<Comment>> comments;
+        private final ConcurrentHashMap<Long, Vector<Long>> rewins;
+        private final ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> userRewins;
+
+        Loader(WinsomeServerMain server, FileChannel channel, int[] counts) {
+            this.server = server;
+            this.channel = channel;
+            this.userIds = server.getUserIds();
+            // Le strutture dati vengono create già dimensionate con il numero di record di ogni sezione
+            users = new ConcurrentHashMap<>(Math.max(16, counts[USERS]));
+            posts = new ConcurrentHashMap<>(Math.max(16, counts[POSTS]));
+            votes = new ConcurrentHashMap<>(Math.max(16, counts[VOTES]));
+            comments = new ConcurrentHashMap<>(Math.max(16, counts[COMMENTS]));
+            rewins = new ConcurrentHashMap<>(Math.max(16, counts[REWINS]));
+            userRewins = new ConcurrentHashMap<>(Math.max(16, counts[USER_REWINS]));
+        }
+
+        /** Carica i blocchi: prima il dizionario degli utenti, in ordine, poi tutti gli altri in parallelo
+         *
+         * @param blocks Blocchi dello snapshot
+         * @throws IOException In caso di errore di lettura
+         */
+        void load(List<Block> blocks) throws IOException {
+            List<String> names = new ArrayList<>();
+            for (Block b : blocks) {
+                if (b.section != USER_IDS)
+                    continue;
+                ByteBuffer in = map(b);
+                for (int i=0; i<b.records; i++)
+                    names.add(readString(record(in)));
+            }
+            userIds.load(names);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (Block b : blocks) {
+                    if (b.section != USER_IDS)
+                        tasks.add(pool.submit(() -> {
+                            decode(b);
+                            return null;
+                        }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Caricamento interrotto");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IllegalStateException("Snapshot binario corrotto", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+
+            server.setUsers(users);
+            server.setPosts(posts);
+            server.setVotes(votes);
+            server.setComments(comments);
+            server.setRewins(rewins);
+            server.setUserRewins(userRewins);
+        }
+
+        /** Decodifica i record di un blocco
+         *
+         * @param b Blocco da decodificare
+         * @throws IOException In caso di errore di lettura
+         */
+        private void decode(Block b) throws IOException {
+            ByteBuffer block = map(b);
+
+            for (int i=0; i<b.records; i++) {
+                ByteBuffer in = record(block);
+                switch (b.section) {
+                    case USERS: {
+                        String username = userIds.canonical(readString(in));
+                        String password = readString(in);
+                        String[] tags = new String[(int) BinaryCodec.readVarLong(in)];
+                        for (int t=0; t<tags.length; t++)
+                            tags[t] = readString(in);
+                        double wallet = in.getDouble();
+                        users.put(username, new User(username, password, tags, wallet, Ledger.read(in)));
+                        break;
+                    }
+                    case REWARD_DELTAS:
+                        server.setRewardDeltas(ServerPersistence.loadingGson(userIds).fromJson(readString(in),
+                                RewardDeltas.class));
+                        break;
+                    case FOLLOWING: {
+                        int user = (int) BinaryCodec.readVarLong(in);
+                        for (int n = (int) BinaryCodec.readVarLong(in); n > 0; n--)
+                            server.getFollowGraph().follow(user, (int) BinaryCodec.readVarLong(in));
+                        break;
+                    }
+                    case POSTS: {
+                        long id = BinaryCodec.readVarLong(in);
+                        String title = readString(in);
+                        String content = readString(in);
+                        String author = readUser(in);
+                        long timestamp = BinaryCodec.readVarLong(in);
+                        boolean rewin = in.get() != 0;
+                        long rewinner = BinaryCodec.readVarLong(in);
+                        int rewardAmount = (int) BinaryCodec.readVarLong(in);
+                        long rewardCycle = BinaryCodec.readVarLong(in);
+                        long originalId = BinaryCodec.readVarLong(in);
+                        Post p = new Post(id, title, content, author, timestamp, rewin,
+                                rewin ? userIds.getName((int) rewinner) : "", rewardAmount, originalId);
+                        p.setRewardCycle(rewardCycle);
+                        posts.put(id, p);
+                        break;
+                    }
+                    case VOTES: {
+                        long post = BinaryCodec.readVarLong(in);
+                        int n = (int) BinaryCodec.readVarLong(in);
+                        Vector<Vote> list = new Vector<>(Math.max(1, n));
+                        for (int v=0; v<n; v++) {
+                            String user = readUser(in);
+                            int value = (int) BinaryCodec.unzigzag(BinaryCodec.readVarLong(in));
+                            list.add(new Vote(user, value, BinaryCodec.readVarLong(in)));
+                        }
+                        votes.put(post, list);
+                        break;
+                    }
+                    case COMMENTS: {
+                        long post = BinaryCodec.readVarLong(in);
+                        int n = (int) BinaryCodec.readVarLong(in);
+                        Vector<Comment> list = new Vector<>(Math.max(1, n));
+                        for (int c=0; c<n; c++) {
+                            String user = readUser(in);
+                            String content = readString(in);
+                            list.add(new Comment(user, content, BinaryCodec.readVarLong(in)));
+                        }
+                        comments.put(post, list);
+                        break;
+                    }
+                    case REWINS: {
+                        long post = BinaryCodec.readVarLong(in);
+                        int n = (int) BinaryCodec.readVarLong(in);
+                        Vector<Long> list = new Vector<>(Math.max(1, n));
+                        for (int r=0; r<n; r++)
+                            list.add(BinaryCodec.readVarLong(in));
+                        rewins.put(post, list);
+                        break;
+                    }
+                    case USER_REWINS: {
+                        String user = readUser(in);
+                        int n = (int) BinaryCodec.readVarLong(in);
+                        ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<>(Math.max(16, n));
+                        for (int r=0; r<n; r++)
+                            map.put(BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in));
+                        userRewins.put(user, map);
+                        break;
+                    }
+                    default:
+                        // Sezione di una versione successiva, ignorata
+                        return;
+                }
+            }
+        }
+
+        /** Mappa in memoria un blocco
+         *
+         * @param b Blocco da mappare
+         * @return Il buffer del blocco
+         * @throws IOException In caso di errore di lettura
+         */
+        private ByteBuffer map(Block b) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, b.offset, b.length);
+        }
+
+        /** Legge uno username scritto come id del dizionario
+         *
+         * @param in Buffer da cui leggere
+         * @return Lo username
+         */
+        private String readUser(ByteBuffer in) {
+            return userIds.getName((int) BinaryCodec.readVarLong(in));
+        }
+    }
+
+    /** Restituisce il prossimo record di un blocco, come buffer limitato al contenuto del record, e sposta il
+     *  blocco sul record successivo. Il buffer condivide la memoria del blocco.
+     *
+     * @param block Buffer del blocco
+     * @return Il buffer del record
+     */
+    private static ByteBuffer record(ByteBuffer block) {
+        int length = block.getInt();
+        if (length < 0 || length > block.remaining())
+            throw new BufferUnderflowException();
+
+        ByteBuffer ret = block.slice();
+        ret.limit(length);
+        block.position(block.position() + length);
+        return ret;
+    }
+
+    /** Legge una stringa UTF-8 preceduta dalla sua lunghezza
+     *
+     * @param in Buffer da cui leggere
+     * @return La stringa letta
+     */
+    private static String readString(ByteBuffer in) {
+        int length = (int) BinaryCodec.readVarLong(in);
+        if (length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Scrittura delle sezioni: raccoglie i record in blocchi e tiene traccia della loro posizione per l'indice.
+     *  Le sezioni non modificate vengono copiate dallo snapshot precedente.
+     *
+     */
+    private static class SectionWriter {
+        private final OutputStream out;
+        // Snapshot precedente, null se non ce n'è uno da cui copiare
+        private final FileChannel previous;
+        // Blocchi dello snapshot precedente
+        private final List<Block> previousBlocks;
+        // Sezioni dello stato modificate dopo lo snapshot precedente
+        private final Set<ChangeTracker.Section> dirty;
+        // Buffer del record in scrittura, riutilizzato per tutti i record
+        private final BinaryCodec.Writer record;
+        // Blocchi già scritti
+        private final List<Block> blocks;
+        // Byte scritti finora
+        private long position;
+        // Sezione in scrittura
+        private byte section;
+        // Posizione e numero di record del blocco in scrittura
+        private long blockStart;
+        private int blockRecords;
+
+        SectionWriter(OutputStream out, FileChannel previous, List<Block> previousBlocks,
+                      Set<ChangeTracker.Section> dirty) {
+            this.out = out;
+            this.previous = previous;
+            this.previousBlocks = previousBlocks;
+            this.dirty = dirty;
+            this.record = new BinaryCodec.Writer();
+            this.blocks = new ArrayList<>();
+        }
+
+        void writeRaw(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        /** Inizia una nuova sezione, chiudendo il blocco della sezione precedente. Se la sezione non è stata
+         *  modificata dopo lo snapshot precedente, viene copiata da questo.
+         *
+         * @param section Codice della sezione
+         * @return true se la sezione deve essere scritta, false se è stata copiata dallo snapshot precedente
+         * @throws IOException In caso di errore di scrittura o di lettura dello snapshot precedente
+         */
+        boolean begin(byte section) throws IOException {
+            return begin(section, -1);
+        }
+
+        /** Inizia una nuova sezione, che viene copiata dallo snapshot precedente solo se non è stata modificata e
+         *  contiene il numero di record indicato
+         *
+         * @param section Codice della sezione
+         * @param records Numero di record atteso, -1 per non controllarlo
+         * @return true se la sezione deve essere scritta, false se è stata copiata dallo snapshot precedente
+         * @throws IOException In caso di errore di scrittura o di lettura dello snapshot precedente
+         */
+        boolean begin(byte section, int records) throws IOException {
+            closeBlock();
+            this.section = section;
+            if (previous == null || dirty.contains(TRACKED[section]))
+                return true;
+
+            List<Block> copied = new ArrayList<>();
+            int count = 0;
+            for (Block b : previousBlocks) {
+                if (b.section == section) {
+                    copied.add(b);
+                    count += b.records;
+                }
+            }
+            if (records >= 0 && count != records)
+                return true;
+
+            byte[] chunk = new byte[1 << 16];
+            for (Block b : copied) {
+                ByteBuffer in = previous.map(FileChannel.MapMode.READ_ONLY, b.offset, b.length);
+                while (in.hasRemaining()) {
+                    int n = Math.min(chunk.length, in.remaining());
+                    in.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+                blocks.add(new Block(section, position, b.length, b.records));
+                position += b.length;
+            }
+            blockStart = position;
+            return false;
+        }
+
+        /** Restituisce il buffer, vuoto, su cui scrivere il prossimo record
+         *
+         * @return Il buffer del record
+         */
+        BinaryCodec.Writer record() {
+            record.reset();
+            return record;
+        }
+
+        /** Scrive il record preparato, preceduto dalla sua lunghezza
+         *
+         * @throws IOException In caso di errore di scrittura
+         */
+        void end() throws IOException {
+            ByteBuffer frame = record.toFrame();
+            out.write(frame.array(), 0, frame.limit());
+            position += frame.limit();
+
+            if (++blockRecords == BLOCK_RECORDS || position - blockStart >= BLOCK_BYTES)
+                closeBlock();
+        }
+
+        private void closeBlock() {
+            if (blockRecords > 0)
+                blocks.add(new Block(section, blockStart, (int) (position - blockStart), blockRecords));
+            blockStart = position;
+            blockRecords = 0;
+        }
+
+        /** Scrive l'indice dei blocchi e la sua posizione
+         *
+         * @throws IOException In caso di errore di scrittura
+         */
+        void finish() throws IOException {
+            closeBlock();
+            long indexOffset = position;
+
+            ByteBuffer index = ByteBuffer.allocate(4 + blocks.size() * 17 + 8);
+            index.putInt(blocks.size());
+            for (Block b : blocks)
+                index.put(b.section).putLong(b.offset).putInt(b.length).putInt(b.records);
+            index.putLong(indexOffset);
+            writeRaw(index.array());
+            out.flush();
+        }
+    }
+}
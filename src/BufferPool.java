@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pool di ByteBuffer di dimensione fissa. Permette al selector di leggere dai canali senza allocare un nuovo buffer
+ *  a ogni evento di lettura: i buffer vengono presi dal pool, usati e restituiti appena la lettura è terminata.
+ *
+ */
+public class BufferPool {
+    // Buffer liberi, pronti per essere riutilizzati
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+    // Dimensione di ogni buffer del pool
+    private final int bufferSize;
+    // Numero massimo di buffer tenuti nel pool: quelli in eccesso vengono lasciati al garbage collector
+    private final int maxPooled;
+    // Numero di buffer presenti al momento nel pool
+    private final AtomicInteger nPooled;
+
+    /** Semplice costruttore di assegnamento degli attributi
+     *
+     * @param bufferSize Dimensione in byte di ogni buffer
+     * @param maxPooled Numero massimo di buffer da mantenere nel pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.free = new ConcurrentLinkedQueue<>();
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.nPooled = new AtomicInteger(0);
+    }
+
+    /** Restituisce un buffer vuoto, prendendolo dal pool se possibile o allocandone uno nuovo altrimenti
+     *
+     * @return Un buffer pronto per la scrittura
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer ret = free.poll();
+
+        if (ret == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        nPooled.decrementAndGet();
+        ret.clear();
+        return ret;
+    }
+
+    /** Restituisce un buffer al pool in modo che possa essere riutilizzato
+     *
+     * @param toRelease Il buffer da restituire
+     */
+    public void release(ByteBuffer toRelease) {
+        if (toRelease.capacity() != bufferSize)
+            return;
+
+        if (nPooled.incrementAndGet() <= maxPooled)
+            free.offer(toRelease);
+        else
+            nPooled.decrementAndGet();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
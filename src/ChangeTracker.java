@@ -0,0 +1,87 @@
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Registro delle modifiche allo stato del server, usato dai salvataggi per sapere cosa è cambiato dall'ultimo
+ *  snapshot. Ogni modifica incrementa un contatore globale di versione, e ogni sezione dello stato ricorda la versione
+ *  della sua ultima modifica: una sezione è sporca rispetto a uno snapshot se è stata modificata dopo la versione a
+ *  cui lo snapshot è stato preso. Le versioni non vengono mai azzerate, per cui una modifica registrata mentre un
+ *  salvataggio è in corso non può essere persa.
+ *
+ *  Le modifiche vengono registrate dalle operazioni che modificano lo stato, mentre tengono il lock dei salvataggi
+ *  in lettura: un salvataggio, che tiene il lock in scrittura, legge quindi una versione che corrisponde esattamente
+ *  allo stato che salva.
+ *
+ */
+public class ChangeTracker {
+    /** Sezioni dello stato del server
+     *
+     */
+    public enum Section {
+        // Utenti, dizionario degli utenti e portafogli
+        USERS,
+        // Relazioni di follow
+        FOLLOWS,
+        // Post
+        POSTS,
+        // Voti e riepilogo dei voti
+        VOTES,
+        // Commenti
+        COMMENTS,
+        // Rewin dei post e degli utenti
+        REWINS,
+        // Attività dei post e stato dei calcoli delle ricompense
+        REWARDS
+    }
+
+    // Versione dello stato, incrementata a ogni modifica
+    private final AtomicLong version;
+    // Versione dell'ultima modifica di ogni sezione
+    private final AtomicLongArray sections;
+
+    public ChangeTracker() {
+        version = new AtomicLong();
+        sections = new AtomicLongArray(Section.values().length);
+    }
+
+    /** Registra una modifica
+     *
+     * @param changed Sezioni modificate
+     */
+    public void mark(Section... changed) {
+        long v = version.incrementAndGet();
+        for (Section s : changed)
+            sections.accumulateAndGet(s.ordinal(), v, Math::max);
+    }
+
+    /** Registra una modifica già resa persistente dal log che da sola non richiede un nuovo snapshot: le sezioni
+     *  vengono segnate come modificate nella prossima versione, per cui sono salvate dal primo snapshot successivo
+     *  a un'altra modifica, ma la versione non cambia e un server altrimenti inattivo non esegue salvataggi.
+     *  Va chiamata tenendo il lock dei salvataggi in scrittura, senza altre modifiche in corso.
+     *
+     * @param changed Sezioni modificate
+     */
+    public void touch(Section... changed) {
+        long v = version.get() + 1;
+        for (Section s : changed)
+            sections.accumulateAndGet(s.ordinal(), v, Math::max);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /** Restituisce le sezioni modificate dopo una versione
+     *
+     * @param since Versione di riferimento, tipicamente quella dell'ultimo snapshot
+     * @return Le sezioni modificate
+     */
+    public EnumSet<Section> getDirty(long since) {
+        EnumSet<Section> ret = EnumSet.noneOf(Section.class);
+        for (Section s : Section.values()) {
+            if (sections.get(s.ordinal()) > since)
+                ret.add(s);
+        }
+        return ret;
+    }
+}
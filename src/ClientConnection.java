@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/** Stato di una connessione con un client, allegato alla SelectionKey del rispettivo canale. Contiene il decoder che
+ *  ricostruisce i messaggi ricevuti, le richieste ricevute ma non ancora eseguite e la coda dei messaggi (già
+ *  codificati) da inviare al client.
+ *
+ *  Un client può inviare più richieste senza aspettare le rispettive risposte: le richieste di una stessa connessione
+ *  vengono comunque eseguite una alla volta e nell'ordine di arrivo, in modo che il loro effetto sia lo stesso che si
+ *  avrebbe inviandole una per volta.
+ *
+ *  Le risposte vengono codificate con la codifica scelta dal client al momento del login (JSON finché il client non
+ *  ne sceglie una diversa).
+ *
+ *  La chiave è interessata all'evento OP_WRITE solamente finché la coda in uscita contiene dei byte da inviare: in
+ *  questo modo il selector non viene svegliato continuamente da canali scrivibili che non hanno niente da spedire.
+ *
+ *  Le richieste in coda e i byte in uscita sono limitati: un client che invia richieste senza leggere le risposte
+ *  smette di essere letto (la chiave perde l'interesse per OP_READ) finché le richieste in coda non vengono eseguite e
+ *  le risposte non vengono inviate. I messaggi in arrivo restano nel buffer del socket, e il client viene rallentato
+ *  dal controllo di flusso del TCP invece di far crescere la memoria del server.
+ *
+ */
+public class ClientConnection {
+    // Numero massimo di richieste in coda oltre il quale il client non viene più letto
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    // Numero massimo di byte in uscita oltre il quale il client non viene più letto
+    private static final int MAX_PENDING_BYTES = 1 << 20;
+
+    // Decoder dei messaggi in arrivo dal client
+    private final FrameDecoder decoder;
+    // Messaggi da inviare al client, nell'ordine in cui sono stati prodotti. Il primo può essere stato inviato solo
+    // in parte: la sua posizione indica da dove riprendere l'invio
+    private final ArrayDeque<ByteBuffer> outbound;
+    // Richieste ricevute dal client in attesa che termini l'esecuzione di quella precedente
+    private final ArrayDeque<ClientRequest> requests;
+    // Indica se una richiesta del client è in esecuzione al momento
+    private boolean executing;
+    // Numero di byte della coda in uscita non ancora inviati
+    private long pendingBytes;
+    // Codifica con cui vengono inviate le risposte al client
+    private volatile WireCodec codec;
+
+    /** Costruttore della connessione
+     *
+     * @param maxFrameSize Dimensione massima dei messaggi che il client può inviare
+     */
+    public ClientConnection(int maxFrameSize) {
+        this.decoder = new FrameDecoder(maxFrameSize);
+        this.outbound = new ArrayDeque<>();
+        this.requests = new ArrayDeque<>();
+        this.executing = false;
+        this.codec = JsonCodec.INSTANCE;
+    }
+
+    /** Registra una nuova richiesta del client. Se non ci sono altre richieste in esecuzione, la richiesta può essere
+     *  eseguita subito, altrimenti viene messa in coda.
+     *
+     * @param request La richiesta ricevuta
+     * @return true se la richiesta deve essere eseguita subito, false se è stata messa in coda
+     */
+    public boolean offerRequest(ClientRequest request) {
+        synchronized (requests) {
+            if (executing) {
+                requests.add(request);
+                return false;
+            }
+
+            executing = true;
+            return true;
+        }
+    }
+
+    /** Segnala la fine dell'esecuzione della richiesta corrente e restituisce la prossima richiesta da eseguire
+     *
+     * @return La prossima richiesta in coda, null se non ce ne sono
+     */
+    public ClientRequest nextRequest() {
+        synchronized (requests) {
+            ClientRequest next = requests.poll();
+            if (next == null)
+                executing = false;
+            return next;
+        }
+    }
+
+    /** Abilita o disabilita l'interesse per la lettura sulla chiave del client, a seconda che le richieste in coda e
+     *  i byte in uscita siano entro i limiti. Può essere chiamato da qualsiasi thread.
+     *
+     * @param key SelectionKey del client
+     */
+    public synchronized void updateReadInterest(SelectionKey key) {
+        boolean overLimit;
+        synchronized (requests) {
+            overLimit = requests.size() >= MAX_QUEUED_REQUESTS;
+        }
+        overLimit |= pendingBytes >= MAX_PENDING_BYTES;
+
+        try {
+            int ops = key.interestOps();
+            int updated = overLimit ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ;
+            if (updated != ops) {
+                key.interestOps(updated);
+                key.selector().wakeup();
+            }
+        }
+        catch (CancelledKeyException e) {
+            // Il client si è disconnesso nel frattempo
+        }
+    }
+
+    /** Accoda un messaggio da inviare al client e abilita l'interesse per la scrittura sulla sua chiave. Può essere
+     *  chiamato da qualsiasi thread: il selector viene svegliato in modo che si accorga subito del nuovo interesse.
+     *
+     * @param frame Messaggio già codificato (dimensione e contenuto) pronto per l'invio
+     * @param key SelectionKey del client
+     */
+    public synchronized void enqueue(ByteBuffer frame, SelectionKey key) {
+        outbound.add(frame);
+        pendingBytes += frame.remaining();
+
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+        catch (CancelledKeyException e) {
+            // Il client si è disconnesso nel frattempo, la risposta non può più essere inviata
+            outbound.clear();
+            pendingBytes = 0;
+            return;
+        }
+        // Se il client non legge le risposte, smetto di leggere le sue richieste
+        if (pendingBytes >= MAX_PENDING_BYTES)
+            updateReadInterest(key);
+    }
+
+    /** Invia quanti più messaggi in coda possibile senza bloccare. Se il canale non accetta altri byte, l'invio
+     *  riprenderà dal punto in cui si è interrotto al prossimo evento di scrittura; se invece la coda è stata svuotata,
+     *  l'interesse per la scrittura viene disabilitato.
+     *
+     * @param key SelectionKey del client
+     * @throws IOException In caso di errore di comunicazione
+     */
+    public synchronized void flush(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer head = outbound.peek();
+                pendingBytes -= channel.write(head);
+
+                // Il buffer di invio del socket è pieno, riprendo al prossimo evento
+                if (head.hasRemaining())
+                    return;
+                outbound.poll();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        finally {
+            // Se la coda in uscita è scesa sotto il limite, riprendo a leggere il client
+            updateReadInterest(key);
+        }
+    }
+
+    /** Indica se ci sono ancora dei byte da inviare al client
+     *
+     * @return true se la coda in uscita non è vuota, false altrimenti
+     */
+    public synchronized boolean hasPending() {
+        return !outbound.isEmpty();
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+    public WireCodec getCodec() {
+        return codec;
+    }
+    public void setCodec(WireCodec codec) {
+        this.codec = codec;
+    }
+}
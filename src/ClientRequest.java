@@ -4,12 +4,18 @@ import java.nio.channels.SelectionKey;
 public class ClientRequest {
     private final SelectionKey key;
     private final JSONObject json;
+    // Identificativo opzionale assegnato dal client alla richiesta, da restituire nella risposta. -1 se assente
+    private final long corrId;
 
     public ClientRequest(SelectionKey key, JSONObject json) {
         this.key = key;
         this.json = json;
+        this.corrId = json.optLong("corrId", -1);
     }
 
     public SelectionKey getKey() {return key;}
     public JSONObject getJson() {return json;}
+    public long getCorrId() {return corrId;}
+    public boolean hasCorrId() {return corrId >= 0;}
+    public ClientConnection getConnection() {return (ClientConnection) key.attachment();}
 }
@@ -0,0 +1,124 @@
+import com.google.gson.reflect.TypeToken;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Vector;
+
+/** Benchmark delle codifiche disponibili: per le risposte a SHOW_FEED e SHOW_POST misura i byte trasmessi e il tempo
+ *  medio di codifica (lato server) e di decodifica (lato client, inclusa la ricostruzione delle liste di elementi).
+ *
+ *  Uso: java CodecBenchmark [numero di post nel feed] [numero di commenti] [iterazioni]
+ *
+ */
+public class CodecBenchmark {
+    // Codifiche confrontate
+    private static final WireCodec[] CODECS = {JsonCodec.INSTANCE, BinaryCodec.INSTANCE};
+
+    public static void main(String[] args) throws IOException {
+        int nPosts = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int nComments = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        // Preparazione dei dati: un feed di post e un post con i relativi commenti
+        Vector<Post> feed = new Vector<>();
+        for (int i=0; i<nPosts; i++) {
+            Post p = new Post(i, "Titolo " + i, "Contenuto del post numero " + i + ", di lunghezza realistica.",
+                    "utente" + (i % 10));
+            feed.add(i % 4 == 0 ? new Post(i, p, "rewinner" + i) : p);
+        }
+        Vector<Comment> comments = new Vector<>();
+        for (int i=0; i<nComments; i++)
+            comments.add(new Comment("utente" + i, "Commento numero " + i));
+
+        System.out.println("Feed di " + nPosts + " post, post con " + nComments + " commenti, " + iterations +
+                " iterazioni");
+        System.out.printf("%-10s %-8s %10s %14s %14s%n", "Risposta", "Codifica", "Byte", "Codifica (us)",
+                "Decodifica (us)");
+
+        for (WireCodec codec : CODECS) {
+            run("SHOW_FEED", codec, OpCodes.SHOW_FEED, feedReply(), feed, "items",
+                    new TypeToken<List<Post>>() {}.getType(), iterations);
+        }
+        for (WireCodec codec : CODECS) {
+            run("SHOW_POST", codec, OpCodes.SHOW_POST, postReply(), comments, "comments",
+                    new TypeToken<List<Comment>>() {}.getType(), iterations);
+        }
+    }
+
+    /** Misura dimensione e tempi di codifica e decodifica di una risposta
+     *
+     * @param name Nome della risposta da stampare
+     * @param codec Codifica da misurare
+     * @param op Codice dell'operazione a cui si risponde
+     * @param reply Campi della risposta
+     * @param items Lista di elementi della risposta
+     * @param field Campo che contiene la lista nella codifica JSON
+     * @param type Tipo della lista
+     * @param iterations Numero di iterazioni misurate
+     * @throws IOException Se la decodifica fallisce
+     */
+    private static void run(String name, WireCodec codec, int op, JSONObject reply, Object items, String field,
+                            Type type, int iterations) throws IOException {
+        byte[] frame = content(codec.encodeReply(op, new JSONObject(reply.toString()), items));
+        // Verifica che la lista venga ricostruita correttamente
+        List<?> decoded = codec.decodeReply(frame).getItems(field, type);
+        if (decoded.size() != ((List<?>) items).size())
+            throw new IllegalStateException("Decodifica errata per " + codec.getName());
+
+        // Riscaldamento della JVM, in modo da misurare il codice già compilato
+        for (int i=0; i<iterations / 4; i++) {
+            codec.encodeReply(op, new JSONObject(reply.toString()), items);
+            codec.decodeReply(frame).getItems(field, type);
+        }
+
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i=0; i<iterations; i++)
+            sink += codec.encodeReply(op, new JSONObject(reply.toString()), items).remaining();
+        long encodeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i=0; i<iterations; i++)
+            sink += codec.decodeReply(frame).<List<?>>getItems(field, type).size();
+        long decodeTime = System.nanoTime() - start;
+
+        System.out.printf("%-10s %-8s %10d %14.2f %14.2f%n", name, codec.getName(), frame.length + 4,
+                encodeTime / 1000.0 / iterations, decodeTime / 1000.0 / iterations);
+        // Impedisce che i cicli vengano eliminati dal compilatore
+        if (sink == 42)
+            System.out.print("");
+    }
+
+    private static JSONObject feedReply() {
+        JSONObject reply = new JSONObject();
+        reply.put("corrId", 1234);
+        return reply;
+    }
+
+    private static JSONObject postReply() {
+        JSONObject reply = new JSONObject();
+        reply.put("errCode", 0);
+        reply.put("errMsg", "OK");
+        reply.put("title", "Titolo del post");
+        reply.put("content", "Contenuto del post mostrato in dettaglio, con un testo di lunghezza realistica.");
+        reply.put("nUpvotes", 12);
+        reply.put("nDownvotes", 3);
+        reply.put("corrId", 1234);
+        return reply;
+    }
+
+    /** Estrae il contenuto di un messaggio codificato, escludendo i 4 byte della dimensione
+     *
+     * @param frame Messaggio codificato
+     * @return Il contenuto del messaggio
+     */
+    private static byte[] content(ByteBuffer frame) {
+        byte[] ret = new byte[frame.remaining() - 4];
+        frame.position(frame.position() + 4);
+        frame.get(ret);
+        return ret;
+    }
+}
@@ -7,106 +7,116 @@ import java.nio.charset.StandardCharsets;
 
 public class ComUtility {
     /** Allega una stringa in formato JSON che rappresenta un errore avvenuto nel corso dell'operazione richiesta
-     *  dal client identificato dalla SelectionKey passata come parametro
+     *  dal client che ha inviato la richiesta passata come parametro
      *
      * @param code Codice di errore
      * @param message Rappresentazione leggibile del codice di errore
-     * @param key SelectionKey del client che ha spedito la richiesta che ha fallito
+     * @param request Richiesta che ha fallito
      */
-    public static void attachError(int code, String message, SelectionKey key) {
+    public static void attachError(int code, String message, ClientRequest request) {
         JSONObject response = new JSONObject();
 
         response.put("errCode", code);
         response.put("errMsg", message);
 
-        key.attach(response.toString());
+        attachReply(response, request);
     }
 
     /** Allega una stringa in formato JSON che rappresenta un acknowledgement, ovvero una coppia (codice di errore, messaggio)
      *  con valore (0, "OK")
      *
-     * @param key La SelectionKey del client che deve ricevere l'ack
+     * @param request La richiesta a cui rispondere con l'ack
      */
-    public static void attachAck(SelectionKey key) {
+    public static void attachAck(ClientRequest request) {
         JSONObject response = new JSONObject();
         response.put("errCode", 0);
         response.put("errMsg", "OK");
-        key.attach(response.toString());
+        attachReply(response, request);
     }
 
-    /** Invia i dati allegati alla selectionkey passata come paramtetro lungo il canale non bloccante contenuto
-     *  nella chiave stessa
+    /** Codifica la risposta a una richiesta e la accoda ai messaggi in uscita della connessione del client che l'ha
+     *  inviata. Se la richiesta conteneva un identificativo, esso viene riportato nella risposta in modo che il client
+     *  possa associarla alla richiesta corretta anche se ne ha inviate altre nel frattempo.
      *
-     * @param key SelectionKey che rappresenta l'endpoint che deve ricevere l'allegato
-     * @throws IOException In caso di errore di comunicazione
+     * @param reply Risposta da inviare al client
+     * @param request Richiesta a cui si sta rispondendo
      */
-    public static void sendAsync(SelectionKey key) throws IOException {
-        String toSend = (String)key.attachment();
-        int toSendLen = toSend.getBytes(StandardCharsets.UTF_8).length;
-        ByteBuffer buffer = ByteBuffer.allocate(toSendLen + 4);
+    public static void attachReply(JSONObject reply, ClientRequest request) {
+        attachReply(reply, null, request);
+    }
 
-        // Invia la dimensione del buffer
-        buffer.putInt(toSendLen);
-        buffer.put(toSend.getBytes());
-        buffer.flip();
+    /** Codifica la risposta a una richiesta, insieme alla lista di elementi restituita dall'operazione, con la
+     *  codifica scelta dal client e la accoda ai messaggi in uscita della sua connessione
+     *
+     * @param reply Campi della risposta da inviare al client
+     * @param items Lista di elementi restituita dall'operazione, null se l'operazione non ne restituisce
+     * @param request Richiesta a cui si sta rispondendo
+     */
+    public static void attachReply(JSONObject reply, Object items, ClientRequest request) {
+        ClientConnection connection = request.getConnection();
 
-        while (buffer.hasRemaining())
-            ((SocketChannel)key.channel()).write(buffer);
+        if (request.hasCorrId())
+            reply.put("corrId", request.getCorrId());
 
-        // Resetta l'attachment in modo che non venga spedito due volte dal worker
-        key.attach(null);
+        connection.enqueue(connection.getCodec().encodeReply(request.getJson().optInt("op"), reply, items),
+                request.getKey());
     }
 
-    /** Invia la stringa toSend lungo il canale bloccante channel
+    /** Codifica una stringa in un messaggio pronto per l'invio, composto dalla dimensione del contenuto (4 byte)
+     *  seguita dal contenuto stesso in UTF-8
      *
-     * @param toSend La stringa da inviare (in formato JSON)
-     * @param channel Il canale da usare per l'invio
-     * @throws IOException In caso di errore nella comunicazione
+     * @param toSend La stringa da codificare
+     * @return Il buffer, in modalità lettura, contenente il messaggio
      */
-    public static void sendSync(String toSend, SocketChannel channel) throws IOException {
-        int toSendLen = toSend.getBytes(StandardCharsets.UTF_8).length;
-        ByteBuffer buffer = ByteBuffer.allocate(toSendLen + 4);
+    public static ByteBuffer encode(String toSend) {
+        byte[] toSendBytes = toSend.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(toSendBytes.length + 4);
 
-        // Invia la dimensione del buffer
-        buffer.putInt(toSendLen);
-        buffer.put(toSend.getBytes());
+        buffer.putInt(toSendBytes.length);
+        buffer.put(toSendBytes);
         buffer.flip();
 
+        return buffer;
+    }
+
+    /** Invia un messaggio già codificato lungo il canale bloccante channel
+     *
+     * @param buffer Il buffer, in modalità lettura, contenente il messaggio
+     * @param channel Il canale da usare per l'invio
+     * @throws IOException In caso di errore nella comunicazione
+     */
+    public static void sendSync(ByteBuffer buffer, SocketChannel channel) throws IOException {
         while (buffer.hasRemaining())
             channel.write(buffer);
     }
 
-    /** Permette di ricevere una stringa in formato JSON dal canale specificato come parametro
+    /** Permette di ricevere il contenuto di un messaggio dal canale bloccante specificato come parametro, senza
+     *  interpretarlo: sarà la codifica usata dal client a decodificarlo. Il server, che usa canali non bloccanti,
+     *  riceve invece i messaggi tramite il FrameDecoder di ogni connessione.
      *
-     * @param channel Il canale da cui ricevere la stringa
-     * @return La stringa ricevuta in formato JSON
+     * @param channel Il canale da cui ricevere il messaggio
+     * @return Il contenuto del messaggio, null in caso di EOF
      * @throws IOException In caso di errore di comunicazione
      */
-    public static String receive(SocketChannel channel) throws IOException {
+    public static byte[] receive(SocketChannel channel) throws IOException {
         // Alloca 4 byte per leggere la dimensione del contenuto
         ByteBuffer reader = ByteBuffer.allocate(4);
-        // Controllo EOF
-        if (channel.read(reader) == -1) {
-            return "";
+        while (reader.hasRemaining()) {
+            // Controllo EOF
+            if (channel.read(reader) == -1)
+                return null;
         }
         reader.flip();
-        reader.clear();
         // Leggi la dimensione del contenuto
         int size = reader.getInt();
         reader = ByteBuffer.allocate(size);
 
         // Leggi il contenuto
-        while (reader.hasRemaining())
-            channel.read(reader);
-        reader.position(0);
-
-        // Convertilo da byte a stringa
-        StringBuilder builder = new StringBuilder();
-        for (int i=0; i<size; i++) {
-            builder.append((char)reader.get());
+        while (reader.hasRemaining()) {
+            if (channel.read(reader) == -1)
+                return null;
         }
 
-        // Restituiscilo
-        return builder.toString();
+        return reader.array();
     }
 }
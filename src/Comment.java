@@ -1,14 +1,18 @@
-import java.sql.Timestamp;
-
 public class Comment {
     private final String user;
     private final String content;
-    private final Timestamp timestamp;
+    private final long timestamp;
 
     public Comment(String user, String content) {
         this.user = user;
         this.content = content;
-        this.timestamp = new Timestamp(System.currentTimeMillis());
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Comment(String user, String content, long timestamp) {
+        this.user = user;
+        this.content = content;
+        this.timestamp = timestamp;
     }
 
     public String getUser() {
@@ -17,7 +21,7 @@ public class Comment {
     public String getContent() {
         return content;
     }
-    public Timestamp getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 }
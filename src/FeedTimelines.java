@@ -0,0 +1,361 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/** Timeline materializzate dei feed degli utenti. Invece di ricalcolare il feed scorrendo tutti i post del server a
+ *  ogni richiesta, ogni utente ha una timeline contenente gli id dei post più recenti del suo feed, ordinati dal più
+ *  recente al meno recente (gli id vengono assegnati in ordine di creazione, per cui l'ordine degli id coincide con
+ *  quello delle date).
+ *
+ *  Le timeline vengono aggiornate al momento della scrittura: quando un post o un rewin viene creato, il suo id viene
+ *  aggiunto alle timeline dei follower dell'autore e di chi l'ha rewinnato; quando viene eliminato, viene rimosso dalle
+ *  stesse timeline. Allo stesso modo un follow aggiunge alla timeline del follower i post dell'utente seguito, mentre
+ *  un unfollow li rimuove.
+ *
+ *  Ogni timeline contiene al massimo un certo numero di post: quando viene superato, i post più vecchi vengono
+ *  scartati. Se in seguito a un'eliminazione o a un unfollow una timeline che aveva scartato dei post resta con meno
+ *  post del dovuto, viene ricostruita alla lettura successiva.
+ *
+ *  Allo stesso modo viene mantenuto, per ogni utente, l'insieme ordinato dei post del suo blog (post creati e rewin),
+ *  in modo che feed e blog possano essere letti una pagina alla volta a partire da un cursore.
+ *
+ */
+public class FeedTimelines {
+    // Numero massimo di post mantenuti in ogni timeline
+    private final int capacity;
+    // Server contenente post e relazioni di follow
+    private final WinsomeServerMain server;
+    // Timeline di ogni utente
+    private final ConcurrentHashMap<String, Timeline> timelines;
+    // Id dei post del blog di ogni utente, dal più recente al meno recente
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Long>> blogs;
+
+    /** Timeline di un singolo utente
+     *
+     */
+    private static class Timeline {
+        // Id dei post nel feed, dal più recente al meno recente
+        final ConcurrentSkipListSet<Long> ids = new ConcurrentSkipListSet<>(Comparator.reverseOrder());
+        // Numero di id nella timeline (la size() del set ha costo lineare)
+        final AtomicInteger size = new AtomicInteger();
+        // Indica se la timeline ha scartato dei post per rispettare la capacità massima
+        volatile boolean truncated = false;
+        // Indica se la timeline deve essere ricostruita prima della prossima lettura
+        volatile boolean stale = false;
+    }
+
+    /** Pagina di post restituita da una lettura del feed o del blog
+     *
+     */
+    public static class Page {
+        // Post della pagina, dal più recente al meno recente
+        private final Vector<Post> posts;
+        // Cursore da usare per leggere la pagina successiva, null se non ci sono altri post
+        private final Long next;
+
+        public Page(Vector<Post> posts, Long next) {
+            this.posts = posts;
+            this.next = next;
+        }
+
+        public Vector<Post> getPosts() {
+            return posts;
+        }
+        public Long getNext() {
+            return next;
+        }
+    }
+
+    /** Costruttore delle timeline
+     *
+     * @param server Server contenente post e relazioni di follow
+     * @param capacity Numero massimo di post mantenuti in ogni timeline
+     */
+    public FeedTimelines(WinsomeServerMain server, int capacity) {
+        this.server = server;
+        this.capacity = capacity;
+        this.timelines = new ConcurrentHashMap<>();
+        this.blogs = new ConcurrentHashMap<>();
+    }
+
+    /** Aggiunge un post appena creato (o un rewin) alle timeline degli utenti che devono vederlo
+     *
+     * @param post Post appena creato
+     */
+    public void addPost(Post post) {
+        blog(post.isRewin() ? post.getRewinner() : post.getAuthor()).add(post.getId());
+
+        for (String user : recipients(post))
+            add(timeline(user), post.getId());
+    }
+
+    /** Rimuove un post eliminato dalle timeline degli utenti che lo vedevano
+     *
+     * @param post Post eliminato
+     */
+    public void removePost(Post post) {
+        ConcurrentSkipListSet<Long> blog = blogs.get(post.isRewin() ? post.getRewinner() : post.getAuthor());
+        if (blog != null)
+            blog.remove(post.getId());
+
+        for (String user : recipients(post)) {
+            Timeline timeline = timelines.get(user);
+            if (timeline != null)
+                remove(timeline, post.getId());
+        }
+    }
+
+    /** Aggiunge alla timeline del follower i post che l'utente appena seguito ha creato o rewinnato
+     *
+     * @param follower Utente che ha iniziato a seguire
+     * @param followed Utente seguito
+     */
+    public void follow(String follower, String followed) {
+        Timeline timeline = timeline(follower);
+
+        for (Post p : postsOf(followed)) {
+            if (!p.getRewinner().equals(follower))
+                add(timeline, p.getId());
+        }
+    }
+
+    /** Rimuove dalla timeline del follower i post che non fanno più parte del suo feed dopo un unfollow
+     *
+     * @param follower Utente che ha smesso di seguire
+     */
+    public void unfollow(String follower) {
+        Timeline timeline = timelines.get(follower);
+        if (timeline == null)
+            return;
+
+        for (Long id : timeline.ids) {
+            Post p = server.getPosts().get(id);
+            if (p == null || !isInFeed(follower, p))
+                remove(timeline, id);
+        }
+    }
+
+    /** Restituisce una pagina del feed di un utente. Senza cursori vengono restituiti i post più recenti; con il
+     *  cursore before i post più vecchi del cursore, con il cursore after quelli più recenti.
+     *
+     * @param user Utente di cui si desidera il feed
+     * @param before Id del post più vecchio già visualizzato, null se non specificato
+     * @param after Id del post più recente già visualizzato, null se non specificato
+     * @param limit Numero massimo di post da restituire
+     * @return La pagina richiesta
+     */
+    public Page getFeed(String user, Long before, Long after, int limit) {
+        Timeline timeline = timelines.get(user);
+        if (timeline == null)
+            return new Page(new Vector<>(), null);
+
+        if (timeline.stale)
+            timeline = rebuild(user);
+
+        // Un post potrebbe essere stato eliminato (o il suo autore non più seguito) dopo essere stato letto
+        return page(timeline.ids, before, after, limit, p -> isInFeed(user, p));
+    }
+
+    /** Restituisce una pagina del blog di un utente, con gli stessi cursori del feed
+     *
+     * @param user Utente di cui si desidera il blog
+     * @param before Id del post più vecchio già visualizzato, null se non specificato
+     * @param after Id del post più recente già visualizzato, null se non specificato
+     * @param limit Numero massimo di post da restituire
+     * @return La pagina richiesta
+     */
+    public Page getBlog(String user, Long before, Long after, int limit) {
+        ConcurrentSkipListSet<Long> blog = blogs.get(user);
+        if (blog == null)
+            return new Page(new Vector<>(), null);
+
+        return page(blog, before, after, limit, p -> true);
+    }
+
+    /** Verifica se un post fa parte del feed di un utente, cioè se è stato creato o rewinnato da un utente seguito
+     *  (esclusi i rewin fatti dall'utente stesso). Il controllo non dipende dalla dimensione del feed, per cui vale
+     *  anche per i post più vecchi scartati dalla timeline.
+     *
+     * @param user Utente di cui si controlla il feed
+     * @param post Post da controllare
+     * @return true se il post fa parte del feed dell'utente, false altrimenti
+     */
+    public boolean isInFeed(String user, Post post) {
+        FollowGraph graph = server.getFollowGraph();
+
+        return !post.getRewinner().equals(user) &&
+                (graph.isFollowing(user, post.getAuthor()) || graph.isFollowing(user, post.getRewinner()));
+    }
+
+    /** Ricostruisce tutte le timeline a partire dai post e dalle relazioni di follow del server. Usata dopo aver
+     *  caricato i dati salvati.
+     *
+     */
+    public void rebuildAll() {
+        timelines.clear();
+        blogs.clear();
+        for (Post p : server.getPosts().values())
+            addPost(p);
+    }
+
+    /** Ricostruisce la timeline di un singolo utente unendo i post di tutti gli utenti che segue
+     *
+     * @param user Utente di cui ricostruire la timeline
+     * @return La nuova timeline
+     */
+    private Timeline rebuild(String user) {
+        Timeline timeline = new Timeline();
+        for (String followed : server.getFollowGraph().getFollowing(user)) {
+            for (Post p : postsOf(followed)) {
+                if (!p.getRewinner().equals(user))
+                    add(timeline, p.getId());
+            }
+        }
+
+        // La timeline viene resa visibile solo dopo essere stata riempita
+        timelines.put(user, timeline);
+        return timeline;
+    }
+
+    /** Restituisce gli utenti nel cui feed compare un post: i follower dell'autore e, se il post è un rewin, i
+     *  follower di chi l'ha rewinnato (escluso chi l'ha rewinnato)
+     *
+     * @param post Post di cui calcolare i destinatari
+     * @return Insieme dei destinatari
+     */
+    private Set<String> recipients(Post post) {
+        Set<String> ret = new HashSet<>();
+        FollowGraph graph = server.getFollowGraph();
+
+        ret.addAll(graph.getFollowers(post.getAuthor()));
+        if (post.isRewin()) {
+            ret.addAll(graph.getFollowers(post.getRewinner()));
+            ret.remove(post.getRewinner());
+        }
+
+        return ret;
+    }
+
+    /** Restituisce i post che compaiono nel feed di chi segue un utente: i post del suo blog (creati o rewinnati da
+     *  lui) e i rewin dei post da lui creati
+     *
+     * @param user Utente seguito
+     * @return Lista dei post
+     */
+    private List<Post> postsOf(String user) {
+        List<Post> ret = new ArrayList<>();
+        ConcurrentSkipListSet<Long> blog = blogs.get(user);
+        if (blog == null)
+            return ret;
+
+        for (Long id : blog) {
+            Post p = server.getPosts().get(id);
+            if (p == null)
+                continue;
+            ret.add(p);
+
+            // Rewin del post fatti da altri utenti
+            Vector<Long> postRewins = p.isRewin() ? null : server.getRewins().get(id);
+            if (postRewins != null) {
+                for (Long rewin : new ArrayList<>(postRewins)) {
+                    Post r = server.getPosts().get(rewin);
+                    if (r != null)
+                        ret.add(r);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** Legge una pagina da un insieme di id ordinato dal più recente al meno recente
+     *
+     * @param ids Insieme degli id
+     * @param before Cursore before, null se non specificato
+     * @param after Cursore after, null se non specificato
+     * @param limit Numero massimo di post da restituire
+     * @param visible Condizione che un post deve rispettare per essere restituito
+     * @return La pagina letta
+     */
+    private Page page(NavigableSet<Long> ids, Long before, Long after, int limit, Predicate<Post> visible) {
+        NavigableSet<Long> range = ids;
+        Vector<Post> posts = new Vector<>();
+        Long next = null;
+
+        // Dato che l'ordine è decrescente, la "testa" dell'insieme contiene gli id più grandi del cursore: con il
+        // cursore after li scorro a partire da quello più vicino al cursore
+        if (after != null)
+            range = ids.headSet(after, false).descendingSet();
+        else if (before != null)
+            range = ids.tailSet(before, false);
+
+        for (Long id : range) {
+            Post p = server.getPosts().get(id);
+            if (p == null || !visible.test(p))
+                continue;
+
+            // C'è almeno un altro post oltre la pagina: il cursore successivo è l'ultimo post della pagina
+            if (posts.size() == limit) {
+                next = posts.lastElement().getId();
+                break;
+            }
+            posts.add(p);
+        }
+
+        // Le pagine vengono sempre restituite dal post più recente al meno recente
+        if (after != null)
+            Collections.reverse(posts);
+
+        return new Page(posts, next);
+    }
+
+    /** Restituisce il blog di un utente, creandolo se non esiste
+     *
+     * @param user Utente di cui si desidera il blog
+     * @return Gli id dei post del blog
+     */
+    private ConcurrentSkipListSet<Long> blog(String user) {
+        return blogs.computeIfAbsent(user, k -> new ConcurrentSkipListSet<>(Comparator.reverseOrder()));
+    }
+
+    /** Restituisce la timeline di un utente, creandola se non esiste
+     *
+     * @param user Utente di cui si desidera la timeline
+     * @return La timeline dell'utente
+     */
+    private Timeline timeline(String user) {
+        return timelines.computeIfAbsent(user, k -> new Timeline());
+    }
+
+    /** Aggiunge un id a una timeline, scartando i post più vecchi se viene superata la capacità massima
+     *
+     * @param timeline Timeline a cui aggiungere il post
+     * @param id Id del post
+     */
+    private void add(Timeline timeline, long id) {
+        if (!timeline.ids.add(id))
+            return;
+
+        if (timeline.size.incrementAndGet() > capacity) {
+            if (timeline.ids.pollLast() != null)
+                timeline.size.decrementAndGet();
+            timeline.truncated = true;
+        }
+    }
+
+    /** Rimuove un id da una timeline. Se la timeline aveva scartato dei post, potrebbe ora contenerne meno di quanti
+     *  ne dovrebbe mostrare: in tal caso viene ricostruita alla prossima lettura.
+     *
+     * @param timeline Timeline da cui rimuovere il post
+     * @param id Id del post
+     */
+    private void remove(Timeline timeline, long id) {
+        if (timeline.ids.remove(id)) {
+            timeline.size.decrementAndGet();
+            if (timeline.truncated)
+                timeline.stale = true;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Grafo delle relazioni di follow tra gli utenti. Per ogni utente si mantengono l'insieme dei suoi follower e
+ *  l'insieme degli utenti che segue, rappresentati dagli id assegnati dal dizionario degli utenti, così che
+ *  verificare una relazione abbia costo costante anche per utenti con moltissimi follower. Gli username vengono
+ *  ricavati dagli id solo quando le relazioni vengono restituite all'esterno.
+ *
+ *  Le operazioni di follow e unfollow aggiornano le due direzioni della relazione in modo atomico prendendo solo i
+ *  lock delle due strisce a cui appartengono gli utenti coinvolti: operazioni su coppie di utenti diverse possono
+ *  quindi procedere in parallelo.
+ *
+ */
+public class FollowGraph {
+    // Numero di strisce di lock
+    private static final int STRIPES = 64;
+
+    // Dizionario degli utenti
+    private final UserIds userIds;
+    // Followers: a ogni id di utente corrisponde l'insieme degli id degli utenti che lo seguono
+    private final ConcurrentHashMap<Integer, IntSet> followers;
+    // Following: a ogni id di utente corrisponde l'insieme degli id degli utenti seguiti
+    private final ConcurrentHashMap<Integer, IntSet> following;
+    // Lock usati per aggiornare in modo atomico le due direzioni di una relazione
+    private final Object[] locks;
+
+    public FollowGraph(UserIds userIds) {
+        this.userIds = userIds;
+        followers = new ConcurrentHashMap<>();
+        following = new ConcurrentHashMap<>();
+        locks = new Object[STRIPES];
+        for (int i=0; i<STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    /** Registra che un utente ha iniziato a seguirne un altro
+     *
+     * @param follower Utente che inizia a seguire
+     * @param followed Utente seguito
+     * @return true se la relazione è stata aggiunta, false se esisteva già
+     */
+    public boolean follow(String follower, String followed) {
+        return follow(userIds.intern(follower), userIds.intern(followed));
+    }
+
+    /** Registra che un utente ha iniziato a seguirne un altro, indicati con gli id del dizionario
+     *
+     * @param followerId Id dell'utente che inizia a seguire
+     * @param followedId Id dell'utente seguito
+     * @return true se la relazione è stata aggiunta, false se esisteva già
+     */
+    public boolean follow(int followerId, int followedId) {
+        int a = stripe(followerId), b = stripe(followedId);
+
+        // Le strisce vengono sempre bloccate in ordine crescente per evitare deadlock
+        synchronized (locks[Math.min(a, b)]) {
+            synchronized (locks[Math.max(a, b)]) {
+                if (!adjacency(following, followerId).add(followedId))
+                    return false;
+                adjacency(followers, followedId).add(followerId);
+                return true;
+            }
+        }
+    }
+
+    /** Registra che un utente ha smesso di seguirne un altro
+     *
+     * @param follower Utente che smette di seguire
+     * @param followed Utente che non è più seguito
+     * @return true se la relazione è stata rimossa, false se non esisteva
+     */
+    public boolean unfollow(String follower, String followed) {
+        int followerId = userIds.getId(follower), followedId = userIds.getId(followed);
+        if (followerId < 0 || followedId < 0)
+            return false;
+        int a = stripe(followerId), b = stripe(followedId);
+
+        synchronized (locks[Math.min(a, b)]) {
+            synchronized (locks[Math.max(a, b)]) {
+                IntSet followedSet = following.get(followerId);
+                if (followedSet == null || !followedSet.remove(followedId))
+                    return false;
+                IntSet followerSet = followers.get(followedId);
+                if (followerSet != null)
+                    followerSet.remove(followerId);
+                return true;
+            }
+        }
+    }
+
+    /** Verifica se un utente ne segue un altro
+     *
+     * @param follower Possibile follower
+     * @param followed Possibile utente seguito
+     * @return true se follower segue followed, false altrimenti
+     */
+    public boolean isFollowing(String follower, String followed) {
+        int followerId = userIds.getId(follower), followedId = userIds.getId(followed);
+        if (followerId < 0 || followedId < 0)
+            return false;
+
+        IntSet set = following.get(followerId);
+        return set != null && set.contains(followedId);
+    }
+
+    /** Restituisce i follower di un utente
+     *
+     * @param user Utente di cui ottenere i follower
+     * @return Lista dei follower, vuota se l'utente non ne ha
+     */
+    public List<String> getFollowers(String user) {
+        return names(followers, user);
+    }
+
+    /** Restituisce gli utenti seguiti da un utente
+     *
+     * @param user Utente di cui ottenere i seguiti
+     * @return Lista degli utenti seguiti, vuota se l'utente non segue nessuno
+     */
+    public List<String> getFollowing(String user) {
+        return names(following, user);
+    }
+
+    /** Restituisce gli id degli utenti che seguono almeno un utente
+     *
+     * @return Gli id degli utenti
+     */
+    public Set<Integer> getFollowingUsers() {
+        return following.keySet();
+    }
+
+    /** Restituisce gli id degli utenti seguiti da un utente
+     *
+     * @param user Id dell'utente
+     * @return Gli id degli utenti seguiti, vuoto se l'utente non segue nessuno
+     */
+    public int[] getFollowingIds(int user) {
+        IntSet set = following.get(user);
+        return set == null ? new int[0] : set.toArray();
+    }
+
+    /** Copia le relazioni di un altro grafo, che usa gli stessi id del dizionario. Usata per salvare il grafo
+     *  mentre il server continua a modificarlo.
+     *
+     * @param other Grafo da copiare
+     */
+    public void copyFrom(FollowGraph other) {
+        for (Map.Entry<Integer, IntSet> entry : other.followers.entrySet())
+            followers.put(entry.getKey(), entry.getValue().copy());
+        for (Map.Entry<Integer, IntSet> entry : other.following.entrySet())
+            following.put(entry.getKey(), entry.getValue().copy());
+    }
+
+    /** Scrive i follower di ogni utente, espressi con gli username, senza costruire una copia delle relazioni
+     *
+     * @param out Writer su cui scrivere la mappa dei follower
+     * @throws IOException In caso di errore di scrittura
+     */
+    public void writeFollowers(JsonWriter out) throws IOException {
+        writeNames(followers, out);
+    }
+
+    /** Scrive gli utenti seguiti da ogni utente, espressi con gli username, senza costruire una copia delle relazioni
+     *
+     * @param out Writer su cui scrivere la mappa degli utenti seguiti
+     * @throws IOException In caso di errore di scrittura
+     */
+    public void writeFollowing(JsonWriter out) throws IOException {
+        writeNames(following, out);
+    }
+
+    /** Restituisce l'insieme di adiacenza di un utente, creandolo se non esiste
+     *
+     * @param map Mappa delle adiacenze
+     * @param user Utente
+     * @return L'insieme di adiacenza dell'utente
+     */
+    private IntSet adjacency(ConcurrentHashMap<Integer, IntSet> map, int user) {
+        return map.computeIfAbsent(user, k -> new IntSet());
+    }
+
+    /** Restituisce gli username contenuti nell'insieme di adiacenza di un utente
+     *
+     * @param map Mappa delle adiacenze
+     * @param user Username dell'utente
+     * @return Lista degli username, vuota se l'utente non ha adiacenze
+     */
+    private List<String> names(ConcurrentHashMap<Integer, IntSet> map, String user) {
+        int id = userIds.getId(user);
+        IntSet set = id < 0 ? null : map.get(id);
+        return set == null ? Collections.emptyList() : userIds.toNames(set);
+    }
+
+    /** Scrive una mappa delle adiacenze come oggetto json che associa a ogni username la lista degli username
+     *  adiacenti
+     *
+     * @param map Mappa delle adiacenze
+     * @param out Writer su cui scrivere la mappa
+     * @throws IOException In caso di errore di scrittura
+     */
+    private void writeNames(ConcurrentHashMap<Integer, IntSet> map, JsonWriter out) throws IOException {
+        out.beginObject();
+        for (Map.Entry<Integer, IntSet> entry : map.entrySet()) {
+            out.name(userIds.getName(entry.getKey()));
+            out.beginArray();
+            for (int id : entry.getValue().toArray())
+                out.value(userIds.getName(id));
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    /** Restituisce la striscia di lock a cui appartiene un utente
+     *
+     * @param user Id dell'utente
+     * @return Indice della striscia
+     */
+    private int stripe(int user) {
+        return user & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Decoder dei messaggi ricevuti da un singolo client. Ogni messaggio è composto da 4 byte che ne indicano la
+ *  dimensione seguiti dal contenuto vero e proprio. Il decoder si occupa solo di separare i messaggi: il loro
+ *  contenuto viene interpretato dalla codifica (JSON o binaria) con cui è stato prodotto.
+ *
+ *  Il decoder mantiene lo stato della lettura tra un evento OP_READ e l'altro: se un messaggio arriva a pezzi, i byte
+ *  già ricevuti (dell'header o del contenuto) vengono conservati e la lettura riprende al successivo evento, senza che
+ *  il selector resti bloccato ad aspettare il resto del messaggio.
+ *
+ */
+public class FrameDecoder {
+    // Dimensione iniziale del buffer del contenuto
+    private static final int INITIAL_BODY_SIZE = 1024;
+
+    // Dimensione massima accettata per il contenuto di un messaggio
+    private final int maxFrameSize;
+    // Buffer contenente i byte dell'header ricevuti finora
+    private final ByteBuffer header;
+    // Buffer del contenuto, riutilizzato tra un messaggio e l'altro
+    private ByteBuffer body;
+    // Indica se si sta leggendo il contenuto di un messaggio (true) o il suo header (false)
+    private boolean readingBody;
+    // Indica se il client ha chiuso la connessione
+    private boolean endOfStream;
+
+    /** Costruttore del decoder
+     *
+     * @param maxFrameSize Dimensione massima in byte del contenuto di un messaggio
+     */
+    public FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.header = ByteBuffer.allocate(4);
+        this.body = ByteBuffer.allocate(Math.min(INITIAL_BODY_SIZE, maxFrameSize));
+        this.readingBody = false;
+        this.endOfStream = false;
+    }
+
+    /** Legge i byte disponibili sul canale non bloccante specificato come parametro e restituisce i messaggi che
+     *  sono stati completati da questa lettura. Il canale viene letto una sola volta, in modo che un client molto
+     *  attivo non monopolizzi il selector: se ci sono altri dati, il selector segnalerà un nuovo evento di lettura.
+     *
+     * @param channel Canale da cui leggere
+     * @param pool Pool da cui prendere il buffer di lettura
+     * @return La lista (eventualmente vuota) dei contenuti dei messaggi completati
+     * @throws IOException In caso di errore di comunicazione o di messaggio non valido
+     */
+    public List<byte[]> read(SocketChannel channel, BufferPool pool) throws IOException {
+        List<byte[]> ret = new ArrayList<>();
+        ByteBuffer in = pool.acquire();
+
+        try {
+            if (channel.read(in) == -1) {
+                endOfStream = true;
+                return ret;
+            }
+
+            in.flip();
+            decode(in, ret);
+        }
+        finally {
+            pool.release(in);
+        }
+
+        return ret;
+    }
+
+    /** Consuma i byte contenuti in un buffer, completando header e contenuto del messaggio corrente. Ogni volta che
+     *  un messaggio viene completato, esso viene aggiunto alla lista dei messaggi ricevuti.
+     *
+     * @param in Buffer (in modalità lettura) contenente i byte appena ricevuti
+     * @param frames Lista a cui aggiungere i messaggi completi
+     * @throws ProtocolException Se un client invia un messaggio di dimensione non valida
+     */
+    private void decode(ByteBuffer in, List<byte[]> frames) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (!readingBody) {
+                transfer(in, header);
+                // L'header non è ancora completo, aspetto il prossimo evento
+                if (header.hasRemaining())
+                    return;
+
+                header.flip();
+                int size = header.getInt();
+                header.clear();
+
+                if (size <= 0 || size > maxFrameSize)
+                    throw new ProtocolException("Dimensione del messaggio non valida: " + size);
+
+                // Il buffer del contenuto viene ingrandito solo se necessario
+                if (body.capacity() < size)
+                    body = ByteBuffer.allocate(size);
+                body.clear();
+                body.limit(size);
+                readingBody = true;
+            }
+
+            transfer(in, body);
+            // Se il contenuto è completo lo consegno e ricomincio a leggere un header
+            if (!body.hasRemaining()) {
+                frames.add(Arrays.copyOf(body.array(), body.position()));
+                readingBody = false;
+            }
+        }
+    }
+
+    /** Copia da src a dst quanti più byte possibile, senza superare i limiti di nessuno dei due buffer
+     *
+     * @param src Buffer di origine
+     * @param dst Buffer di destinazione
+     */
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.duplicate();
+
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        src.position(src.position() + n);
+    }
+
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+}
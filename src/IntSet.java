@@ -0,0 +1,118 @@
+/** Insieme di interi non negativi memorizzati in una tabella hash a indirizzamento aperto, senza oggetti Integer.
+ *  Ogni elemento occupa 4 byte (più lo spazio libero della tabella), contro le decine di byte di un elemento di
+ *  un HashSet. I metodi sono sincronizzati sull'insieme stesso, per cui insiemi diversi possono essere usati in
+ *  parallelo.
+ *
+ */
+public class IntSet {
+    // Tabella degli elementi: ogni cella contiene l'elemento più uno, 0 indica una cella libera
+    private int[] table;
+    // Numero di elementi
+    private int size;
+
+    public IntSet() {
+        table = new int[8];
+        size = 0;
+    }
+
+    /** Aggiunge un elemento
+     *
+     * @param value Elemento da aggiungere, non negativo
+     * @return true se l'elemento è stato aggiunto, false se era già presente
+     */
+    public synchronized boolean add(int value) {
+        int slot = find(table, value);
+        if (table[slot] != 0)
+            return false;
+
+        table[slot] = value + 1;
+        // La tabella viene mantenuta piena al più per tre quarti
+        if (++size * 4 > table.length * 3)
+            resize(table.length * 2);
+        return true;
+    }
+
+    /** Rimuove un elemento
+     *
+     * @param value Elemento da rimuovere
+     * @return true se l'elemento è stato rimosso, false se non era presente
+     */
+    public synchronized boolean remove(int value) {
+        int slot = find(table, value);
+        if (table[slot] == 0)
+            return false;
+
+        // Le celle successive della stessa sequenza vengono reinserite per non interrompere le ricerche
+        table[slot] = 0;
+        size--;
+        int mask = table.length - 1;
+        for (int i = (slot + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int moved = table[i];
+            table[i] = 0;
+            table[find(table, moved - 1)] = moved;
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(int value) {
+        return table[find(table, value)] != 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Restituisce una copia dell'insieme
+     *
+     * @return La copia
+     */
+    public synchronized IntSet copy() {
+        IntSet ret = new IntSet();
+        ret.table = table.clone();
+        ret.size = size;
+        return ret;
+    }
+
+    /** Restituisce una copia degli elementi
+     *
+     * @return Array contenente gli elementi, in ordine non specificato
+     */
+    public synchronized int[] toArray() {
+        int[] ret = new int[size];
+        int n = 0;
+        for (int v : table) {
+            if (v != 0)
+                ret[n++] = v - 1;
+        }
+        return ret;
+    }
+
+    /** Restituisce la cella che contiene un elemento o, se l'elemento non è presente, la cella libera in cui andrebbe
+     *  inserito
+     *
+     * @param table Tabella in cui cercare
+     * @param value Elemento da cercare
+     * @return Indice della cella
+     */
+    private static int find(int[] table, int value) {
+        int mask = table.length - 1;
+        int h = value * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (table[i] != 0 && table[i] != value + 1)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Ridimensiona la tabella reinserendo gli elementi
+     *
+     * @param capacity Nuova capacità, potenza di 2
+     */
+    private void resize(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        for (int v : old) {
+            if (v != 0)
+                table[find(table, v - 1)] = v;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import com.google.gson.Gson;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Codifica JSON, usata di default da tutte le connessioni. Richieste e risposte vengono trasmesse come stringhe JSON,
+ *  mentre le liste di elementi vengono serializzate con Gson e inserite come stringa nel campo corrispondente.
+ *
+ */
+public class JsonCodec implements WireCodec {
+    // Nome della codifica
+    public static final String NAME = "json";
+    // Istanza condivisa: la codifica non ha stato
+    public static final JsonCodec INSTANCE = new JsonCodec();
+
+    // Serializzatore delle liste di elementi
+    private final Gson gson;
+
+    private JsonCodec() {
+        gson = new Gson();
+    }
+
+    @Override
+    public ByteBuffer encodeRequest(JSONObject request) {
+        return ComUtility.encode(request.toString());
+    }
+
+    @Override
+    public JSONObject decodeRequest(byte[] frame) {
+        return new JSONObject(new String(frame, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ByteBuffer encodeReply(int op, JSONObject reply, Object items) {
+        if (items != null)
+            reply.put(WireCodec.itemsField(op), gson.toJson(items));
+        return ComUtility.encode(reply.toString());
+    }
+
+    @Override
+    public ServerReply decodeReply(byte[] frame) {
+        return new ServerReply(new JSONObject(new String(frame, StandardCharsets.UTF_8)), null);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
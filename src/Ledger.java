@@ -0,0 +1,306 @@
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Registro delle transazioni di un utente, memorizzato per colonne: per ogni transazione si mantengono la data in
+ *  millisecondi, l'importo, l'id del post e un codice di un byte che identifica la causale. Una transazione occupa
+ *  così 25 byte, invece di un oggetto Transaction con i relativi oggetti di contorno.
+ *
+ *  Il registro è usato sia come storico delle transazioni di un utente, sia per raccogliere le ricompense che un
+ *  calcolo assegna a un utente, che vengono poi aggiunte allo storico in un'unica operazione. Non è thread safe:
+ *  la sincronizzazione è a carico di chi lo possiede.
+ *
+ *  Viene salvato in formato json con un array per colonna, lungo quanto il numero di transazioni; negli snapshot
+ *  binari le colonne vengono scritte una dopo l'altra come valori a dimensione fissa, e lette in blocco.
+ *
+ */
+@JsonAdapter(Ledger.Adapter.class)
+public class Ledger {
+    // Causali delle transazioni, indicizzate per codice
+    private static final String[] CAUSALS = {"Ricompensa autore", "Ricompensa curatore (commenti)",
+            "Ricompensa curatore (voti)"};
+    // Codici delle causali
+    public static final byte AUTHOR = 0;
+    public static final byte CURATOR_COMMENTS = 1;
+    public static final byte CURATOR_VOTES = 2;
+    // Valore memorizzato al posto dell'id del post per le transazioni che non si riferiscono a un post
+    private static final long NO_POST = -1;
+
+    // Date delle transazioni, in millisecondi dal 1/1/1970
+    private long[] timestamps;
+    // Importi delle transazioni
+    private double[] amounts;
+    // Id dei post a cui si riferiscono le transazioni
+    private long[] posts;
+    // Codici delle causali delle transazioni
+    private byte[] causals;
+    // Numero di transazioni
+    private int size;
+
+    /** Pagina di transazioni restituita da una visualizzazione del portafoglio
+     *
+     */
+    public static class Page {
+        // Transazioni della pagina, in ordine cronologico
+        private final List<Transaction> transactions;
+        // Cursore della pagina precedente (transazioni più vecchie), null se non ce ne sono
+        private final Long next;
+
+        Page(List<Transaction> transactions, Long next) {
+            this.transactions = transactions;
+            this.next = next;
+        }
+
+        public List<Transaction> getTransactions() {return transactions;}
+        public Long getNext() {return next;}
+    }
+
+    public Ledger() {
+        this(4);
+    }
+
+    public Ledger(int capacity) {
+        capacity = Math.max(1, capacity);
+        timestamps = new long[capacity];
+        amounts = new double[capacity];
+        posts = new long[capacity];
+        causals = new byte[capacity];
+        size = 0;
+    }
+
+    /** Restituisce una vista delle transazioni presenti, usata per salvare il registro senza copiarlo. Le
+     *  transazioni vengono solo aggiunte in coda, per cui quelle presenti non vengono più modificate: la vista
+     *  condivide le colonne con il registro e non deve essere modificata.
+     *
+     * @return La vista del registro
+     */
+    Ledger view() {
+        Ledger ret = new Ledger(0);
+        ret.timestamps = timestamps;
+        ret.amounts = amounts;
+        ret.posts = posts;
+        ret.causals = causals;
+        ret.size = size;
+        return ret;
+    }
+
+    /** Aggiunge una transazione
+     *
+     * @param timestamp Data della transazione
+     * @param amount Importo
+     * @param post Id del post a cui si riferisce la transazione
+     * @param causal Codice della causale
+     */
+    public void add(long timestamp, double amount, long post, byte causal) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        amounts[size] = amount;
+        posts[size] = post;
+        causals[size] = causal;
+        size++;
+    }
+
+    /** Aggiunge una transazione rappresentata da un oggetto Transaction
+     *
+     * @param t Transazione da aggiungere
+     */
+    public void add(Transaction t) {
+        add(t.getTimestamp(), t.getAmount(), t.getPost() == null ? NO_POST : t.getPost(), causalCode(t.getCausal()));
+    }
+
+    /** Aggiunge in blocco tutte le transazioni di un altro registro
+     *
+     * @param other Registro da cui copiare le transazioni
+     */
+    public void addAll(Ledger other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+        System.arraycopy(other.amounts, 0, amounts, size, other.size);
+        System.arraycopy(other.posts, 0, posts, size, other.size);
+        System.arraycopy(other.causals, 0, causals, size, other.size);
+        size += other.size;
+    }
+
+    /** Calcola la somma degli importi delle transazioni
+     *
+     * @return La somma degli importi
+     */
+    public double total() {
+        double ret = 0;
+        for (int i=0; i<size; i++)
+            ret += amounts[i];
+        return ret;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Restituisce una transazione
+     *
+     * @param i Indice della transazione, in ordine cronologico
+     * @return La transazione
+     */
+    public Transaction get(int i) {
+        return new Transaction(CAUSALS[causals[i]], amounts[i], posts[i] == NO_POST ? null : posts[i], timestamps[i]);
+    }
+
+    /** Restituisce una pagina di transazioni: le più recenti tra quelle precedenti al cursore
+     *
+     * @param before Indice della prima transazione esclusa, null per partire dalla più recente
+     * @param limit Numero massimo di transazioni
+     * @return La pagina di transazioni
+     */
+    public Page page(Long before, int limit) {
+        int end = before == null ? size : (int) Math.max(0, Math.min(before, size));
+        int start = Math.max(0, end - limit);
+
+        List<Transaction> ret = new ArrayList<>(end - start);
+        for (int i=start; i<end; i++)
+            ret.add(get(i));
+        return new Page(ret, start > 0 ? (long) start : null);
+    }
+
+    /** Restituisce il codice di una causale
+     *
+     * @param causal Causale
+     * @return Il codice della causale
+     */
+    public static byte causalCode(String causal) {
+        for (byte i=0; i<CAUSALS.length; i++) {
+            if (CAUSALS[i].equals(causal))
+                return i;
+        }
+        throw new IllegalArgumentException("Causale sconosciuta: " + causal);
+    }
+
+    /** Garantisce che le colonne possano contenere almeno il numero di transazioni specificato
+     *
+     * @param capacity Numero di transazioni
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length)
+            return;
+
+        int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        amounts = Arrays.copyOf(amounts, newCapacity);
+        posts = Arrays.copyOf(posts, newCapacity);
+        causals = Arrays.copyOf(causals, newCapacity);
+    }
+
+    /** Scrive il registro in uno snapshot binario: il numero di transazioni seguito dalle colonne
+     *
+     * @param out Buffer su cui scrivere
+     */
+    void write(BinaryCodec.Writer out) {
+        out.writeVarLong(size);
+        for (int i=0; i<size; i++)
+            out.writeLong(timestamps[i]);
+        for (int i=0; i<size; i++)
+            out.writeDouble(amounts[i]);
+        for (int i=0; i<size; i++)
+            out.writeLong(posts[i]);
+        for (int i=0; i<size; i++)
+            out.writeByte(causals[i]);
+    }
+
+    /** Legge un registro scritto da {@link #write(BinaryCodec.Writer)}, copiando ogni colonna in blocco
+     *
+     * @param in Buffer da cui leggere
+     * @return Il registro letto
+     */
+    static Ledger read(ByteBuffer in) {
+        int size = (int) BinaryCodec.readVarLong(in);
+        Ledger ret = new Ledger(size);
+
+        in.asLongBuffer().get(ret.timestamps, 0, size);
+        in.position(in.position() + size * 8);
+        in.asDoubleBuffer().get(ret.amounts, 0, size);
+        in.position(in.position() + size * 8);
+        in.asLongBuffer().get(ret.posts, 0, size);
+        in.position(in.position() + size * 8);
+        in.get(ret.causals, 0, size);
+        ret.size = size;
+        return ret;
+    }
+
+    /** Adapter Gson del registro: scrive le sole transazioni presenti, una colonna per array
+     *
+     */
+    public static class Adapter extends TypeAdapter<Ledger> {
+        @Override
+        public void write(JsonWriter out, Ledger ledger) throws IOException {
+            if (ledger == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("timestamps").beginArray();
+            for (int i=0; i<ledger.size; i++)
+                out.value(ledger.timestamps[i]);
+            out.endArray();
+            out.name("amounts").beginArray();
+            for (int i=0; i<ledger.size; i++)
+                out.value(ledger.amounts[i]);
+            out.endArray();
+            out.name("posts").beginArray();
+            for (int i=0; i<ledger.size; i++)
+                out.value(ledger.posts[i]);
+            out.endArray();
+            out.name("causals").beginArray();
+            for (int i=0; i<ledger.size; i++)
+                out.value(ledger.causals[i]);
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        public Ledger read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            List<Long> timestamps = new ArrayList<>(), posts = new ArrayList<>();
+            List<Double> amounts = new ArrayList<>();
+            List<Byte> causals = new ArrayList<>();
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                in.beginArray();
+                while (in.hasNext()) {
+                    switch (name) {
+                        case "timestamps": timestamps.add(in.nextLong()); break;
+                        case "amounts": amounts.add(in.nextDouble()); break;
+                        case "posts": posts.add(in.nextLong()); break;
+                        case "causals": causals.add((byte) in.nextInt()); break;
+                        default: in.skipValue();
+                    }
+                }
+                in.endArray();
+            }
+            in.endObject();
+
+            Ledger ret = new Ledger(timestamps.size());
+            for (int i=0; i<timestamps.size(); i++) {
+                ret.timestamps[i] = timestamps.get(i);
+                ret.amounts[i] = amounts.get(i);
+                ret.posts[i] = posts.get(i);
+                ret.causals[i] = causals.get(i);
+            }
+            ret.size = timestamps.size();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/** Log delle modifiche allo stato del server (write-ahead log). Ogni operazione che modifica lo stato persistente
+ *  (registrazione, follow, unfollow, post, voto, commento, rewin, eliminazione, calcolo delle ricompense) viene
+ *  registrata in coda al log, per cui il salvataggio completo del server (snapshot) può essere eseguito di rado:
+ *  al riavvio, lo stato viene ricostruito caricando l'ultimo snapshot e riapplicando le modifiche registrate dopo.
+ *
+ *  Il log è suddiviso in segmenti numerati: a ogni snapshot viene aperto un nuovo segmento, e lo snapshot registra
+ *  il primo segmento da riapplicare; i segmenti precedenti al più vecchio degli snapshot mantenuti su disco vengono
+ *  eliminati una volta scritto lo snapshot.
+ *
+ *  Ogni modifica è una riga di testo, composta dal checksum CRC32 della modifica seguito dalla modifica in formato
+ *  json, così che una riga scritta a metà da un'interruzione del server venga riconosciuta e scartata.
+ *
+ *  Le scritture avvengono in un thread dedicato, che scrive in un'unica operazione tutte le modifiche accodate nel
+ *  frattempo (group commit). La sincronizzazione su disco dipende dalla politica configurata:
+ *  - ALWAYS: ogni modifica è su disco prima che l'operazione venga confermata al client; le modifiche accodate
+ *    insieme condividono una sola sincronizzazione
+ *  - INTERVAL: il log viene sincronizzato su disco a intervalli regolari, per cui un'interruzione può far perdere le
+ *    modifiche dell'ultimo intervallo
+ *  - NEVER: la sincronizzazione è lasciata al sistema operativo
+ *
+ */
+public class MutationLog {
+    /** Politiche di sincronizzazione del log su disco
+     *
+     */
+    public enum FsyncPolicy {ALWAYS, INTERVAL, NEVER}
+
+    // Tipi di modifica registrati nel log
+    public static final String SIGNUP = "SIGNUP";
+    public static final String FOLLOW = "FOLLOW";
+    public static final String UNFOLLOW = "UNFOLLOW";
+    public static final String POST = "POST";
+    public static final String RATE = "RATE";
+    public static final String COMMENT = "COMMENT";
+    public static final String REWIN = "REWIN";
+    public static final String DELETE = "DELETE";
+    public static final String CYCLE_START = "CYCLE_START";
+    public static final String REWARDS = "REWARDS";
+    public static final String CYCLE_IDLE = "CYCLE_IDLE";
+
+    // Prefisso dei nomi dei file dei segmenti, seguito dal numero del segmento
+    private final String baseName;
+    // Politica di sincronizzazione su disco
+    private final FsyncPolicy policy;
+    // Intervallo di sincronizzazione su disco, usato dalla politica INTERVAL
+    private final long fsyncIntervalMillis;
+    // Oggetto usato per convertire le modifiche in json
+    private final Gson gson;
+
+    // Modifiche accodate e non ancora scritte
+    private ByteArrayOutputStream pending;
+    // Numero di modifiche accodate finora
+    private long appended;
+    // Numero di modifiche scritte sul file
+    private long written;
+    // Numero di modifiche sincronizzate su disco
+    private long synced;
+    // Il log è stato chiuso?
+    private boolean closed;
+
+    // Lock che regola l'accesso al file, tenuto dal thread di scrittura e dal cambio di segmento
+    private final Object io;
+    // Segmento corrente
+    private FileChannel channel;
+    // Numero del segmento corrente
+    private long segment;
+    // Data dell'ultima sincronizzazione su disco
+    private long lastSync;
+    // Primo segmento da riapplicare al riavvio, indicato dallo snapshot caricato
+    private long replayFrom;
+
+    /** Crea il log. Il log non può essere usato finché non viene aperto.
+     *
+     * @param baseName Prefisso dei nomi dei file dei segmenti
+     * @param policy Politica di sincronizzazione su disco
+     * @param fsyncIntervalMillis Intervallo di sincronizzazione su disco, usato dalla politica INTERVAL
+     */
+    public MutationLog(String baseName, FsyncPolicy policy, long fsyncIntervalMillis) {
+        this.baseName = baseName;
+        this.policy = policy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.gson = new Gson();
+        this.pending = new ByteArrayOutputStream();
+        this.io = new Object();
+        this.replayFrom = 0;
+    }
+
+    /** Apre un nuovo segmento, successivo a tutti quelli presenti, e avvia il thread di scrittura. I segmenti
+     *  presenti sono già stati riapplicati e possono terminare con una modifica scritta a metà, per cui non vengono
+     *  più modificati. I segmenti precedenti allo snapshot caricato vengono mantenuti finché servono agli snapshot
+     *  più vecchi, e vengono eliminati dal salvataggio successivo.
+     *
+     * @throws IOException In caso di errore nella creazione del segmento
+     */
+    public void open() throws IOException {
+        List<Long> existing = listSegments();
+        synchronized (io) {
+            segment = existing.isEmpty() ? replayFrom : Math.max(replayFrom, existing.get(existing.size() - 1) + 1);
+            channel = openSegment(segment);
+            lastSync = System.currentTimeMillis();
+        }
+
+        Thread writer = new Thread(this::writerLoop, "MutationLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Registrazione delle modifiche
+
+    public void logSignup(User user) {
+        JsonObject record = record(SIGNUP);
+        record.addProperty("username", user.getUsername());
+        record.addProperty("password", user.getPassword());
+        record.add("tags", gson.toJsonTree(user.getTags()));
+        append(record);
+    }
+
+    public void logFollow(String follower, String followed) {
+        JsonObject record = record(FOLLOW);
+        record.addProperty("follower", follower);
+        record.addProperty("followed", followed);
+        append(record);
+    }
+
+    public void logUnfollow(String follower, String followed) {
+        JsonObject record = record(UNFOLLOW);
+        record.addProperty("follower", follower);
+        record.addProperty("followed", followed);
+        append(record);
+    }
+
+    public void logPost(Post post) {
+        JsonObject record = record(post.isRewin() ? REWIN : POST);
+        record.add("post", gson.toJsonTree(post));
+        append(record);
+    }
+
+    public void logRate(long post, Vote vote) {
+        JsonObject record = record(RATE);
+        record.addProperty("post", post);
+        record.add("vote", gson.toJsonTree(vote));
+        append(record);
+    }
+
+    public void logComment(long post, Comment comment) {
+        JsonObject record = record(COMMENT);
+        record.addProperty("post", post);
+        record.add("comment", gson.toJsonTree(comment));
+        append(record);
+    }
+
+    public void logDelete(long post) {
+        JsonObject record = record(DELETE);
+        record.addProperty("post", post);
+        append(record);
+    }
+
+    public void logCycleStart(RewardDeltas.Cycle cycle) {
+        JsonObject record = record(CYCLE_START);
+        record.addProperty("sequence", cycle.getSequence());
+        record.addProperty("cutoff", cycle.getCutoff());
+        append(record);
+    }
+
+    public void logIdleCycle(RewardDeltas.Cycle cycle) {
+        JsonObject record = record(CYCLE_IDLE);
+        record.addProperty("sequence", cycle.getSequence());
+        record.addProperty("cutoff", cycle.getCutoff());
+        append(record);
+    }
+
+    public void logRewards(RewardDeltas.Cycle cycle, Map<String, Ledger> credits) {
+        JsonObject record = record(REWARDS);
+        record.addProperty("sequence", cycle.getSequence());
+        record.add("credits", gson.toJsonTree(credits));
+        append(record);
+    }
+
+    /** Crea una modifica del tipo specificato
+     *
+     * @param type Tipo della modifica
+     * @return La modifica, da completare con i dati
+     */
+    private static JsonObject record(String type) {
+        JsonObject ret = new JsonObject();
+        ret.addProperty("type", type);
+        return ret;
+    }
+
+    /** Accoda una modifica al log. Con la politica ALWAYS, attende che la modifica sia stata sincronizzata su disco.
+     *
+     * @param record Modifica da accodare
+     */
+    private void append(JsonObject record) {
+        byte[] json = record.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        byte[] header = (Long.toHexString(crc.getValue()) + " ").getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            pending.write(header, 0, header.length);
+            pending.write(json, 0, json.length);
+            pending.write('\n');
+            long lsn = ++appended;
+            notifyAll();
+
+            if (policy == FsyncPolicy.ALWAYS) {
+                boolean interrupted = false;
+                while (synced < lsn && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Routine del thread di scrittura: attende nuove modifiche e le scrive in blocco sul segmento corrente,
+     *  sincronizzandolo su disco secondo la politica configurata
+     *
+     */
+    private void writerLoop() {
+        while (true) {
+            synchronized (this) {
+                while (pending.size() == 0 && !closed && !syncDue()) {
+                    try {
+                        wait(policy == FsyncPolicy.INTERVAL ? fsyncIntervalMillis : 0);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                    return;
+            }
+
+            try {
+                flush(false);
+            } catch (IOException e) {
+                System.err.println("Errore di scrittura del log delle modifiche");
+                e.printStackTrace();
+                try {
+                    Thread.sleep(fsyncIntervalMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Indica se ci sono modifiche scritte ma non ancora sincronizzate che vanno sincronizzate: con la politica
+     *  INTERVAL quelle scritte da più di un intervallo, con la politica ALWAYS quelle di una sincronizzazione fallita
+     *
+     * @return true se bisogna sincronizzare il log su disco
+     */
+    private synchronized boolean syncDue() {
+        if (synced >= written)
+            return false;
+        return policy == FsyncPolicy.ALWAYS ||
+                (policy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastSync >= fsyncIntervalMillis);
+    }
+
+    /** Scrive sul segmento corrente le modifiche accodate e, se richiesto o previsto dalla politica, sincronizza il
+     *  segmento su disco
+     *
+     * @param force Sincronizza il segmento su disco indipendentemente dalla politica
+     * @throws IOException In caso di errore di scrittura
+     */
+    private void flush(boolean force) throws IOException {
+        synchronized (io) {
+            ByteArrayOutputStream toWrite;
+            long batch;
+            synchronized (this) {
+                toWrite = pending;
+                batch = appended;
+                pending = new ByteArrayOutputStream();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(toWrite.toByteArray());
+            try {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException e) {
+                // La parte non scritta torna in testa alle modifiche accodate e viene scritta al tentativo
+                // successivo: le modifiche non scritte non vengono mai considerate scritte o sincronizzate
+                synchronized (this) {
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream(buffer.remaining() + pending.size());
+                    retry.write(buffer.array(), buffer.position(), buffer.remaining());
+                    byte[] queued = pending.toByteArray();
+                    retry.write(queued, 0, queued.length);
+                    pending = retry;
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                written = batch;
+            }
+
+            long now = System.currentTimeMillis();
+            boolean sync = force || policy == FsyncPolicy.ALWAYS ||
+                    (policy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalMillis);
+            if (sync) {
+                // In caso di errore le modifiche restano scritte ma non sincronizzate, e vengono sincronizzate
+                // dal tentativo successivo
+                channel.force(false);
+                lastSync = now;
+            }
+
+            synchronized (this) {
+                // Senza sincronizzazione periodica, le modifiche scritte sono affidate al sistema operativo
+                if (sync || policy == FsyncPolicy.NEVER)
+                    synced = batch;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Chiude il segmento corrente, dopo averlo scritto e sincronizzato su disco, e ne apre uno nuovo. Usato dagli
+     *  snapshot, che vengono eseguiti senza modifiche in corso: le modifiche del nuovo segmento sono quelle
+     *  successive allo snapshot.
+     *
+     * @return Il numero del nuovo segmento
+     * @throws IOException In caso di errore di scrittura o di creazione del segmento
+     */
+    public long rotate() throws IOException {
+        synchronized (io) {
+            flush(true);
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+            return segment;
+        }
+    }
+
+    /** Elimina i segmenti precedenti a quello specificato, già inclusi in uno snapshot scritto su disco
+     *
+     * @param first Primo segmento da mantenere
+     */
+    public void deleteSegmentsBefore(long first) {
+        for (long s : listSegments()) {
+            if (s < first && !new File(segmentName(s)).delete())
+                System.err.println("Impossibile eliminare il segmento del log " + segmentName(s));
+        }
+    }
+
+    /** Scrive e sincronizza su disco le modifiche accodate, poi chiude il log
+     *
+     */
+    public void close() {
+        synchronized (io) {
+            try {
+                flush(true);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /** Legge le modifiche registrate a partire dal primo segmento da riapplicare, in ordine. La lettura di un
+     *  segmento si interrompe alla prima modifica non integra, che può essere solo l'ultima scritta prima di
+     *  un'interruzione del server.
+     *
+     * @param apply Funzione che riapplica una modifica
+     * @return Il numero di modifiche lette
+     * @throws IOException In caso di errore di lettura
+     */
+    public long replay(Consumer<JsonObject> apply) throws IOException {
+        long count = 0;
+
+        for (long s : listSegments()) {
+            if (s < replayFrom)
+                continue;
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(segmentName(s)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonObject record = parse(line);
+                    if (record == null) {
+                        System.err.println("Modifica non integra nel segmento " + segmentName(s) +
+                                ", le modifiche successive del segmento vengono ignorate");
+                        break;
+                    }
+                    apply.accept(record);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Verifica e decodifica una riga del log
+     *
+     * @param line Riga del log
+     * @return La modifica, null se la riga non è integra
+     */
+    private static JsonObject parse(String line) {
+        int space = line.indexOf(' ');
+        if (space < 0)
+            return null;
+
+        byte[] json = line.substring(space + 1).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        try {
+            if (Long.parseLong(line.substring(0, space), 16) != crc.getValue())
+                return null;
+            JsonElement ret = JsonParser.parseString(line.substring(space + 1));
+            return ret.isJsonObject() ? ret.getAsJsonObject() : null;
+        } catch (NumberFormatException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    /** Restituisce i numeri dei segmenti presenti, in ordine crescente
+     *
+     * @return I numeri dei segmenti
+     */
+    private List<Long> listSegments() {
+        File base = new File(baseName).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        List<Long> ret = new ArrayList<>();
+
+        File[] files = base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.getName().startsWith(prefix))
+                    continue;
+                try {
+                    ret.add(Long.parseLong(f.getName().substring(prefix.length())));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private String segmentName(long s) {
+        return baseName + "." + s;
+    }
+
+    private FileChannel openSegment(long s) throws IOException {
+        return FileChannel.open(Paths.get(segmentName(s)), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    public void setReplayFrom(long replayFrom) {
+        this.replayFrom = replayFrom;
+    }
+}
@@ -1,5 +1,3 @@
-import java.sql.Timestamp;
-
 public class Post implements Comparable<Post> {
     // Id del post
     private long id;
@@ -9,70 +7,101 @@ public class Post implements Comparable<Post> {
     private String content;
     // Nome utente dell'autore del post
     private String author;
-    // Data di creazione del post
-    private Timestamp timestamp;
+    // Data di creazione del post, in millisecondi dal 1/1/1970
+    private long timestamp;
     // Flag che indica se il post è un rewin o meno
     private boolean rewin;
     // Nome dell'utente che ha rewinnato questo post
     private String rewinner;
+    // Id del post originale: coincide con l'id del post se non è un rewin. Può essere null solo per i post caricati
+    // da un salvataggio precedente alla sua introduzione, finché il server non lo ricostruisce
+    private Long originalId;
     // Numero di volte che l'algoritmo di ricompensa è stato eseguito su questo post. Per evitare numeri infiniti
     // o valori NaN, viene impostato a 1 per la prima volta
     private int rewardAmount;
-    // Prossimo id utilizzabile dal prossimo post che verrà creato
-    private static long postId;
+    // Numero di calcoli delle ricompense eseguiti dal server quando rewardAmount è stato aggiornato l'ultima volta
+    private long rewardCycle;
 
     /** Costruttore di un nuovo Post (cioè di un Post che non è un rewin). Assegna i parametri ai rispettivi
      *  attributi e assegna un rewinner vuoto (non può esistere un nome utente vuoto, quindi è possibile distinguere
      *  tra rewin e post).
      *
+     * @param id Id del post, assegnato dall'allocatore degli id
      * @param title Titolo del post (lungo al massimo 20 caratteri)
      * @param content Contenuto del post (lungo al massimo 500 caratteri)
      * @param author Nome utente dell'autore del post
      */
-    public Post(String title, String content, String author) {
+    public Post(long id, String title, String content, String author) {
         rewinner = "";
-        init(title, content, author, false, 1);
+        init(id, title, content, author, false, 1);
+        this.originalId = id;
     }
 
     /** Costruttore di un post di rewin. Il post originale viene passato come parametro e viene anche specificato il
      *  nome dell'utente che ha rewinnato questo post.
      *
+     * @param id Id del post, assegnato dall'allocatore degli id
      * @param other Post originale che è stato rewinnato da rewinner
      * @param rewinner Utente che ha rewinnato other
      */
-    public Post(Post other, String rewinner) {
+    public Post(long id, Post other, String rewinner) {
         this.rewinner = rewinner;
-        init(other.getTitle(), other.getContent(), other.getAuthor(), true, other.getRewardAmount());
+        init(id, other.getTitle(), other.getContent(), other.getAuthor(), true, other.getRewardAmount());
+        this.originalId = other.getOriginalId();
     }
 
-    /** Funzione di utilità che assegna i parametri comuni ai due costruttori
+    /** Costruttore che assegna tutti gli attributi di un post già esistente, usato per ricostruire i post ricevuti
+     *  con la codifica binaria.
      *
+     * @param id Id del post
      * @param title Titolo del post
      * @param content Contenuto del post
      * @param author Autore del post
+     * @param timestamp Data di creazione del post
      * @param rewin Il post è un rewin?
+     * @param rewinner Utente che ha rewinnato il post, stringa vuota se il post non è un rewin
      * @param rewardAmount Numero di volte che l'algoritmo di reward è stato eseguito + 1
+     * @param originalId Id del post originale
      */
-    private void init(String title, String content, String author, boolean rewin, int rewardAmount) {
+    public Post(long id, String title, String content, String author, long timestamp, boolean rewin,
+                String rewinner, int rewardAmount, long originalId) {
+        this.id = id;
         this.title = title;
         this.content = content;
         this.author = author;
-        this.id = postId;
+        this.timestamp = timestamp;
         this.rewin = rewin;
+        this.rewinner = rewinner;
         this.rewardAmount = rewardAmount;
-        this.timestamp = new Timestamp(System.currentTimeMillis());
+        this.originalId = originalId;
+    }
 
-        // Importante aggiornare il prossimo id disponibile in modo che sia univoco
-        Post.postId++;
+    /** Funzione di utilità che assegna i parametri comuni ai due costruttori
+     *
+     * @param id Id del post
+     * @param title Titolo del post
+     * @param content Contenuto del post
+     * @param author Autore del post
+     * @param rewin Il post è un rewin?
+     * @param rewardAmount Numero di volte che l'algoritmo di reward è stato eseguito + 1
+     */
+    private void init(long id, String title, String content, String author, boolean rewin, int rewardAmount) {
+        this.title = title;
+        this.content = content;
+        this.author = author;
+        this.id = id;
+        this.rewin = rewin;
+        this.rewardAmount = rewardAmount;
+        this.timestamp = System.currentTimeMillis();
     }
 
-    /** Impostazione del prossimo id per un post: questo metodo viene invocato al momento del caricamento del server,
-     *  in modo che il prossimo id sia coerente con il contenuto precedente del server.
+    /** Imposta l'id del post originale. Usato solo per ricostruirlo nei post caricati da salvataggi che non lo
+     *  contenevano.
      *
-     * @param toSet Nuovo prossimo id per la classe Post
+     * @param originalId Id del post originale
      */
-    public static void setMinId(long toSet) {
-        Post.postId = toSet;
+    public void setOriginalId(long originalId) {
+        this.originalId = originalId;
     }
 
     /** Aumenta di 1 il numero di volte che l'algoritmo di reward è stato eseguito per questo post
@@ -82,6 +111,44 @@ public class Post implements Comparable<Post> {
         this.rewardAmount++;
     }
 
+    /** Aggiorna il numero di volte che l'algoritmo di ricompensa è stato eseguito sul post, contando tutti i calcoli
+     *  eseguiti dal server dall'ultimo aggiornamento, compresi quelli in cui il post non ha ricevuto attività
+     *
+     * @param cycle Numero di calcoli delle ricompense eseguiti finora dal server
+     */
+    public synchronized void catchUpRewardAmount(long cycle) {
+        if (cycle > rewardCycle) {
+            rewardAmount += (int) (cycle - rewardCycle);
+            rewardCycle = cycle;
+        }
+    }
+    /** Restituisce il numero di volte che l'algoritmo di ricompensa è stato eseguito sul post + 1, contando anche i
+     *  calcoli eseguiti dal server dall'ultimo aggiornamento, senza modificare il post
+     *
+     * @param cycle Numero di calcoli delle ricompense eseguiti finora dal server
+     * @return Il numero di calcoli + 1
+     */
+    public synchronized int getRewardAmount(long cycle) {
+        return cycle > rewardCycle ? rewardAmount + (int) (cycle - rewardCycle) : rewardAmount;
+    }
+
+    /** Restituisce una copia del post, usata per salvarlo mentre il server continua ad aggiornarne il numero di
+     *  calcoli delle ricompense
+     *
+     * @return La copia del post
+     */
+    public synchronized Post copy() {
+        Post ret = new Post(id, title, content, author, timestamp, rewin, rewinner, rewardAmount, originalId);
+        ret.rewardCycle = rewardCycle;
+        return ret;
+    }
+    public void setRewardCycle(long rewardCycle) {
+        this.rewardCycle = rewardCycle;
+    }
+    public long getRewardCycle() {
+        return rewardCycle;
+    }
+
     // Semplici getter degli attributi
     public String getTitle() {
         return title;
@@ -92,7 +159,7 @@ public class Post implements Comparable<Post> {
     public String getAuthor() {
         return author;
     }
-    public Timestamp getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
     public int getRewardAmount() {
@@ -107,14 +174,16 @@ public class Post implements Comparable<Post> {
     public String getRewinner() {
         return rewinner;
     }
+    public long getOriginalId() {
+        return originalId == null ? id : originalId;
+    }
+    public boolean hasOriginalId() {
+        return originalId != null;
+    }
 
     @Override
     public int compareTo(Post p) {
-        if (p.getTimestamp().equals(timestamp))
-            return 0;
-        else if (p.getTimestamp().before(timestamp))
-            return -1;
-        else
-            return 1;
+        // I post più recenti vengono prima
+        return Long.compare(p.getTimestamp(), timestamp);
     }
 }
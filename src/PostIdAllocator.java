@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Allocatore degli id dei post. Gli id vengono assegnati a partire da un contatore globale senza lock: ogni thread
+ *  riserva dal contatore un blocco di numeri consecutivi e li assegna senza più accedere al contatore finché il
+ *  blocco non è esaurito. Con blocchi di dimensione 1 gli id seguono esattamente l'ordine di creazione dei post;
+ *  con blocchi più grandi diminuisce la contesa sul contatore, ma post creati da thread diversi possono ricevere
+ *  id non in ordine cronologico.
+ *
+ *  Ogni id è formato dal numero di sequenza seguito, nei bit meno significativi, dall'id del nodo che l'ha
+ *  generato, in modo che più istanze del server con id di nodo diversi non generino mai lo stesso id. Con 0 bit di
+ *  nodo (configurazione predefinita) l'id coincide con il numero di sequenza.
+ *
+ *  Il valore del contatore viene salvato insieme allo stato del server: alla ripartenza l'allocazione riprende dopo
+ *  l'ultimo blocco riservato, per cui nessun id viene assegnato due volte.
+ *
+ */
+public class PostIdAllocator {
+    // Prossimo numero di sequenza non ancora riservato
+    private final AtomicLong nextSequence;
+    // Numero di sequenze riservate da un thread ogni volta che esaurisce il proprio blocco
+    private final int blockSize;
+    // Id del nodo
+    private final long nodeId;
+    // Numero di bit dell'id riservati all'id del nodo
+    private final int nodeBits;
+    // Blocco riservato da ogni thread: prossima sequenza da assegnare e fine del blocco (esclusa)
+    private final ThreadLocal<long[]> blocks;
+
+    /** Costruttore dell'allocatore
+     *
+     * @param blockSize Numero di sequenze riservate alla volta da ogni thread
+     * @param nodeId Id del nodo, compreso tra 0 e 2^nodeBits - 1
+     * @param nodeBits Numero di bit riservati all'id del nodo
+     */
+    public PostIdAllocator(int blockSize, long nodeId, int nodeBits) {
+        if (nodeBits < 0 || nodeBits > 16 || nodeId < 0 || nodeId >= (1L << nodeBits))
+            throw new IllegalArgumentException("Id del nodo non valido: " + nodeId + " su " + nodeBits + " bit");
+
+        this.nextSequence = new AtomicLong(0);
+        this.blockSize = Math.max(1, blockSize);
+        this.nodeId = nodeId;
+        this.nodeBits = nodeBits;
+        this.blocks = ThreadLocal.withInitial(() -> new long[2]);
+    }
+
+    /** Assegna un nuovo id
+     *
+     * @return L'id assegnato
+     */
+    public long nextId() {
+        long[] block = blocks.get();
+
+        // Se il blocco del thread è esaurito ne riserva uno nuovo
+        if (block[0] >= block[1]) {
+            block[0] = nextSequence.getAndAdd(blockSize);
+            block[1] = block[0] + blockSize;
+        }
+
+        return (block[0]++ << nodeBits) | nodeId;
+    }
+
+    /** Garantisce che le sequenze successive non possano generare un id minore o uguale a quello passato come
+     *  parametro. Usata durante il caricamento con gli id dei post salvati.
+     *
+     * @param id Id già in uso
+     */
+    public void reserveUpTo(long id) {
+        ensureNextSequence((id >>> nodeBits) + 1);
+    }
+
+    /** Garantisce che il prossimo numero di sequenza riservato sia almeno quello passato come parametro. Usata
+     *  durante il caricamento con il valore salvato del contatore.
+     *
+     * @param sequence Numero di sequenza minimo
+     */
+    public void ensureNextSequence(long sequence) {
+        nextSequence.accumulateAndGet(sequence, Math::max);
+    }
+
+    /** Restituisce il prossimo numero di sequenza non ancora riservato, da salvare insieme allo stato del server
+     *
+     * @return Il prossimo numero di sequenza
+     */
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+}
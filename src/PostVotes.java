@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Riepilogo dei voti ricevuti da un post: il numero di voti positivi e negativi e l'insieme degli id degli utenti
+ *  che hanno già votato. Viene mantenuto accanto alla lista dei voti del post, in modo che controllare se un utente ha già
+ *  votato e mostrare il numero di voti abbia lo stesso costo indipendentemente da quanti voti ha ricevuto il post.
+ *
+ */
+public class PostVotes {
+    // Numero di voti positivi
+    private final AtomicInteger upvotes;
+    // Numero di voti negativi
+    private final AtomicInteger downvotes;
+    // Id degli utenti che hanno votato il post
+    private final IntSet voters;
+
+    public PostVotes() {
+        this(0, 0, new IntSet());
+    }
+
+    private PostVotes(int upvotes, int downvotes, IntSet voters) {
+        this.upvotes = new AtomicInteger(upvotes);
+        this.downvotes = new AtomicInteger(downvotes);
+        this.voters = voters;
+    }
+
+    /** Restituisce una copia del riepilogo, usata per salvarlo mentre il post continua a ricevere voti
+     *
+     * @return La copia del riepilogo
+     */
+    public PostVotes copy() {
+        // I contatori vengono aggiornati dopo l'insieme dei votanti: senza voti in corso sono allineati
+        return new PostVotes(upvotes.get(), downvotes.get(), voters.copy());
+    }
+
+    /** Registra il voto di un utente, se non ha già votato il post
+     *
+     * @param user Id dell'utente che vota
+     * @param positive true se il voto è positivo, false altrimenti
+     * @return true se il voto è stato registrato, false se l'utente aveva già votato
+     */
+    public boolean addVote(int user, boolean positive) {
+        if (!voters.add(user))
+            return false;
+
+        if (positive)
+            upvotes.incrementAndGet();
+        else
+            downvotes.incrementAndGet();
+        return true;
+    }
+
+    public boolean hasVoted(int user) {
+        return voters.contains(user);
+    }
+    public int getUpvotes() {
+        return upvotes.get();
+    }
+    public int getDownvotes() {
+        return downvotes.get();
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Benchmark del calcolo delle ricompense: genera un insieme sintetico di post, ognuno con qualche voto e commento
+ *  dall'ultimo calcolo, e misura il tempo medio di un calcolo (calcolo delle ricompense e accredito agli utenti)
+ *  con diversi numeri di thread.
+ *
+ *  Uso: java RewardBenchmark [numero di post] [numero di utenti] [iterazioni]
+ *
+ */
+public class RewardBenchmark {
+    // Numeri di thread confrontati
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) {
+        int nPosts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int nUsers = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // Preparazione dei dati: ogni post riceve da 1 a 4 voti e da 0 a 2 commenti da utenti casuali
+        WinsomeServerMain server = new WinsomeServerMain();
+        Random random = new Random(42);
+        for (int i=0; i<nPosts; i++) {
+            Post p = new Post(i, "Titolo " + i, "Contenuto " + i, "utente" + random.nextInt(nUsers));
+            server.getPosts().put((long) i, p);
+
+            for (int v = 1 + random.nextInt(4); v > 0; v--)
+                server.getRewardDeltas().addVote(i, "utente" + random.nextInt(nUsers), random.nextInt(4) == 0 ? -1 : 1);
+            for (int c = random.nextInt(3); c > 0; c--)
+                server.getRewardDeltas().addComment(i, "utente" + random.nextInt(nUsers));
+        }
+        RewardDeltas.Cycle cycle = server.getRewardDeltas().startCycle(System.currentTimeMillis());
+
+        System.out.println(nPosts + " post con attivita', " + nUsers + " utenti, " + iterations + " iterazioni");
+        System.out.printf("%-8s %14s %14s%n", "Thread", "Calcolo (ms)", "Accredito (ms)");
+
+        for (int threads : THREADS) {
+            ServerRewards rewards = new ServerRewards(server, 0, 50, threads);
+            long computeNanos = 0, applyNanos = 0;
+
+            // Un calcolo di riscaldamento, non misurato
+            resetUsers(server, nUsers);
+            rewards.applyRewards(rewards.computeRewards(cycle));
+
+            for (int i=0; i<iterations; i++) {
+                resetUsers(server, nUsers);
+
+                long start = System.nanoTime();
+                Map<String, Ledger> credits = rewards.computeRewards(cycle);
+                long computed = System.nanoTime();
+                rewards.applyRewards(credits);
+                long applied = System.nanoTime();
+
+                computeNanos += computed - start;
+                applyNanos += applied - computed;
+            }
+
+            System.out.printf("%-8d %14.1f %14.1f%n", threads, computeNanos / 1e6 / iterations,
+                    applyNanos / 1e6 / iterations);
+        }
+        System.exit(0);
+    }
+
+    /** Sostituisce gli utenti del server con utenti senza transazioni, in modo che ogni iterazione parta dallo
+     *  stesso stato
+     *
+     * @param server Server del benchmark
+     * @param nUsers Numero di utenti
+     */
+    private static void resetUsers(WinsomeServerMain server, int nUsers) {
+        ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        for (int i=0; i<nUsers; i++)
+            users.put("utente" + i, new User("utente" + i, "", new String[0]));
+        server.setUsers(users);
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Attività dei post non ancora considerata dal calcolo delle ricompense. Ogni voto e ogni commento aggiornano, nel
+ *  momento in cui vengono aggiunti, il riepilogo del post originale a cui si riferiscono; i post con un riepilogo
+ *  sono quelli che hanno ricevuto attività dall'ultimo calcolo (post "sporchi"). Un calcolo delle ricompense
+ *  preleva i riepiloghi e visita solo quei post, per cui il suo costo dipende dall'attività recente e non dalla
+ *  quantità totale di voti e commenti presenti nel server.
+ *
+ *  Il prelievo avviene come un taglio di epoca: i riepiloghi vengono sostituiti in blocco con una mappa vuota, per
+ *  cui il calcolo lavora su un insieme di attività fissato e di sua esclusiva proprietà, mentre le nuove attività
+ *  confluiscono nella mappa successiva. Le scritture attendono solo il tempo dello scambio, mai il calcolo.
+ *
+ *  Ogni calcolo ha un numero di sequenza e una data di taglio, fissati al suo inizio. L'attività prelevata resta
+ *  registrata come calcolo in corso finché le ricompense non sono state accreditate: un salvataggio effettuato nel
+ *  frattempo contiene il calcolo in corso, che dopo un riavvio viene rieseguito con lo stesso numero e la stessa
+ *  data, per cui ogni intervallo di attività viene ricompensato esattamente una volta. Lo scambio delle mappe e il
+ *  completamento di un calcolo avvengono sincronizzati sull'oggetto, così come il salvataggio dell'oggetto insieme
+ *  ai portafogli degli utenti.
+ *
+ */
+public class RewardDeltas {
+    // Riepiloghi dei post che hanno ricevuto attività dall'ultimo calcolo, indicizzati per id del post originale
+    private volatile ConcurrentHashMap<Long, PostDelta> dirty;
+    // Numero di calcoli delle ricompense iniziati, cioè numero di sequenza dell'ultimo calcolo iniziato
+    private final AtomicLong cycle;
+    // Attività prelevata dal calcolo in corso, null se non c'è un calcolo in corso
+    private ConcurrentHashMap<Long, PostDelta> inFlight;
+    // Data di taglio del calcolo in corso
+    private long inFlightCutoff;
+    // Numero di sequenza dell'ultimo calcolo completato
+    private long completedCycle;
+    // Data di taglio dell'ultimo calcolo completato, 0 se non ne è mai stato completato uno
+    private long lastCutoff;
+    // Lock del taglio di epoca: le scritture lo prendono in lettura, lo scambio della mappa in scrittura
+    private final transient ReentrantReadWriteLock epoch;
+
+    /** Attività ricevuta da un post dall'ultimo calcolo delle ricompense
+     *
+     */
+    public static class PostDelta {
+        // Somma dei valori dei nuovi voti, positivi e negativi
+        private int rating;
+        // Numero di nuovi voti positivi
+        private int positiveVotes;
+        // Numero di nuovi commenti
+        private int comments;
+        // Numero di nuovi voti positivi di ogni utente
+        private final HashMap<String, Integer> raters;
+        // Numero di nuovi commenti di ogni utente
+        private final HashMap<String, Integer> commenters;
+
+        public PostDelta() {
+            raters = new HashMap<>();
+            commenters = new HashMap<>();
+        }
+
+        private PostDelta(PostDelta other) {
+            rating = other.rating;
+            positiveVotes = other.positiveVotes;
+            comments = other.comments;
+            raters = new HashMap<>(other.raters);
+            commenters = new HashMap<>(other.commenters);
+        }
+
+        public int getRating() {return rating;}
+        public int getPositiveVotes() {return positiveVotes;}
+        public int getComments() {return comments;}
+        public Map<String, Integer> getRaters() {return raters;}
+        public Map<String, Integer> getCommenters() {return commenters;}
+    }
+
+    /** Calcolo delle ricompense: numero di sequenza, data di taglio e attività da considerare
+     *
+     */
+    public static class Cycle {
+        // Numero di sequenza del calcolo
+        private final long sequence;
+        // Data di inizio del calcolo, usata come data delle transazioni
+        private final long cutoff;
+        // Riepiloghi dei post che hanno ricevuto attività, indicizzati per id del post originale
+        private final Map<Long, PostDelta> deltas;
+
+        public Cycle(long sequence, long cutoff, Map<Long, PostDelta> deltas) {
+            this.sequence = sequence;
+            this.cutoff = cutoff;
+            this.deltas = deltas;
+        }
+
+        public long getSequence() {return sequence;}
+        public long getCutoff() {return cutoff;}
+        public Map<Long, PostDelta> getDeltas() {return deltas;}
+    }
+
+    public RewardDeltas() {
+        dirty = new ConcurrentHashMap<>();
+        cycle = new AtomicLong(0);
+        epoch = new ReentrantReadWriteLock();
+    }
+
+    /** Restituisce una copia dell'attività e dello stato dei calcoli, usata per salvarli mentre il server continua a
+     *  modificarli. Non devono esserci voti o commenti in corso di registrazione.
+     *
+     * @return La copia
+     */
+    public synchronized RewardDeltas copy() {
+        RewardDeltas ret = new RewardDeltas();
+        ret.dirty = copyDeltas(dirty);
+        ret.cycle.set(cycle.get());
+        ret.inFlight = inFlight == null ? null : copyDeltas(inFlight);
+        ret.inFlightCutoff = inFlightCutoff;
+        ret.completedCycle = completedCycle;
+        ret.lastCutoff = lastCutoff;
+        return ret;
+    }
+
+    /** Copia una mappa di riepiloghi
+     *
+     * @param deltas Riepiloghi da copiare
+     * @return La copia
+     */
+    private static ConcurrentHashMap<Long, PostDelta> copyDeltas(ConcurrentHashMap<Long, PostDelta> deltas) {
+        ConcurrentHashMap<Long, PostDelta> ret = new ConcurrentHashMap<>(Math.max(16, deltas.size()));
+        for (Map.Entry<Long, PostDelta> entry : deltas.entrySet())
+            ret.put(entry.getKey(), new PostDelta(entry.getValue()));
+        return ret;
+    }
+
+    /** Registra un nuovo voto
+     *
+     * @param post Id del post originale votato
+     * @param user Utente che ha votato
+     * @param value Valore del voto
+     */
+    public void addVote(long post, String user, int value) {
+        // Il riepilogo viene modificato solo all'interno di compute, in modo atomico rispetto agli altri scrittori
+        epoch.readLock().lock();
+        try {
+            dirty.compute(post, (k, delta) -> {
+                if (delta == null)
+                    delta = new PostDelta();
+
+                delta.rating += value;
+                if (value > 0) {
+                    delta.positiveVotes++;
+                    delta.raters.merge(user, 1, Integer::sum);
+                }
+                return delta;
+            });
+        } finally {
+            epoch.readLock().unlock();
+        }
+    }
+
+    /** Registra un nuovo commento
+     *
+     * @param post Id del post originale commentato
+     * @param user Utente che ha commentato
+     */
+    public void addComment(long post, String user) {
+        epoch.readLock().lock();
+        try {
+            dirty.compute(post, (k, delta) -> {
+                if (delta == null)
+                    delta = new PostDelta();
+
+                delta.comments++;
+                delta.commenters.merge(user, 1, Integer::sum);
+                return delta;
+            });
+        } finally {
+            epoch.readLock().unlock();
+        }
+    }
+
+    /** Dimentica l'attività di un post eliminato
+     *
+     * @param post Id del post
+     */
+    public void removePost(long post) {
+        // Se l'attività è già stata prelevata, è il calcolo a ignorare il post eliminato
+        dirty.remove(post);
+    }
+
+    /** Inizia un nuovo calcolo delle ricompense, prelevando l'attività accumulata finora. L'attività registrata
+     *  durante il calcolo viene considerata dal calcolo successivo. Se c'è un calcolo non completato, caricato da un
+     *  salvataggio, viene restituito quello.
+     *
+     * @param cutoff Data di inizio del calcolo
+     * @return Il calcolo da eseguire
+     */
+    public synchronized Cycle startCycle(long cutoff) {
+        if (inFlight == null) {
+            // Attende le scritture in corso sulla mappa corrente, poi la sostituisce
+            epoch.writeLock().lock();
+            try {
+                inFlight = dirty;
+                inFlightCutoff = cutoff;
+                dirty = new ConcurrentHashMap<>();
+                cycle.incrementAndGet();
+            } finally {
+                epoch.writeLock().unlock();
+            }
+        }
+        return new Cycle(cycle.get(), inFlightCutoff, inFlight);
+    }
+
+    /** Riesegue l'inizio di un calcolo registrato nel log. I calcoli senza attività non vengono registrati, per cui
+     *  il numero dei calcoli viene prima riallineato a quello del calcolo registrato.
+     *
+     * @param sequence Numero di sequenza del calcolo registrato
+     * @param cutoff Data di inizio del calcolo
+     * @return Il calcolo da eseguire
+     */
+    public synchronized Cycle startCycle(long sequence, long cutoff) {
+        if (inFlight == null && cycle.get() < sequence - 1)
+            cycle.set(sequence - 1);
+        return startCycle(cutoff);
+    }
+
+    /** Completa un calcolo delle ricompense, eseguendo l'accredito e registrando il calcolo come completato in
+     *  un'unica operazione rispetto ai salvataggi
+     *
+     * @param completed Calcolo completato
+     * @param apply Accredito delle ricompense calcolate
+     */
+    public synchronized void completeCycle(Cycle completed, Runnable apply) {
+        apply.run();
+        inFlight = null;
+        completedCycle = completed.getSequence();
+        lastCutoff = completed.getCutoff();
+    }
+
+    /** Restituisce il numero di calcoli delle ricompense iniziati finora
+     *
+     * @return Il numero di calcoli
+     */
+    public long getCycle() {
+        return cycle.get();
+    }
+    /** Restituisce il calcolo in corso, cioè iniziato e non ancora completato
+     *
+     * @return Il calcolo in corso, null se non c'è
+     */
+    public synchronized Cycle getPendingCycle() {
+        return inFlight == null ? null : new Cycle(cycle.get(), inFlightCutoff, inFlight);
+    }
+    public synchronized long getCompletedCycle() {
+        return completedCycle;
+    }
+    public synchronized long getLastCutoff() {
+        return lastCutoff;
+    }
+}
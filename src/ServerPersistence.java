@@ -1,107 +1,706 @@
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /** ServerPersistence è la classe, pensata per essere usata come thread indipendente, che si occupa di salvare lo stato
  *  del server a intervalli di tempo regolari. La classe mette inoltre a disposizione un metodo statico usato per
  *  caricare lo stato del server da file in formato json (generato precedentemente dalla stessa ServerPersistence).
+ *  Le modifiche eseguite tra un salvataggio e l'altro vengono registrate nel log delle modifiche, che al caricamento
+ *  viene riapplicato a partire dal segmento indicato nel salvataggio.
  */
 public class ServerPersistence extends Thread {
     // Intervallo di salvataggio del server
     private final long updateRateMillis;
-    // Nome del file di salvataggio
+    // Nome base dei file degli snapshot, seguito dal numero dello snapshot
     private final String fileName;
+    // Numero di snapshot mantenuti su disco
+    private final int maxGenerations;
+    // Gli snapshot vengono scritti in formato binario?
+    private final boolean binary;
+    // Versione dello stato salvata dall'ultimo snapshot, -1 se non è ancora stato scritto uno snapshot
+    private long savedVersion;
+    // Ultimo snapshot binario scritto, da cui copiare le sezioni non modificate; null se non ce n'è uno
+    private Path lastSnapshot;
     // Server da salvare
     private final WinsomeServerMain server;
 
+    // Dimensione del buffer di scrittura degli snapshot
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    // Dimensione del buffer di lettura usato per verificare gli snapshot
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
     /** Semplice costruttore in cui si assegnano gli attributi necessari
      *
      * @param toSave Server da salvare
      * @param fileName Nome del file di salvataggio
      * @param updateRateMillis Intervallo di salvataggio
+     * @param maxGenerations Numero di snapshot mantenuti su disco
+     * @param binary true per scrivere gli snapshot in formato binario, false per il formato json
      */
-    public ServerPersistence(WinsomeServerMain toSave, String fileName, long updateRateMillis) {
+    public ServerPersistence(WinsomeServerMain toSave, String fileName, long updateRateMillis, int maxGenerations,
+                             boolean binary) {
         this.updateRateMillis = updateRateMillis;
         this.server = toSave;
         this.fileName = fileName;
+        this.maxGenerations = maxGenerations;
+        this.binary = binary;
+        this.savedVersion = -1;
     }
 
-    /** Carica il server passato come parametro
+    /** Carica il server passato come parametro dallo snapshot integro più recente. Uno snapshot non integro, ad
+     *  esempio perché il server si è interrotto mentre veniva scritto, viene scartato a favore del precedente; se non
+     *  ci sono snapshot viene caricato il salvataggio scritto dalle versioni precedenti, se presente.
      *
      * @param fileName Nome del file conenente i dati del server
      * @param toLoad Nome del server i cui dati devono essere recuperati
      */
     public static void loadServer(String fileName, WinsomeServerMain toLoad) {
+        List<Long> generations = listGenerations(fileName);
+        for (int i=generations.size()-1; i>=0; i--) {
+            String name = generationName(fileName, generations.get(i));
+            if (isValid(name)) {
+                load(name, toLoad);
+                return;
+            }
+            System.err.println("Snapshot " + name + " non integro, viene caricato lo snapshot precedente");
+        }
+        load(fileName, toLoad);
+    }
+
+    /** Carica il server da un singolo snapshot
+     *
+     * @param fileName Nome del file contenente lo snapshot
+     * @param toLoad Server da caricare
+     */
+    private static void load(String fileName, WinsomeServerMain toLoad) {
         try {
-            JSONObject json = new JSONObject(Files.lines(Paths.get(fileName)).collect(Collectors.joining("")));
-            Gson gson = new Gson();
-
-            // Carica utenti
-            Type type = new TypeToken<ConcurrentHashMap<String, User>>(){}.getType();
-            if (json.has("users"))
-                toLoad.setUsers(gson.fromJson(json.getString("users"), type));
-
-            // Carica following e followers
-            type = new TypeToken<ConcurrentHashMap<String, Vector<String>>>(){}.getType();
-            if (json.has("following"))
-                toLoad.setFollowing(gson.fromJson(json.getString("following"), type));
-            if (json.has("followers"))
-                toLoad.setFollowers(gson.fromJson(json.getString("followers"), type));
-
-            // Carica posts
-            type = new TypeToken<ConcurrentHashMap<Long, Post>>(){}.getType();
-            if (json.has("posts"))
-                toLoad.setPosts(gson.fromJson(json.getString("posts"), type));
-            // Carica voti
-            type = new TypeToken<ConcurrentHashMap<Long, Vector<Vote>>>(){}.getType();
-            if (json.has("votes"))
-                toLoad.setVotes(gson.fromJson(json.getString("votes"), type));
-            // Carica commenti
-            type = new TypeToken<ConcurrentHashMap<Long, Vector<Comment>>>(){}.getType();
-            if (json.has("comments"))
-                toLoad.setComments(gson.fromJson(json.getString("comments"), type));
-            // Carica rewins
-            type = new TypeToken<ConcurrentHashMap<Long, Vector<Long>>>(){}.getType();
-            if (json.has("rewins"))
-                toLoad.setRewins(gson.fromJson(json.getString("rewins"), type));
+            toLoad.getMutationLog().setReplayFrom(readSnapshot(fileName, toLoad));
         }
         catch (IOException e) {
             System.err.println("Errore di lettura del file di persistenza, il server verra' caricato senza dati precedenti");
-        } catch (JSONException e) {
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
             System.err.println("File di persistenza corrotto, il server verra' caricato con informazioni parziali.");
         }
     }
 
-    public void saveServer() {
-        // Prepara utility per json
-        JSONObject json = new JSONObject();
-        Gson gson = new Gson();
+    /** Carica il server da uno snapshot, in formato json (letto in streaming e convertito in parallelo, vedi
+     *  SnapshotLoader) o binario (vedi BinarySnapshot), riconosciuto dai primi byte del file
+     *
+     * @param fileName Nome del file contenente lo snapshot
+     * @param toLoad Server da caricare
+     * @return Il primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di lettura del file
+     * @throws JsonParseException Se lo snapshot json non è valido
+     * @throws IllegalStateException Se lo snapshot non è valido
+     */
+    public static long readSnapshot(String fileName, WinsomeServerMain toLoad) throws IOException {
+        if (BinarySnapshot.isBinary(fileName))
+            return BinarySnapshot.load(fileName, toLoad);
+        return SnapshotLoader.load(fileName, toLoad);
+    }
+
+    /** Verifica l'integrità di uno snapshot: l'ultima riga del file contiene il checksum CRC32 e la lunghezza in byte
+     *  del contenuto che la precede, e lo snapshot è integro se entrambi corrispondono.
+     *
+     * @param fileName Nome del file contenente lo snapshot
+     * @return true se lo snapshot è integro, false altrimenti
+     */
+    private static boolean isValid(String fileName) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long[] trailer = readTrailer(channel);
+            if (trailer == null)
+                return false;
+            long checksum = trailer[0];
+            long length = trailer[1];
 
-        // Serializza oggetti principali
-        json.put("users", gson.toJson(server.getUsers()));
-        json.put("followers", gson.toJson(server.getFollowers()));
-        json.put("following", gson.toJson(server.getFollowing()));
-        json.put("posts", gson.toJson(server.getPosts()));
-        json.put("votes", gson.toJson(server.getVotes()));
-        json.put("comments", gson.toJson(server.getComments()));
-        json.put("rewins", gson.toJson(server.getRewins()));
-
-        // Salva su file
-        try (FileWriter writer = new FileWriter(fileName)){
-            writer.write(json.toString(4));
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            channel.position(0);
+            for (long read = 0; read < length; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - read));
+                int n = channel.read(buffer);
+                if (n < 0)
+                    return false;
+                buffer.flip();
+                crc.update(buffer);
+                read += n;
+            }
+            return crc.getValue() == checksum;
         } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Restituisce la lunghezza del contenuto di uno snapshot, escludendo la riga finale con il checksum
+     *
+     * @param channel Canale del file dello snapshot
+     * @return La lunghezza del contenuto, o la dimensione del file se lo snapshot non ha la riga finale
+     * @throws IOException In caso di errore di lettura
+     */
+    static long contentLength(FileChannel channel) throws IOException {
+        long[] trailer = readTrailer(channel);
+        return trailer == null ? channel.size() : trailer[1];
+    }
+
+    /** Legge la riga finale di uno snapshot
+     *
+     * @param channel Canale del file dello snapshot
+     * @return Checksum e lunghezza del contenuto, null se la riga finale manca o non corrisponde alla dimensione
+     *         del file
+     * @throws IOException In caso di errore di lettura
+     */
+    private static long[] readTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+
+        // La riga finale ha lunghezza limitata
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, 64));
+        channel.read(tail, size - tail.capacity());
+        String trailer = new String(tail.array(), 0, tail.position(), StandardCharsets.ISO_8859_1);
+        if (!trailer.endsWith("\n"))
+            return null;
+        trailer = trailer.substring(trailer.lastIndexOf('\n', trailer.length() - 2) + 1, trailer.length() - 1);
+        String[] fields = trailer.split(" ");
+        if (fields.length != 2)
+            return null;
+
+        try {
+            long checksum = Long.parseLong(fields[0], 16);
+            long length = Long.parseLong(fields[1]);
+            if (length + trailer.length() + 2 != size)
+                return null;
+            return new long[] {checksum, length};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Restituisce i numeri degli snapshot presenti, in ordine crescente. Il numero di uno snapshot è il primo
+     *  segmento del log delle modifiche successive allo snapshot.
+     *
+     * @param fileName Nome base dei file degli snapshot
+     * @return I numeri degli snapshot
+     */
+    private static List<Long> listGenerations(String fileName) {
+        File base = new File(fileName).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        List<Long> ret = new ArrayList<>();
+
+        File[] files = base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.getName().startsWith(prefix))
+                    continue;
+                try {
+                    ret.add(Long.parseLong(f.getName().substring(prefix.length())));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static String generationName(String fileName, long generation) {
+        return fileName + "." + generation;
+    }
+
+    /** Riapplica al server caricato le modifiche registrate nel log dopo l'ultimo salvataggio, nell'ordine in cui
+     *  sono state eseguite. Le modifiche vengono applicate alle sole strutture dati salvate: gli indici derivati
+     *  (tag, timeline) vengono costruiti dopo.
+     *
+     * @param toLoad Server caricato dall'ultimo salvataggio
+     */
+    public static void replayLog(WinsomeServerMain toLoad) {
+        Gson gson = loadingGson(toLoad.getUserIds());
+
+        try {
+            long count = toLoad.getMutationLog().replay(record -> applyRecord(toLoad, gson, record));
+            if (count > 0)
+                System.out.println("Riapplicate " + count + " modifiche dal log");
+        } catch (IOException e) {
+            System.err.println("Errore di lettura del log delle modifiche, le modifiche successive all'ultimo " +
+                    "salvataggio potrebbero essere incomplete");
+        }
+    }
+
+    /** Riapplica una modifica registrata nel log
+     *
+     * @param server Server da modificare
+     * @param gson Oggetto Gson usato per il caricamento
+     * @param record Modifica da riapplicare
+     */
+    private static void applyRecord(WinsomeServerMain server, Gson gson, JsonObject record) {
+        UserIds userIds = server.getUserIds();
+
+        switch (record.get("type").getAsString()) {
+            case MutationLog.SIGNUP: {
+                String username = userIds.canonical(record.get("username").getAsString());
+                User user = new User(username, record.get("password").getAsString(),
+                        gson.fromJson(record.get("tags"), String[].class));
+                if (server.getUsers().putIfAbsent(username, user) == null)
+                    userIds.intern(username);
+                break;
+            }
+            case MutationLog.FOLLOW:
+                server.getFollowGraph().follow(gson.fromJson(record.get("follower"), String.class),
+                        gson.fromJson(record.get("followed"), String.class));
+                break;
+            case MutationLog.UNFOLLOW:
+                server.getFollowGraph().unfollow(gson.fromJson(record.get("follower"), String.class),
+                        gson.fromJson(record.get("followed"), String.class));
+                break;
+            case MutationLog.POST: {
+                Post post = gson.fromJson(record.get("post"), Post.class);
+                server.getPosts().put(post.getId(), post);
+                server.getAuthorPost().computeIfAbsent(post.getAuthor(), k -> new Vector<>()).add(post.getId());
+                server.getPostIds().reserveUpTo(post.getId());
+                break;
+            }
+            case MutationLog.REWIN: {
+                Post rewin = gson.fromJson(record.get("post"), Post.class);
+                server.getPosts().put(rewin.getId(), rewin);
+                server.getRewins().computeIfAbsent(rewin.getOriginalId(), k -> new Vector<>()).add(rewin.getId());
+                server.getUserRewins().computeIfAbsent(rewin.getRewinner(), k -> new ConcurrentHashMap<>())
+                        .put(rewin.getOriginalId(), rewin.getId());
+                server.getPostIds().reserveUpTo(rewin.getId());
+                break;
+            }
+            case MutationLog.RATE: {
+                long post = record.get("post").getAsLong();
+                Vote vote = gson.fromJson(record.get("vote"), Vote.class);
+                PostVotes counters = server.getVoteCounters().computeIfAbsent(post, k -> new PostVotes());
+                if (counters.addVote(userIds.intern(vote.getUser()), vote.isPositive())) {
+                    server.getVotes().computeIfAbsent(post, k -> new Vector<>()).add(vote);
+                    server.getRewardDeltas().addVote(post, vote.getUser(), vote.getValue());
+                }
+                break;
+            }
+            case MutationLog.COMMENT: {
+                long post = record.get("post").getAsLong();
+                Comment comment = gson.fromJson(record.get("comment"), Comment.class);
+                server.getComments().computeIfAbsent(post, k -> new Vector<>()).add(comment);
+                server.getRewardDeltas().addComment(post, comment.getUser());
+                break;
+            }
+            case MutationLog.DELETE:
+                replayDelete(server, record.get("post").getAsLong());
+                break;
+            case MutationLog.CYCLE_START:
+                server.getRewardDeltas().startCycle(record.get("sequence").getAsLong(),
+                        record.get("cutoff").getAsLong());
+                break;
+            case MutationLog.CYCLE_IDLE: {
+                RewardDeltas rewardDeltas = server.getRewardDeltas();
+                RewardDeltas.Cycle cycle = rewardDeltas.startCycle(record.get("sequence").getAsLong(),
+                        record.get("cutoff").getAsLong());
+                if (cycle.getSequence() == record.get("sequence").getAsLong())
+                    rewardDeltas.completeCycle(cycle, () -> {});
+                break;
+            }
+            case MutationLog.REWARDS: {
+                RewardDeltas.Cycle cycle = server.getRewardDeltas().getPendingCycle();
+                if (cycle == null || cycle.getSequence() != record.get("sequence").getAsLong())
+                    break;
+
+                // Il calcolo aggiorna il numero di calcoli subiti dai post con attività
+                for (Long id : cycle.getDeltas().keySet()) {
+                    Post p = server.getPosts().get(id);
+                    if (p != null)
+                        p.catchUpRewardAmount(cycle.getSequence());
+                }
+                Type type = new TypeToken<Map<String, Ledger>>(){}.getType();
+                Map<String, Ledger> credits = gson.fromJson(record.get("credits"), type);
+                server.getRewardDeltas().completeCycle(cycle, () -> {
+                    for (Map.Entry<String, Ledger> entry : credits.entrySet()) {
+                        User user = server.getUsers().get(entry.getKey());
+                        if (user != null)
+                            user.addRewards(entry.getValue());
+                    }
+                });
+                break;
+            }
+            default:
+                System.err.println("Modifica sconosciuta nel log: " + record.get("type"));
+        }
+    }
+
+    /** Riapplica l'eliminazione di un post: se il post è un rewin viene eliminato solo il rewin, altrimenti
+     *  vengono eliminati anche voti, commenti e rewin del post
+     *
+     * @param server Server da modificare
+     * @param id Id del post eliminato
+     */
+    private static void replayDelete(WinsomeServerMain server, long id) {
+        Post toDelete = server.getPosts().remove(id);
+        if (toDelete == null)
+            return;
+
+        if (toDelete.isRewin()) {
+            Vector<Long> postRewins = server.getRewins().get(toDelete.getOriginalId());
+            if (postRewins != null)
+                postRewins.remove(id);
+            Map<Long, Long> ownRewins = server.getUserRewins().get(toDelete.getRewinner());
+            if (ownRewins != null)
+                ownRewins.remove(toDelete.getOriginalId(), id);
+            return;
+        }
+
+        Vector<Long> ownPosts = server.getAuthorPost().get(toDelete.getAuthor());
+        if (ownPosts != null)
+            ownPosts.remove(id);
+        server.getVotes().remove(id);
+        server.getVoteCounters().remove(id);
+        server.getRewardDeltas().removePost(id);
+        server.getComments().remove(id);
+
+        Vector<Long> postRewins = server.getRewins().remove(id);
+        if (postRewins != null) {
+            for (Long r : postRewins) {
+                Post rewin = server.getPosts().remove(r);
+                if (rewin != null) {
+                    Map<Long, Long> ownRewins = server.getUserRewins().get(rewin.getRewinner());
+                    if (ownRewins != null)
+                        ownRewins.remove(id, r);
+                }
+            }
+        }
+    }
+
+    /** Crea l'oggetto Gson usato per il caricamento. Leggendo uno username presente nel dizionario degli utenti
+     *  restituisce l'istanza condivisa dal dizionario invece di una nuova stringa; inoltre accetta, nei campi di tipo
+     *  long, le date in formato testuale scritte dalle versioni precedenti, in cui le date di post, voti, commenti e
+     *  transazioni erano oggetti Timestamp.
+     *
+     * @param userIds Dizionario degli utenti
+     * @return L'oggetto Gson da usare per il caricamento
+     */
+    static Gson loadingGson(UserIds userIds) {
+        // Adapter delle date di Gson, lo stesso con cui venivano scritti i Timestamp
+        TypeAdapter<Date> dates = new Gson().getAdapter(Date.class);
+
+        return new GsonBuilder().registerTypeAdapter(long.class, new TypeAdapter<Long>() {
+            @Override
+            public void write(JsonWriter out, Long value) throws IOException {
+                out.value(value);
+            }
+
+            @Override
+            public Long read(JsonReader in) throws IOException {
+                if (in.peek() != JsonToken.STRING)
+                    return in.nextLong();
+
+                String value = in.nextString();
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return dates.fromJsonTree(new JsonPrimitive(value)).getTime();
+                }
+            }
+        }).registerTypeAdapter(String.class, new TypeAdapter<String>() {
+            @Override
+            public void write(JsonWriter out, String value) throws IOException {
+                out.value(value);
+            }
+
+            @Override
+            public String read(JsonReader in) throws IOException {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                return userIds.canonical(in.nextString());
+            }
+        }).create();
+    }
+
+    /** Salva lo stato del server (snapshot). Mentre nessuna operazione modifica lo stato viene aperto un nuovo
+     *  segmento del log delle modifiche e viene presa una copia delle sezioni da salvare; la copia viene poi
+     *  serializzata mentre il server continua a servire le richieste, che restano bloccate solo per il tempo della
+     *  copia e non per quello della scrittura.
+     *
+     *  Lo snapshot viene scritto su un file temporaneo, sincronizzato su disco e solo allora rinominato con il nome
+     *  definitivo, per cui un'interruzione durante la scrittura non danneggia gli snapshot precedenti. Vengono
+     *  mantenuti gli ultimi snapshot, insieme ai segmenti del log necessari per ripartire da ognuno di essi: se
+     *  l'ultimo snapshot risulta danneggiato, il caricamento riparte dal precedente e riapplica le modifiche
+     *  successive.
+     *
+     *  Se lo stato non è stato modificato dall'ultimo snapshot il salvataggio non viene eseguito. Altrimenti, nel
+     *  formato binario vengono serializzate solo le sezioni modificate, mentre le altre vengono copiate dall'ultimo
+     *  snapshot; nel formato json lo snapshot viene sempre scritto per intero.
+     *
+     */
+    public synchronized void saveServer() {
+        MutationLog log = server.getMutationLog();
+        ChangeTracker changes = server.getChangeTracker();
+        long segment, version;
+        Set<ChangeTracker.Section> dirty;
+        WinsomeServerMain state;
+        Path temp = Paths.get(fileName + ".tmp");
+
+        server.getCheckpointLock().writeLock().lock();
+        try {
+            version = changes.getVersion();
+            // L'ultimo snapshot e il log delle modifiche contengono già tutto lo stato
+            if (version == savedVersion)
+                return;
+
+            // Le modifiche successive vengono registrate in un nuovo segmento del log
+            segment = log.rotate();
+            // Senza uno snapshot binario precedente da cui copiare, vengono salvate tutte le sezioni
+            dirty = lastSnapshot == null ? EnumSet.allOf(ChangeTracker.Section.class) :
+                    changes.getDirty(savedVersion);
+            state = copyState(server, dirty);
+        } catch (IOException e) {
+            System.err.println("Errore di scrittura del salvataggio");
             e.printStackTrace();
+            return;
+        } finally {
+            server.getCheckpointLock().writeLock().unlock();
+        }
+
+        try {
+            writeSnapshot(state, temp, segment, binary, lastSnapshot, dirty);
+        } catch (IOException e) {
+            System.err.println("Errore di scrittura del salvataggio");
+            e.printStackTrace();
+            return;
+        }
+
+        Path snapshot = Paths.get(generationName(fileName, segment));
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+        } catch (IOException e) {
+            System.err.println("Errore di scrittura del salvataggio");
+            e.printStackTrace();
+            return;
+        }
+        savedVersion = version;
+        lastSnapshot = binary ? snapshot : null;
+
+        // Elimina gli snapshot più vecchi e i segmenti del log inclusi nel più vecchio di quelli mantenuti
+        List<Long> generations = listGenerations(fileName);
+        int toDelete = generations.size() - maxGenerations;
+        for (int i=0; i<toDelete; i++) {
+            if (!new File(generationName(fileName, generations.get(i))).delete())
+                System.err.println("Impossibile eliminare lo snapshot " + generationName(fileName, generations.get(i)));
+        }
+        log.deleteSegmentsBefore(generations.get(Math.max(0, toDelete)));
+        // Il salvataggio scritto dalle versioni precedenti non serve più una volta mantenuti abbastanza snapshot
+        if (toDelete >= 0)
+            new File(fileName).delete();
+    }
+
+    /** Copia le sezioni dello stato del server da salvare, in un server separato che viene poi serializzato senza
+     *  bloccare le richieste. Va chiamata mentre nessuna operazione modifica lo stato. Gli oggetti che non vengono
+     *  più modificati dopo la creazione (voti, commenti) sono condivisi, mentre vengono copiati i contenitori e gli
+     *  oggetti modificabili. Le sezioni non modificate restano vuote: vengono copiate dallo snapshot precedente.
+     *
+     * @param server Server da copiare
+     * @param sections Sezioni da copiare
+     * @return Il server contenente la copia
+     */
+    private static WinsomeServerMain copyState(WinsomeServerMain server, Set<ChangeTracker.Section> sections) {
+        WinsomeServerMain ret = new WinsomeServerMain();
+        // Dizionario e contatore degli id dei post vengono sempre salvati
+        ret.getUserIds().copyFrom(server.getUserIds());
+        ret.getPostIds().ensureNextSequence(server.getPostIds().getNextSequence());
+
+        if (sections.contains(ChangeTracker.Section.USERS)) {
+            ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>(server.getUsers().size());
+            for (Map.Entry<String, User> entry : server.getUsers().entrySet())
+                users.put(entry.getKey(), entry.getValue().copy());
+            ret.setUsers(users);
+        }
+        if (sections.contains(ChangeTracker.Section.REWARDS))
+            ret.setRewardDeltas(server.getRewardDeltas().copy());
+        if (sections.contains(ChangeTracker.Section.FOLLOWS))
+            ret.getFollowGraph().copyFrom(server.getFollowGraph());
+        if (sections.contains(ChangeTracker.Section.POSTS)) {
+            // I post vengono inseriti direttamente, senza costruire l'indice dei post degli autori che la copia non usa
+            for (Map.Entry<Long, Post> entry : server.getPosts().entrySet())
+                ret.getPosts().put(entry.getKey(), entry.getValue().copy());
+        }
+        if (sections.contains(ChangeTracker.Section.VOTES)) {
+            ret.setVotes(copyVectors(server.getVotes()));
+            ConcurrentHashMap<Long, PostVotes> counters = new ConcurrentHashMap<>(server.getVoteCounters().size());
+            for (Map.Entry<Long, PostVotes> entry : server.getVoteCounters().entrySet())
+                counters.put(entry.getKey(), entry.getValue().copy());
+            ret.setVoteCounters(counters);
+        }
+        if (sections.contains(ChangeTracker.Section.COMMENTS))
+            ret.setComments(copyVectors(server.getComments()));
+        if (sections.contains(ChangeTracker.Section.REWINS)) {
+            ret.setRewins(copyVectors(server.getRewins()));
+            ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> userRewins =
+                    new ConcurrentHashMap<>(server.getUserRewins().size());
+            for (Map.Entry<String, ConcurrentHashMap<Long, Long>> entry : server.getUserRewins().entrySet())
+                userRewins.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue()));
+            ret.setUserRewins(userRewins);
+        }
+        return ret;
+    }
+
+    /** Copia una mappa di liste, copiando le liste ma non i loro elementi
+     *
+     * @param map Mappa da copiare
+     * @return La copia
+     */
+    private static <K, V> ConcurrentHashMap<K, Vector<V>> copyVectors(ConcurrentHashMap<K, Vector<V>> map) {
+        ConcurrentHashMap<K, Vector<V>> ret = new ConcurrentHashMap<>(map.size());
+        for (Map.Entry<K, Vector<V>> entry : map.entrySet())
+            ret.put(entry.getKey(), new Vector<>(entry.getValue()));
+        return ret;
+    }
+
+    /** Sincronizza su disco la directory degli snapshot, così che il cambio di nome dello snapshot appena scritto
+     *  sopravviva a un'interruzione del sistema. Non tutti i sistemi permettono di aprire una directory: in quel caso
+     *  la sincronizzazione viene lasciata al sistema operativo.
+     *
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(Paths.get(fileName).toAbsolutePath().getParent(),
+                StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    /** Scrive uno snapshot del server, in formato json o binario. Allo snapshot segue una riga con il checksum CRC32
+     *  e la lunghezza in byte, e il file viene sincronizzato su disco prima di essere chiuso. Il server non deve
+     *  essere modificato durante la scrittura.
+     *
+     * @param server Server da salvare
+     * @param path File su cui scrivere lo snapshot
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @param binary true per il formato binario, false per il formato json
+     * @throws IOException In caso di errore di scrittura
+     */
+    public static void writeSnapshot(WinsomeServerMain server, Path path, long segment, boolean binary)
+            throws IOException {
+        writeSnapshot(server, path, segment, binary, null, EnumSet.allOf(ChangeTracker.Section.class));
+    }
+
+    /** Scrive uno snapshot del server a partire dallo snapshot precedente: nel formato binario le sezioni non
+     *  modificate vengono copiate da questo (vedi BinarySnapshot)
+     *
+     * @param server Server da salvare
+     * @param path File su cui scrivere lo snapshot
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @param binary true per il formato binario, false per il formato json
+     * @param previous Snapshot binario precedente, null per scrivere tutte le sezioni
+     * @param dirty Sezioni modificate dopo lo snapshot precedente
+     * @throws IOException In caso di errore di scrittura
+     */
+    private static void writeSnapshot(WinsomeServerMain server, Path path, long segment, boolean binary,
+                                      Path previous, Set<ChangeTracker.Section> dirty) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Lo stream non viene chiuso qui: chiuderlo chiuderebbe anche il canale, che serve ancora
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), WRITE_BUFFER_SIZE), new CRC32());
+            if (binary)
+                BinarySnapshot.write(server, checked, segment, previous, dirty);
+            else
+                writeJson(server, checked, segment);
+            checked.flush();
+
+            // Riga finale con checksum e lunghezza dello snapshot
+            long length = channel.position();
+            byte[] trailer = ("\n" + Long.toHexString(checked.getChecksum().getValue()) + " " + length + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            channel.write(ByteBuffer.wrap(trailer));
+            channel.force(true);
+        }
+    }
+
+    /** Scrive lo snapshot json visitando una sola volta le strutture dati del server: ogni sezione viene scritta
+     *  direttamente sul file man mano che viene visitata, senza costruirne una rappresentazione in memoria, per cui
+     *  la memoria usata dal salvataggio non dipende dalla quantità di dati.
+     *
+     * @param server Server da salvare
+     * @param stream Stream su cui scrivere lo snapshot
+     * @param segment Primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di scrittura
+     */
+    private static void writeJson(WinsomeServerMain server, OutputStream stream, long segment) throws IOException {
+        Gson gson = new Gson();
+        JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8),
+                WRITE_BUFFER_SIZE));
+
+        out.beginObject();
+        out.name("logSegment").value(segment);
+        out.name("nextPostSequence").value(server.getPostIds().getNextSequence());
+        // Numero di elementi delle sezioni principali, usato per dimensionare le strutture dati al caricamento
+        out.name("counts").beginObject();
+        out.name("users").value(server.getUsers().size());
+        out.name("posts").value(server.getPosts().size());
+        out.name("votes").value(server.getVotes().size());
+        out.name("voteCounters").value(server.getVoteCounters().size());
+        out.name("comments").value(server.getComments().size());
+        out.name("rewins").value(server.getRewins().size());
+        out.name("userRewins").value(server.getUserRewins().size());
+        out.endObject();
+        out.name("userIds");
+        server.getUserIds().writeNames(out);
+        // Portafogli degli utenti e stato dei calcoli delle ricompense vengono salvati insieme, senza calcoli
+        // completati a metà
+        synchronized (server.getRewardDeltas()) {
+            out.name("users");
+            gson.toJson(server.getUsers(), new TypeToken<ConcurrentHashMap<String, User>>(){}.getType(), out);
+            out.name("rewardDeltas");
+            gson.toJson(server.getRewardDeltas(), RewardDeltas.class, out);
         }
+        out.name("followers");
+        server.getFollowGraph().writeFollowers(out);
+        out.name("following");
+        server.getFollowGraph().writeFollowing(out);
+        out.name("posts");
+        gson.toJson(server.getPosts(), new TypeToken<ConcurrentHashMap<Long, Post>>(){}.getType(), out);
+        out.name("votes");
+        gson.toJson(server.getVotes(), new TypeToken<ConcurrentHashMap<Long, Vector<Vote>>>(){}.getType(), out);
+        out.name("voteCounters");
+        gson.toJson(server.getVoteCounters(), new TypeToken<ConcurrentHashMap<Long, PostVotes>>(){}.getType(),
+                out);
+        out.name("comments");
+        gson.toJson(server.getComments(), new TypeToken<ConcurrentHashMap<Long, Vector<Comment>>>(){}.getType(),
+                out);
+        out.name("rewins");
+        gson.toJson(server.getRewins(), new TypeToken<ConcurrentHashMap<Long, Vector<Long>>>(){}.getType(), out);
+        out.name("userRewins");
+        gson.toJson(server.getUserRewins(),
+                new TypeToken<ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>>>(){}.getType(), out);
+        out.endObject();
+        out.flush();
     }
 
     /** Ciclo di salvataggio dei dati: il server, a ogni iterazione, salva il contenuto del server su file e aspetta
@@ -0,0 +1,195 @@
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Reactor del server: possiede un Selector e gestisce la lettura delle richieste e l'invio delle risposte di tutti i
+ *  client che gli sono stati assegnati. Ogni reactor ha le proprie chiavi e le proprie code di invio, per cui più
+ *  reactor possono essere eseguiti in parallelo su thread diversi senza contendersi nulla.
+ *
+ *  Se al selector del reactor è registrato anche il socket del server, le nuove connessioni vengono accettate e
+ *  distribuite dal server tra i reactor disponibili.
+ *
+ */
+public class ServerReactor implements Runnable {
+    // Server a cui inoltrare le richieste ricevute
+    private final WinsomeServerMain server;
+    // Selector usato per il channel multiplexing dei client assegnati a questo reactor
+    private final Selector selector;
+    // Pool dei buffer usati per leggere le richieste dei client
+    private final BufferPool bufferPool;
+    // Dimensione massima in byte di una richiesta inviata da un client
+    private final int maxFrameSize;
+    // Canali assegnati al reactor ma non ancora registrati al suo selector
+    private final ConcurrentLinkedQueue<SocketChannel> toRegister;
+    // Numero di connessioni gestite al momento dal reactor
+    private final AtomicInteger nConnections;
+
+    /** Costruttore del reactor, che apre il selector che gli appartiene
+     *
+     * @param server Server a cui inoltrare le richieste
+     * @param maxFrameSize Dimensione massima delle richieste
+     * @param bufferSize Dimensione dei buffer di lettura
+     * @param maxPooledBuffers Numero massimo di buffer di lettura mantenuti nel pool
+     * @throws IOException In caso di fallimento nella creazione del Selector
+     */
+    public ServerReactor(WinsomeServerMain server, int maxFrameSize, int bufferSize, int maxPooledBuffers)
+            throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.bufferPool = new BufferPool(bufferSize, maxPooledBuffers);
+        this.maxFrameSize = maxFrameSize;
+        this.toRegister = new ConcurrentLinkedQueue<>();
+        this.nConnections = new AtomicInteger(0);
+    }
+
+    /** Assegna un nuovo client al reactor. Il canale viene registrato dal thread del reactor stesso alla successiva
+     *  iterazione del ciclo di gestione, in modo che il selector sia manipolato da un solo thread.
+     *
+     * @param client Canale non bloccante del client appena accettato
+     */
+    public void assign(SocketChannel client) {
+        nConnections.incrementAndGet();
+        toRegister.add(client);
+        selector.wakeup();
+    }
+
+    /** Ciclo di gestione del reactor: a ogni iterazione registra i client appena assegnati, accetta eventuali nuove
+     *  connessioni, legge le richieste complete e le assegna ai worker, e infine invia le risposte in coda.
+     *
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            // Select
+            try {
+                selector.select(100);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            registerPending();
+
+            // Ottenimento delle chiavi pronte
+            Iterator<SelectionKey> keyIt = selector.selectedKeys().iterator();
+
+            while (keyIt.hasNext()) {
+                // Ottieni la chiave corrente e rimuovila dal set di chiavi pronte
+                SelectionKey currKey = keyIt.next();
+                keyIt.remove();
+
+                try {
+                    // Se è acceptable, il server stabilisce una connessione e la assegna a un reactor
+                    if (currKey.isAcceptable()) {
+                        server.accept((ServerSocketChannel) currKey.channel());
+                        continue;
+                    }
+                    // Se è readable e valida, leggo le richieste complete e le assegno ai worker
+                    if (currKey.isValid() && currKey.isReadable())
+                        read(currKey);
+                    // Se la chiave è ancora valida e writable, spedisco le risposte in coda
+                    if (currKey.isValid() && currKey.isWritable())
+                        ((ClientConnection) currKey.attachment()).flush(currKey);
+                }
+                // In caso di eccezione (errore di comunicazione o richiesta malformata), chiudo la connessione
+                catch (IOException | JSONException e) {
+                    close(currKey);
+                    System.out.println("Connessione chiusa");
+                }
+            }
+        }
+    }
+
+    /** Registra al selector i canali che sono stati assegnati al reactor dopo l'ultima iterazione. I client vengono
+     *  registrati per la sola lettura: l'interesse per la scrittura viene abilitato solo quando ci sono risposte da
+     *  inviare.
+     *
+     */
+    private void registerPending() {
+        SocketChannel client;
+
+        while ((client = toRegister.poll()) != null) {
+            try {
+                client.register(selector, SelectionKey.OP_READ, new ClientConnection(maxFrameSize));
+            }
+            catch (ClosedChannelException e) {
+                nConnections.decrementAndGet();
+            }
+        }
+    }
+
+    /** Legge le richieste complete ricevute dal client e le inoltra al server
+     *
+     * @param key SelectionKey del client da cui leggere
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private void read(SelectionKey key) throws IOException {
+        // Ottengo il channel del client e lo stato della sua connessione
+        SocketChannel channel = (SocketChannel) key.channel();
+        FrameDecoder decoder = ((ClientConnection) key.attachment()).getDecoder();
+        // Ricevo i messaggi completati da questa lettura
+        List<byte[]> frames = decoder.read(channel, bufferPool);
+
+        // Decodifica le richieste, ognuna con la codifica con cui è stata prodotta, e ne avvia l'esecuzione
+        for (byte[] frame : frames)
+            server.dispatch(new ClientRequest(key, WireCodec.forFrame(frame).decodeRequest(frame)));
+        // Se il client ha troppe richieste in coda, smetto di leggerlo finché non vengono eseguite
+        if (!frames.isEmpty())
+            ((ClientConnection) key.attachment()).updateReadInterest(key);
+
+        // Il client ha chiuso la connessione: è meglio disconnettersi per evitare problemi in futuro
+        if (decoder.isEndOfStream()) {
+            close(key);
+            System.out.println("Client disconnesso");
+        }
+    }
+
+    /** Chiude la connessione con un client, terminandone l'eventuale sessione
+     *
+     * @param key SelectionKey del client
+     */
+    private void close(SelectionKey key) {
+        server.endSession(key);
+        key.cancel();
+
+        if (key.attachment() != null) {
+            nConnections.decrementAndGet();
+            try {
+                key.channel().close();
+            }
+            catch (IOException e) {
+                System.err.println("Impossibile chiudere il canale del client");
+            }
+        }
+    }
+
+    /** Invia le risposte ancora in coda e chiude tutte le connessioni del reactor. Usata al momento della chiusura
+     *  del server.
+     *
+     */
+    public void closeAll() {
+        for (SelectionKey currKey : new ArrayList<>(selector.keys())) {
+            if (currKey.isValid() && currKey.attachment() != null) {
+                try {
+                    ((ClientConnection) currKey.attachment()).flush(currKey);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                currKey.cancel();
+            }
+        }
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+    public int getConnectionCount() {
+        return nConnections.get();
+    }
+}
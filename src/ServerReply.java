@@ -0,0 +1,50 @@
+import com.google.gson.Gson;
+import org.json.JSONObject;
+
+import java.lang.reflect.Type;
+
+/** Risposta del server così come viene ricevuta dal client: contiene i campi della risposta e, se la codifica della
+ *  connessione li ha già decodificati, gli elementi della lista restituita dall'operazione.
+ *
+ */
+public class ServerReply {
+    // Campi della risposta
+    private final JSONObject fields;
+    // Lista di elementi già decodificata, null se la lista è contenuta nei campi come stringa JSON
+    private final Object items;
+
+    /** Semplice costruttore di assegnamento degli attributi
+     *
+     * @param fields Campi della risposta
+     * @param items Lista di elementi già decodificata, null se non presente
+     */
+    public ServerReply(JSONObject fields, Object items) {
+        this.fields = fields;
+        this.items = items;
+    }
+
+    /** Restituisce la lista di elementi contenuta nella risposta
+     *
+     * @param field Nome del campo che contiene la lista
+     * @param type Tipo della lista
+     * @return La lista di elementi, null se la risposta non ne contiene
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getItems(String field, Type type) {
+        if (items != null)
+            return (T) items;
+        if (!fields.has(field))
+            return null;
+        return new Gson().fromJson(fields.getString(field), type);
+    }
+
+    // Accesso ai campi della risposta
+    public int getInt(String key) {return fields.getInt(key);}
+    public long getLong(String key) {return fields.getLong(key);}
+    public long optLong(String key, long defaultValue) {return fields.optLong(key, defaultValue);}
+    public double getDouble(String key) {return fields.getDouble(key);}
+    public String getString(String key) {return fields.getString(key);}
+    public String optString(String key, String defaultValue) {return fields.optString(key, defaultValue);}
+    public boolean has(String key) {return fields.has(key);}
+    public JSONObject getFields() {return fields;}
+}
@@ -1,167 +1,324 @@
-import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class ServerRewards extends Thread{
+public class ServerRewards {
     // Server contenente i dati necessari per calcolare le ricompense
     private final WinsomeServerMain server;
     // Intervallo di tempo da aspettare per il prossimo calcolo delle ricompense
     private final long rewardRateMillis;
     // Percentuale della ricompensa assegnata all'autore del post
     private final double authorPercentage;
-    // Timestamp che indica l'ultimo momento in cui sono state calcolate le ricompense
-    private Timestamp lastComputing;
+    // Pool dei thread di calcolo, null se il calcolo è sequenziale
+    private final ForkJoinPool pool;
+    // Esecutore che avvia i calcoli a intervalli regolari
+    private ScheduledExecutorService scheduler;
 
+    // Numero massimo di post calcolati da un singolo task senza suddividerli ulteriormente
+    private static final int TASK_THRESHOLD = 4096;
 
     /** Semplice costruttore in cui si assegnano i valori agli attributi
      *
      * @param server Server contenente i dati per il calcolo
      * @param rewardRateMillis Interavallo di calcolo delle ricompense
      * @param authorPercentage Percentuale di ricompensa che spetta all'autore di un post
+     * @param parallelism Numero di thread di calcolo (1 = calcolo sequenziale nel thread delle ricompense)
      */
-    public ServerRewards(WinsomeServerMain server, long rewardRateMillis, double authorPercentage) {
+    public ServerRewards(WinsomeServerMain server, long rewardRateMillis, double authorPercentage, int parallelism) {
         this.authorPercentage = authorPercentage;
         this.server = server;
         this.rewardRateMillis = rewardRateMillis;
-        this.lastComputing = new Timestamp(0);
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
     }
 
-    /** Routine di calcolo: a ogni iterazione, il server aspetta un certo periodo di tempo e procede poi a calcolare
-     *  le ricompense del social.
+    /** Avvia i calcoli periodici delle ricompense. I calcoli vengono avviati a frequenza fissa, per cui la durata di
+     *  un calcolo non sposta i successivi; se un calcolo dura più dell'intervallo, quelli in ritardo vengono eseguiti
+     *  subito dopo, uno alla volta. Il primo calcolo viene avviato un intervallo dopo la data di taglio dell'ultimo
+     *  calcolo completato prima del riavvio, o subito se c'è un calcolo interrotto da completare.
      *
      */
-    public void run() {
-        while (true) {
+    public void start() {
+        RewardDeltas rewardDeltas = server.getRewardDeltas();
+        long delay = rewardRateMillis;
+        if (rewardDeltas.getCycle() > rewardDeltas.getCompletedCycle())
+            delay = 0;
+        else if (rewardDeltas.getLastCutoff() > 0)
+            delay = Math.max(0, rewardDeltas.getLastCutoff() + rewardRateMillis - System.currentTimeMillis());
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ServerRewards");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::calculateRewards, delay, rewardRateMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Arresta i calcoli periodici, attendendo il completamento di un eventuale calcolo in corso
+     *
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(rewardRateMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /** Esegue un calcolo delle ricompense: preleva l'attività dei post dall'ultimo calcolo, calcola le ricompense
+     *  e le accredita agli utenti, infine notifica i client.
+     *
+     *  Il calcolo non prende lock sul server: lavora sull'attività prelevata, che nessun altro thread modifica, e
+     *  accredita le ricompense con un'operazione breve per ogni utente, per cui le richieste dei client non vengono
+     *  bloccate durante il calcolo. L'accredito e il completamento del calcolo avvengono insieme rispetto ai
+     *  salvataggi, per cui un calcolo interrotto da un riavvio viene rieseguito senza accreditare due volte.
+     *
+     */
+    private void calculateRewards() {
+        // Un'eccezione non gestita annullerebbe tutti i calcoli successivi
+        try {
+            RewardDeltas rewardDeltas = server.getRewardDeltas();
+            MutationLog log = server.getMutationLog();
+            RewardDeltas.Cycle cycle;
+            boolean idle;
+
+            // Il taglio viene registrato nel log nello stesso punto in cui avviene rispetto alle altre modifiche
+            server.getCheckpointLock().writeLock().lock();
             try {
-                sleep(rewardRateMillis);
+                long started = rewardDeltas.getCycle();
+                cycle = rewardDeltas.startCycle(System.currentTimeMillis());
+                // Un calcolo senza attività modifica solo il numero dei calcoli, da cui i post ricavano il numero di
+                // calcoli subiti: viene completato subito e registrato nel log con un'unica modifica compatta, e lo
+                // stato dei calcoli viene salvato dal primo snapshot successivo a un'altra modifica, così che un
+                // server inattivo non debba salvare a ogni calcolo
+                idle = cycle.getSequence() != started && cycle.getDeltas().isEmpty();
+                if (idle) {
+                    rewardDeltas.completeCycle(cycle, () -> {});
+                    log.logIdleCycle(cycle);
+                    server.getChangeTracker().touch(ChangeTracker.Section.REWARDS);
+                }
+                // Un calcolo interrotto da un riavvio è già stato registrato
+                else if (cycle.getSequence() != started) {
+                    log.logCycleStart(cycle);
+                    server.getChangeTracker().mark(ChangeTracker.Section.REWARDS);
+                }
+            } finally {
+                server.getCheckpointLock().writeLock().unlock();
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+
+            if (idle) {
+                server.notifyReward();
+                return;
             }
 
-            calculateRewards();
+            Map<String, Ledger> credits = computeRewards(cycle);
+
+            server.getCheckpointLock().readLock().lock();
+            try {
+                rewardDeltas.completeCycle(cycle, () -> {
+                    // Aggiorna il numero di calcoli subiti dai post visitati, come fa la riapplicazione del log
+                    for (Long id : cycle.getDeltas().keySet()) {
+                        Post p = server.getPosts().get(id);
+                        if (p != null)
+                            p.catchUpRewardAmount(cycle.getSequence());
+                    }
+                    applyRewards(credits);
+                    log.logRewards(cycle, credits);
+                    // Il calcolo aggiorna il numero di calcoli subiti dai post visitati e, se ci sono ricompense,
+                    // i portafogli degli utenti
+                    server.getChangeTracker().mark(ChangeTracker.Section.POSTS, ChangeTracker.Section.REWARDS);
+                    if (!credits.isEmpty())
+                        server.getChangeTracker().mark(ChangeTracker.Section.USERS);
+                });
+            } finally {
+                server.getCheckpointLock().readLock().unlock();
+            }
+
+            // Invio una notifica ai client connessi in multicast
+            server.notifyReward();
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
         }
     }
 
-    /** Funzione che calcola le ricompense per ogni post presente all'interno del server.
+    /** Funzione che calcola le ricompense dei post che hanno ricevuto voti o commenti dall'ultimo calcolo.
      *  I rewin non contano nel calcolo, mentre i commenti e i like ai rewin vengono assegnati al post originale, dal
      *  momento che un rewin non è altro che un modo per dare più visibilità a un post. Inoltre, i voti negativi vengono
      *  ignorati.
      *
-     *  Per ogni post, si calcolano le ricompense totali e si ripartiscono le percentuali. A questo punto, le ricompense
-     *  vengono assegnate: nel caso dei curatori si distingue tra ricompense dovute a rating e ricompense causate dalla
-     *  aggiunta di commenti.
+     *  Voti e commenti vengono riepilogati per ogni post nel momento in cui vengono aggiunti, per cui il calcolo
+     *  visita solamente i post con attività recente. Il numero di calcoli subiti da un post viene ricavato quando il
+     *  post viene visitato, aggiungendo anche i calcoli in cui il post non aveva attività, ma il post viene
+     *  aggiornato solo al completamento del calcolo, così che un salvataggio non ne veda uno stato intermedio.
      *
+     *  Le ricompense di ogni utente vengono raccolte in un registro delle transazioni, che viene poi aggiunto in
+     *  blocco allo storico dell'utente. Se il calcolo parallelo è abilitato, i post vengono suddivisi tra i thread di
+     *  un ForkJoinPool: ogni task accumula localmente le transazioni di ogni utente e i risultati dei task vengono
+     *  poi uniti.
+     *
+     * @param cycle Calcolo in corso, con l'attività dei post indicizzata per id del post originale
+     * @return Le transazioni da accreditare, raggruppate per utente
      */
-    private void calculateRewards() {
-        // Rating totale del post (comprende anche i voti negativi)
-        int postRating;
-        // Numero totale di commenti per post
-        int totComments;
-        int totPositiveRatings;
-
-        // Mappa che collega gli utenti al numero di commenti che hanno effettuato, utile per il calcolo delle
-        // ricompense dovute ai commenti
-        HashMap<String, Integer> comments;
-        // Mappa che collega gli utenti al numero di voti positivi che hanno lasciato, utile per il calcolo delle
-        // ricompense dovute ai voti positivi
-        HashMap<String, Integer> raters;
-
-        synchronized (server) {
-            // Ciclo all'interno dei post originali (ovvero quelli creati esplicitamente dagli utenti)
-            for (Vector<Long> postList : server.getAuthorPost().values()) {
-                // Per ogni post calcolo la ricompensa
-                for (Long postId : postList) {
-
-                    // Azzero i parametri di calcolo
-                    postRating = 0;
-                    totComments = 0;
-                    totPositiveRatings = 0;
-                    comments = new HashMap<>();
-                    raters = new HashMap<>();
-
-                    // Ottengo l'id del post
-                    Post p = server.getPosts().get(postId);
-                    // Aumento il numero di volte che quel post ha subito il calcolo
-                    p.increaseRewardAmount();
-
-                    // Calcolo i nuovi voti (cioè i voti aggiunti dopo l'ultimo calcolo delle ricompense
-                    if (server.getVotes().get(postId) != null) {
-
-                        // Per ogni voto del post corrente
-                        for (Vote v : server.getVotes().get(postId)) {
-
-                            // Se il voto è stato aggoiunto recentemente
-                            if (v.getTimestamp().after(lastComputing)) {
-                                // Tieni traccia degli utenti che hanno votato positivamente
-                                if (v.getValue() > 0) {
-                                    totPositiveRatings++;
-                                    raters.putIfAbsent(v.getUser(), 0);
-                                    raters.replace(v.getUser(), raters.get(v.getUser()) + 1);
-                                }
-
-                                // Tieni traccia del rating totale del post
-                                postRating += v.getValue();
-                            }
-                        }
-                    }
+    public Map<String, Ledger> computeRewards(RewardDeltas.Cycle cycle) {
+        List<Map.Entry<Long, RewardDeltas.PostDelta>> work = new ArrayList<>(cycle.getDeltas().entrySet());
+        // Tutte le transazioni di un calcolo hanno come data la data di taglio
+        long now = cycle.getCutoff();
+        long sequence = cycle.getSequence();
 
-                    // Nuovi commenti dall'ultimo calcolo
-                    if (server.getComments().get(postId) != null) {
-                        // Per ogni commento
-                        for (Comment c : server.getComments().get(postId)) {
-
-                            // Tieni traccia del numero totale di commenti e degli utenti che hanno commentato
-                            if (c.getTimestamp().after(lastComputing)) {
-                                totComments++;
-                                comments.putIfAbsent(c.getUser(), 0);
-                                comments.replace(c.getUser(), comments.get(c.getUser()) + 1);
-                            }
-                        }
-                    }
+        if (pool == null)
+            return computeRange(work, 0, work.size(), sequence, now);
+        return pool.invoke(new RewardTask(work, 0, work.size(), sequence, now));
+    }
+
+    /** Accredita le transazioni calcolate, con un'unica operazione per ogni utente
+     *
+     * @param credits Transazioni da accreditare, raggruppate per utente
+     */
+    public void applyRewards(Map<String, Ledger> credits) {
+        for (Map.Entry<String, Ledger> entry : credits.entrySet()) {
+            User user = server.getUsers().get(entry.getKey());
+            if (user != null)
+                user.addRewards(entry.getValue());
+        }
+    }
+
+    /** Calcola le ricompense di un intervallo di post
+     *
+     * @param work Attività dei post
+     * @param from Indice del primo post dell'intervallo
+     * @param to Indice successivo all'ultimo post dell'intervallo
+     * @param cycle Numero del calcolo in corso
+     * @param now Data delle transazioni
+     * @return Le transazioni da accreditare, raggruppate per utente
+     */
+    private Map<String, Ledger> computeRange(List<Map.Entry<Long, RewardDeltas.PostDelta>> work,
+                                             int from, int to, long cycle, long now) {
+        Map<String, Ledger> credits = new HashMap<>();
+
+        for (int i=from; i<to; i++) {
+            Map.Entry<Long, RewardDeltas.PostDelta> entry = work.get(i);
+            Post p = server.getPosts().get(entry.getKey());
+            // Il post potrebbe essere stato eliminato nel frattempo
+            if (p == null)
+                continue;
+
+            // Numero di volte che quel post ha subito il calcolo: il post viene aggiornato solo al completamento del
+            // calcolo, insieme all'accredito delle ricompense
+            int rewardAmount = p.getRewardAmount(cycle);
+
+            RewardDeltas.PostDelta delta = entry.getValue();
+            // Mappa che collega gli utenti al numero di commenti che hanno effettuato
+            Map<String, Integer> comments = delta.getCommenters();
+            // Mappa che collega gli utenti al numero di voti positivi che hanno lasciato
+            Map<String, Integer> raters = delta.getRaters();
+
+            // Calcola la parte della formula relativa ai commenti
+            int commentPart = 0;
+            for (int userComments : comments.values()) {
+                commentPart += (2 / (1 + Math.exp(-(userComments - 1))));
+            }
+
+            // Calcolo della ricompensa
+            double reward = (Math.log(Math.max(delta.getRating(), 0) + 1) + Math.log(commentPart + 1)) / rewardAmount;
+
+            // Se la ricompensa è significativa, distribuiscila tra curatori e autore
+            if (reward > 0) {
+                // Divisione della ricompensa tra autore e curatori
+                double author = (reward / 100) * authorPercentage;
+                double curator = reward - author;
+                // Frazione di ricompensa dei curatori che spetta a ogni curatore per ogni commento o voto positivo
+                double curatorFraction = curator / (delta.getComments() + delta.getPositiveVotes());
+
+                // Ricompensa dell'autore
+                credit(credits, p.getAuthor(), now, author, p.getId(), Ledger.AUTHOR);
 
-                    // Calcola la parte della formula relativa ai commenti
-                    int commentPart = 0;
+                // Ricompensa dei curatori: i curatori si dividono i ricavi in parti uguali
+                // Ricompense per i commenti
+                if (curatorFraction < Double.POSITIVE_INFINITY) {
                     for (String user : comments.keySet()) {
-                        commentPart += (2 / (1 + Math.exp(-(comments.get(user) - 1))));
+                        credit(credits, user, now, curatorFraction * comments.get(user), p.getId(),
+                                Ledger.CURATOR_COMMENTS);
                     }
+                }
 
-                    // Calcolo della ricompensa
-                    double reward = (Math.log(Math.max(postRating, 0) + 1) + Math.log(commentPart + 1)) / p.getRewardAmount();
-
-                    // Se la ricompensa è significativa, distribuiscila tra curatori e autore
-                    if (reward > 0) {
-                        // Divisione della ricompensa tra autore e curatori
-                        double author = (reward / 100) * authorPercentage;
-                        double curator = reward - author;
-                        // Frazione di ricompensa dei curatori che spetta a ogni curatore per ogni commento o voto positivo
-                        double curatorFraction = curator / (totComments + totPositiveRatings);
-
-                        // Accredito della ricompensa all'autore
-                        server.getUsers().get(p.getAuthor()).addReward(new Transaction("Ricompensa autore", author, p.getId()));
-
-                        // Accredito della ricompensa ai curatori: i curatori si dividono i ricavi in parti uguali
-                        // Accredito delle ricompense per i commenti
-                        if (curatorFraction < Double.POSITIVE_INFINITY) {
-                            for (String user : comments.keySet()) {
-                                server.getUsers().get(user).addReward(new Transaction("Ricompensa curatore (commenti)",
-                                        curatorFraction * comments.get(user), p.getId()));
-                            }
-                        }
-
-                        // Accredito delle ricompense per voti
-                        for (String user : raters.keySet()) {
-                            server.getUsers().get(user).addReward(new Transaction("Ricompensa curatore (voti)",
-                                    curatorFraction * raters.get(user), p.getId()));
-                        }
-                    }
+                // Ricompense per voti
+                for (String user : raters.keySet()) {
+                    credit(credits, user, now, curatorFraction * raters.get(user), p.getId(),
+                            Ledger.CURATOR_VOTES);
                 }
             }
         }
 
-        // Invio una notifica ai client connessi in multicast
-        server.notifyReward();
-        // Aggiorno il tempo dell'ultimo calcolo
-        lastComputing = new Timestamp(System.currentTimeMillis());
+        return credits;
+    }
+
+    /** Aggiunge una transazione a quelle da accreditare a un utente
+     *
+     * @param credits Transazioni da accreditare, raggruppate per utente
+     * @param user Utente destinatario
+     * @param timestamp Data della transazione
+     * @param amount Importo
+     * @param post Id del post che ha generato la ricompensa
+     * @param causal Codice della causale
+     */
+    private static void credit(Map<String, Ledger> credits, String user, long timestamp, double amount, long post,
+                               byte causal) {
+        credits.computeIfAbsent(user, k -> new Ledger()).add(timestamp, amount, post, causal);
+    }
+
+    /** Task che calcola le ricompense di un intervallo di post, suddividendolo finché non diventa abbastanza piccolo
+     *
+     */
+    private class RewardTask extends RecursiveTask<Map<String, Ledger>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Map.Entry<Long, RewardDeltas.PostDelta>> work;
+        private final int from;
+        private final int to;
+        private final long cycle;
+        private final long now;
+
+        RewardTask(List<Map.Entry<Long, RewardDeltas.PostDelta>> work, int from, int to, long cycle, long now) {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+            this.cycle = cycle;
+            this.now = now;
+        }
+
+        @Override
+        protected Map<String, Ledger> compute() {
+            if (to - from <= TASK_THRESHOLD)
+                return computeRange(work, from, to, cycle, now);
+
+            int mid = (from + to) >>> 1;
+            RewardTask left = new RewardTask(work, from, mid, cycle, now);
+            left.fork();
+            Map<String, Ledger> right = new RewardTask(work, mid, to, cycle, now).compute();
+            Map<String, Ledger> ret = left.join();
+
+            // Unisco il risultato più piccolo in quello più grande
+            if (ret.size() < right.size()) {
+                Map<String, Ledger> tmp = ret;
+                ret = right;
+                right = tmp;
+            }
+            for (Map.Entry<String, Ledger> entry : right.entrySet()) {
+                ret.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+                    a.addAll(b);
+                    return a;
+                });
+            }
+            return ret;
+        }
     }
 }
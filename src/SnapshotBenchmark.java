@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Vector;
+
+/** Benchmark dei formati degli snapshot: genera un server sintetico con il numero di record richiesto e misura, per
+ *  il formato json e per quello binario, la dimensione dello snapshot e i tempi di scrittura e di caricamento.
+ *
+ *  Ogni record è un post, con un voto e, per un post su due, un commento; gli utenti sono un centesimo dei post,
+ *  ognuno con 10 utenti seguiti e 5 transazioni.
+ *
+ *  Uso: java SnapshotBenchmark [numero di record]...
+ *
+ */
+public class SnapshotBenchmark {
+    public static void main(String[] args) throws IOException {
+        long[] sizes = new long[args.length > 0 ? args.length : 1];
+        sizes[0] = 1000000;
+        for (int i=0; i<args.length; i++)
+            sizes[i] = Long.parseLong(args[i]);
+
+        File file = File.createTempFile("snapshot", ".bench");
+        file.deleteOnExit();
+
+        System.out.printf("%-10s %-8s %12s %14s %14s%n", "Record", "Formato", "MB", "Scrittura (ms)",
+                "Caricamento (ms)");
+        for (long n : sizes) {
+            WinsomeServerMain server = generate((int) n);
+            for (boolean binary : new boolean[] {false, true}) {
+                long start = System.nanoTime();
+                ServerPersistence.writeSnapshot(server, file.toPath(), 0, binary);
+                long written = System.nanoTime();
+
+                WinsomeServerMain loaded = new WinsomeServerMain();
+                long loadStart = System.nanoTime();
+                ServerPersistence.readSnapshot(file.getPath(), loaded);
+                long loadEnd = System.nanoTime();
+                // Verifica che il caricamento abbia ricostruito tutti i post
+                if (loaded.getPosts().size() != server.getPosts().size())
+                    throw new IllegalStateException("Caricamento errato in formato " + (binary ? "binary" : "json"));
+
+                System.out.printf("%-10d %-8s %12.1f %14.1f %14.1f%n", n, binary ? "binary" : "json",
+                        file.length() / 1048576.0, (written - start) / 1e6, (loadEnd - loadStart) / 1e6);
+            }
+        }
+        file.delete();
+        System.exit(0);
+    }
+
+    /** Genera un server sintetico
+     *
+     * @param nPosts Numero di post
+     * @return Il server generato
+     */
+    private static WinsomeServerMain generate(int nPosts) {
+        WinsomeServerMain server = new WinsomeServerMain();
+        int nUsers = Math.max(10, nPosts / 100);
+        Random random = new Random(42);
+
+        for (int i=0; i<nUsers; i++) {
+            User user = new User("utente" + i, "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                    new String[] {"tag" + (i % 50), "tag" + (i % 7)});
+            Ledger rewards = new Ledger();
+            for (int t=0; t<5; t++)
+                rewards.add(1640995200000L + t, random.nextDouble(), random.nextInt(nPosts), Ledger.AUTHOR);
+            user.addRewards(rewards);
+            server.getUsers().put(user.getUsername(), user);
+            server.getUserIds().intern(user.getUsername());
+        }
+        for (int i=0; i<nUsers; i++) {
+            for (int f=0; f<10; f++)
+                server.getFollowGraph().follow("utente" + i, "utente" + random.nextInt(nUsers));
+        }
+
+        for (int i=0; i<nPosts; i++) {
+            String author = "utente" + random.nextInt(nUsers);
+            server.getPosts().put((long) i, new Post(i, "Titolo " + i,
+                    "Contenuto del post numero " + i + ", di lunghezza realistica.", author));
+
+            Vector<Vote> votes = new Vector<>();
+            votes.add(new Vote("utente" + random.nextInt(nUsers), random.nextInt(4) == 0 ? -1 : 1));
+            server.getVotes().put((long) i, votes);
+            if (i % 2 == 0) {
+                Vector<Comment> comments = new Vector<>();
+                comments.add(new Comment("utente" + random.nextInt(nUsers), "Commento al post " + i));
+                server.getComments().put((long) i, comments);
+            }
+        }
+        return server;
+    }
+}
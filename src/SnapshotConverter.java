@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/** Conversione di uno snapshot tra il formato json e quello binario. Lo snapshot convertito indica lo stesso primo
+ *  segmento del log delle modifiche dell'originale e ha la stessa riga finale di controllo, per cui può prenderne il
+ *  posto tra gli snapshot del server.
+ *
+ *  Uso: java SnapshotConverter [snapshot] [destinazione] [json|binary]
+ *  Se il formato non è indicato, lo snapshot viene convertito nell'altro formato.
+ *
+ */
+public class SnapshotConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Uso: java SnapshotConverter [snapshot] [destinazione] [json|binary]");
+            System.exit(1);
+        }
+        boolean binary = args.length > 2 ? args[2].equalsIgnoreCase("binary") : !BinarySnapshot.isBinary(args[0]);
+
+        WinsomeServerMain server = new WinsomeServerMain();
+        long start = System.nanoTime();
+        long segment = ServerPersistence.readSnapshot(args[0], server);
+        // Completa i dati dei salvataggi delle versioni precedenti, come all'avvio del server
+        server.rebuildRewinIndex();
+        if (server.getVoteCounters().isEmpty())
+            server.rebuildVoteCounters();
+        long loaded = System.nanoTime();
+        ServerPersistence.writeSnapshot(server, Paths.get(args[1]), segment, binary);
+        long written = System.nanoTime();
+
+        System.out.printf("%s -> %s (%s): %d utenti, %d post, caricamento %.1f ms, scrittura %.1f ms%n", args[0],
+                args[1], binary ? "binary" : "json", server.getUsers().size(), server.getPosts().size(),
+                (loaded - start) / 1e6, (written - loaded) / 1e6);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,287 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/** Caricamento di uno snapshot del server. Il file viene letto in streaming, una sezione alla volta, senza mai
+ *  costruirne una rappresentazione completa in memoria: il thread di lettura estrae le voci di ogni sezione e le
+ *  passa a blocchi a un pool di thread, che le converte negli oggetti del server e le inserisce nelle strutture dati.
+ *  Le strutture dati vengono create già dimensionate con il numero di elementi registrato nell'intestazione dello
+ *  snapshot, per evitare i ridimensionamenti durante il caricamento.
+ *
+ *  Vengono caricati anche gli snapshot scritti dalle versioni precedenti, in cui ogni sezione è una stringa
+ *  contenente il json della sezione e non c'è l'intestazione.
+ *
+ */
+public class SnapshotLoader {
+    // Numero di voci di una sezione convertite da un singolo task
+    private static final int BATCH_SIZE = 1024;
+    // Dimensione del buffer di lettura
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    // Server da caricare
+    private final WinsomeServerMain server;
+    // Pool dei thread di conversione
+    private final ExecutorService pool;
+    // Limita i blocchi letti e non ancora convertiti, così che la lettura non accumuli in memoria l'intero file
+    private final Semaphore inFlight;
+    // Task di conversione avviati
+    private final List<Future<?>> tasks;
+    // Oggetto usato per convertire le voci lette
+    private Gson gson;
+    // Numero di elementi di ogni sezione, letto dall'intestazione
+    private Map<String, Integer> counts;
+    // Primo segmento del log delle modifiche successive allo snapshot
+    private long logSegment;
+
+    private SnapshotLoader(WinsomeServerMain server, int threads) {
+        this.server = server;
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(threads * 4);
+        this.tasks = new ArrayList<>();
+        this.counts = Collections.emptyMap();
+    }
+
+    /** Carica il server da uno snapshot
+     *
+     * @param fileName Nome del file contenente lo snapshot
+     * @param toLoad Server da caricare
+     * @return Il primo segmento del log delle modifiche successive allo snapshot
+     * @throws IOException In caso di errore di lettura del file
+     * @throws JsonParseException Se il file non è uno snapshot valido
+     */
+    public static long load(String fileName, WinsomeServerMain toLoad) throws IOException {
+        SnapshotLoader loader = new SnapshotLoader(toLoad, Runtime.getRuntime().availableProcessors());
+
+        try (JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(
+                Files.newInputStream(Paths.get(fileName)), StandardCharsets.UTF_8), READ_BUFFER_SIZE))) {
+            loader.read(in);
+            return loader.logSegment;
+        } finally {
+            loader.pool.shutdownNow();
+        }
+    }
+
+    /** Legge lo snapshot, sezione per sezione
+     *
+     * @param in Reader dello snapshot
+     * @throws IOException In caso di errore di lettura
+     */
+    private void read(JsonReader in) throws IOException {
+        UserIds userIds = server.getUserIds();
+        boolean hasUserIds = false;
+        gson = ServerPersistence.loadingGson(userIds);
+
+        ConcurrentHashMap<String, User> users = null;
+        ConcurrentHashMap<Long, Post> posts = null;
+        ConcurrentHashMap<Long, Vector<Vote>> votes = null;
+        ConcurrentHashMap<Long, PostVotes> voteCounters = null;
+        ConcurrentHashMap<Long, Vector<Comment>> comments = null;
+        ConcurrentHashMap<Long, Vector<Long>> rewins = null;
+        ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> userRewins = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            switch (name) {
+                case "logSegment":
+                    // Primo segmento del log delle modifiche successive al salvataggio
+                    logSegment = in.nextLong();
+                    break;
+                case "nextPostSequence":
+                    // Riprende l'allocazione degli id dei post dopo l'ultimo blocco riservato
+                    server.getPostIds().ensureNextSequence(in.nextLong());
+                    break;
+                case "counts":
+                    counts = new Gson().fromJson(in, new TypeToken<Map<String, Integer>>(){}.getType());
+                    break;
+                case "userIds":
+                    // Carica il dizionario degli utenti: da qui in poi gli username letti dal file condividono le
+                    // istanze del dizionario
+                    userIds.load(new Gson().fromJson(section(in), new TypeToken<List<String>>(){}.getType()));
+                    hasUserIds = true;
+                    break;
+                case "users": {
+                    // Carica gli utenti, registrando nel dizionario quelli che non vi compaiono ancora e spostando
+                    // nel registro le transazioni salvate nel formato precedente
+                    ConcurrentHashMap<String, User> map = users = map(name);
+                    readEntries(section(in), (key, value) -> {
+                        User user = gson.fromJson(value, User.class);
+                        user.convertLegacyTransactions();
+                        userIds.intern(key);
+                        map.put(userIds.canonical(key), user);
+                    });
+                    break;
+                }
+                case "followers":
+                    readEntries(section(in), (key, value) -> {
+                        for (JsonElement follower : value.getAsJsonArray())
+                            server.getFollowGraph().follow(follower.getAsString(), key);
+                    });
+                    break;
+                case "following":
+                    readEntries(section(in), (key, value) -> {
+                        for (JsonElement followed : value.getAsJsonArray())
+                            server.getFollowGraph().follow(key, followed.getAsString());
+                    });
+                    break;
+                case "posts":
+                    posts = readMap(section(in), name, Post.class);
+                    break;
+                case "votes":
+                    votes = readMap(section(in), name, new TypeToken<Vector<Vote>>(){}.getType());
+                    break;
+                case "voteCounters":
+                    voteCounters = readMap(section(in), name, PostVotes.class);
+                    break;
+                case "comments":
+                    comments = readMap(section(in), name, new TypeToken<Vector<Comment>>(){}.getType());
+                    break;
+                case "rewins":
+                    rewins = readMap(section(in), name, new TypeToken<Vector<Long>>(){}.getType());
+                    break;
+                case "userRewins": {
+                    ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> map = userRewins = map(name);
+                    Type type = new TypeToken<ConcurrentHashMap<Long, Long>>(){}.getType();
+                    readEntries(section(in), (key, value) -> map.put(userIds.canonical(key),
+                            gson.fromJson(value, type)));
+                    break;
+                }
+                case "rewardDeltas":
+                    // Carica l'attività dei post non ancora considerata dal calcolo delle ricompense
+                    server.setRewardDeltas(gson.fromJson(section(in), RewardDeltas.class));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+
+        awaitTasks();
+
+        if (users != null)
+            server.setUsers(users);
+        if (posts != null)
+            server.setPosts(posts);
+        if (votes != null)
+            server.setVotes(votes);
+        // Il riepilogo dei voti fa riferimento agli id del dizionario: senza dizionario viene ricostruito a partire
+        // dai voti
+        if (voteCounters != null && hasUserIds)
+            server.setVoteCounters(voteCounters);
+        if (comments != null)
+            server.setComments(comments);
+        if (rewins != null)
+            server.setRewins(rewins);
+        if (userRewins != null)
+            server.setUserRewins(userRewins);
+    }
+
+    /** Restituisce il reader del contenuto di una sezione: negli snapshot delle versioni precedenti la sezione è
+     *  una stringa contenente il json, che viene letta a sua volta in streaming
+     *
+     * @param in Reader dello snapshot, posizionato sul valore della sezione
+     * @return Il reader della sezione
+     * @throws IOException In caso di errore di lettura
+     */
+    private static JsonReader section(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.STRING)
+            return new JsonReader(new StringReader(in.nextString()));
+        return in;
+    }
+
+    /** Crea la mappa di una sezione, dimensionata secondo l'intestazione dello snapshot
+     *
+     * @param section Nome della sezione
+     * @return La mappa vuota
+     */
+    private <K, V> ConcurrentHashMap<K, V> map(String section) {
+        return new ConcurrentHashMap<>(counts.getOrDefault(section, 16));
+    }
+
+    /** Legge una sezione che associa a ogni id di post un valore
+     *
+     * @param in Reader della sezione
+     * @param section Nome della sezione
+     * @param type Tipo dei valori
+     * @return La mappa letta
+     * @throws IOException In caso di errore di lettura
+     */
+    private <V> ConcurrentHashMap<Long, V> readMap(JsonReader in, String section, Type type) throws IOException {
+        ConcurrentHashMap<Long, V> ret = map(section);
+        readEntries(in, (key, value) -> ret.put(Long.parseLong(key), gson.fromJson(value, type)));
+        return ret;
+    }
+
+    /** Legge le voci di una sezione e le passa a blocchi al pool di thread. La conversione delle voci di un blocco
+     *  avviene in parallelo con la lettura del resto del file.
+     *
+     * @param in Reader della sezione
+     * @param apply Funzione che converte una voce e la inserisce nelle strutture dati del server
+     * @throws IOException In caso di errore di lettura
+     */
+    private void readEntries(JsonReader in, BiConsumer<String, JsonElement> apply) throws IOException {
+        List<String> keys = new ArrayList<>(BATCH_SIZE);
+        List<JsonElement> values = new ArrayList<>(BATCH_SIZE);
+
+        in.beginObject();
+        while (in.hasNext()) {
+            keys.add(in.nextName());
+            values.add(JsonParser.parseReader(in));
+            if (keys.size() == BATCH_SIZE) {
+                submit(keys, values, apply);
+                keys = new ArrayList<>(BATCH_SIZE);
+                values = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        in.endObject();
+
+        if (!keys.isEmpty())
+            submit(keys, values, apply);
+    }
+
+    /** Avvia la conversione di un blocco di voci, attendendo se ci sono già troppi blocchi in attesa
+     *
+     * @param keys Chiavi delle voci
+     * @param values Valori delle voci
+     * @param apply Funzione che converte una voce e la inserisce nelle strutture dati del server
+     */
+    private void submit(List<String> keys, List<JsonElement> values, BiConsumer<String, JsonElement> apply) {
+        inFlight.acquireUninterruptibly();
+        tasks.add(pool.submit(() -> {
+            try {
+                for (int i=0; i<keys.size(); i++)
+                    apply.accept(keys.get(i), values.get(i));
+            } finally {
+                inFlight.release();
+            }
+        }));
+    }
+
+    /** Attende la conversione di tutti i blocchi, propagando l'eventuale errore di conversione
+     *
+     */
+    private void awaitTasks() {
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JsonParseException("Caricamento interrotto");
+        } catch (ExecutionException e) {
+            throw new JsonParseException(e.getCause());
+        }
+    }
+}
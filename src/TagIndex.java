@@ -0,0 +1,180 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Indice dei tag degli utenti. Ogni tag viene registrato una sola volta in un dizionario che gli assegna un id
+ *  intero; per ogni tag si mantiene l'insieme degli utenti che l'hanno scelto (indice invertito), mentre per ogni
+ *  utente si mantengono gli id dei suoi tag e una maschera di bit che li riassume.
+ *
+ *  In questo modo la ricerca degli utenti che condividono almeno un tag con un certo utente considera solamente
+ *  gli utenti che compaiono negli insiemi dei suoi tag, invece di confrontare i tag di tutti gli utenti del server.
+ *  La maschera permette inoltre di scartare subito due utenti che non hanno sicuramente tag in comune.
+ *
+ */
+public class TagIndex {
+    // Id assegnato a ogni tag
+    private final ConcurrentHashMap<String, Integer> tagIds;
+    // Nome di ogni tag, indicizzato per id
+    private final CopyOnWriteArrayList<String> tagNames;
+    // Utenti che hanno scelto ogni tag, indicizzati per id del tag
+    private final ConcurrentHashMap<Integer, Set<String>> tagUsers;
+    // Tag di ogni utente
+    private final ConcurrentHashMap<String, UserTags> userTags;
+
+    /** Tag di un singolo utente
+     *
+     */
+    private static class UserTags {
+        // Id dei tag in ordine crescente
+        final int[] ids;
+        // Maschera di bit: il bit (id % 64) è impostato per ogni tag dell'utente
+        final long mask;
+
+        UserTags(int[] ids) {
+            long mask = 0;
+            for (int id : ids)
+                mask |= 1L << (id & 63);
+
+            this.ids = ids;
+            this.mask = mask;
+        }
+    }
+
+    public TagIndex() {
+        tagIds = new ConcurrentHashMap<>();
+        tagNames = new CopyOnWriteArrayList<>();
+        tagUsers = new ConcurrentHashMap<>();
+        userTags = new ConcurrentHashMap<>();
+    }
+
+    /** Aggiunge un utente all'indice
+     *
+     * @param user Utente da aggiungere
+     */
+    public void addUser(User user) {
+        String[] tags = user.getTags();
+        int[] ids = new int[tags.length];
+
+        for (int i=0; i<tags.length; i++)
+            ids[i] = intern(tags[i]);
+        Arrays.sort(ids);
+
+        userTags.put(user.getUsername(), new UserTags(ids));
+        for (int id : ids)
+            tagUsers.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(user.getUsername());
+    }
+
+    /** Restituisce i tag in comune tra due utenti
+     *
+     * @param userA Primo utente
+     * @param userB Secondo utente
+     * @return Un array di stringhe contenente i tag in comune, vuoto se non ce ne sono
+     */
+    public String[] getCommonTags(String userA, String userB) {
+        UserTags a = userTags.get(userA);
+        UserTags b = userTags.get(userB);
+
+        if (a == null || b == null || (a.mask & b.mask) == 0)
+            return new String[0];
+        return intersect(a.ids, b.ids);
+    }
+
+    /** Restituisce una pagina degli utenti che condividono almeno un tag con l'utente specificato, ordinati per
+     *  nome. Vengono considerati solo gli utenti che compaiono negli insiemi dei tag dell'utente, e dei candidati
+     *  si mantengono solo i primi nomi della pagina: i tag in comune vengono calcolati solo per gli utenti
+     *  restituiti, per cui il costo dipende dalla dimensione della pagina e non dal numero totale di utenti.
+     *
+     *  Vengono restituiti fino a limit + 1 utenti: se ce ne sono più di limit, l'ultimo indica che esistono altri
+     *  utenti oltre la pagina.
+     *
+     * @param user Utente di cui cercare gli utenti con interessi comuni
+     * @param after Ultimo utente della pagina precedente, null per la prima pagina
+     * @param limit Numero di utenti della pagina
+     * @return Mappa ordinata che associa a ogni utente i tag in comune
+     */
+    public TreeMap<String, String[]> getUsersSharingTags(String user, String after, int limit) {
+        TreeMap<String, String[]> ret = new TreeMap<>();
+        UserTags own = userTags.get(user);
+        if (own == null)
+            return ret;
+
+        // Primi limit + 1 candidati in ordine di nome: l'insieme è un TreeSet, per cui un utente che condivide più
+        // tag viene considerato una sola volta
+        TreeSet<String> page = new TreeSet<>();
+        for (int id : own.ids) {
+            Set<String> users = tagUsers.get(id);
+            if (users == null)
+                continue;
+
+            for (String other : users) {
+                if (other.equals(user) || (after != null && other.compareTo(after) <= 0))
+                    continue;
+                if (page.size() <= limit)
+                    page.add(other);
+                else if (other.compareTo(page.last()) < 0 && page.add(other))
+                    page.pollLast();
+            }
+        }
+
+        for (String other : page) {
+            UserTags otherTags = userTags.get(other);
+            if (otherTags != null)
+                ret.put(other, intersect(own.ids, otherTags.ids));
+        }
+        return ret;
+    }
+
+    /** Ricostruisce l'indice a partire dagli utenti passati come parametro. Usata dopo aver caricato i dati salvati.
+     *
+     * @param users Utenti del server
+     */
+    public void rebuild(Collection<User> users) {
+        tagUsers.clear();
+        userTags.clear();
+        for (User u : users)
+            addUser(u);
+    }
+
+    /** Restituisce l'id di un tag, assegnandone uno nuovo se il tag non è ancora stato registrato
+     *
+     * @param tag Nome del tag
+     * @return L'id del tag
+     */
+    private int intern(String tag) {
+        Integer id = tagIds.get(tag);
+        if (id != null)
+            return id;
+
+        synchronized (tagNames) {
+            return tagIds.computeIfAbsent(tag, k -> {
+                tagNames.add(k);
+                return tagNames.size() - 1;
+            });
+        }
+    }
+
+    /** Calcola l'intersezione di due array ordinati di id di tag
+     *
+     * @param a Primo array
+     * @param b Secondo array
+     * @return I nomi dei tag contenuti in entrambi gli array
+     */
+    private String[] intersect(int[] a, int[] b) {
+        List<String> ret = new ArrayList<>();
+        int i = 0, j = 0;
+
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                ret.add(tagNames.get(a[i]));
+                i++;
+                j++;
+            }
+        }
+
+        return ret.toArray(new String[0]);
+    }
+}
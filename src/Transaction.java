@@ -6,8 +6,8 @@ import java.sql.Timestamp;
  *
  */
 public class Transaction {
-    // Data di esecuzione della transazione
-    private final Timestamp timestamp;
+    // Data di esecuzione della transazione, in millisecondi dal 1/1/1970
+    private final long timestamp;
     // Quantità di wincoin assegnati per questa transazione
     private final double amount;
     // Causale della transazione
@@ -25,12 +25,27 @@ public class Transaction {
     public Transaction(String causal, double amount, Long post) {
         this.amount = amount;
         this.causal = causal;
-        this.timestamp = new Timestamp(System.currentTimeMillis());
+        this.timestamp = System.currentTimeMillis();
+        this.post = post;
+    }
+
+    /** Costruttore di una transazione già eseguita, usato per ricostruire le transazioni ricevute con la codifica
+     *  binaria
+     *
+     * @param causal Causale della transazione
+     * @param amount Quantità di denaro accreditato
+     * @param post Id del post per cui la transazione è stata eseguita
+     * @param timestamp Data di esecuzione della transazione
+     */
+    public Transaction(String causal, double amount, Long post, long timestamp) {
+        this.amount = amount;
+        this.causal = causal;
+        this.timestamp = timestamp;
         this.post = post;
     }
 
     // Getters degli attributi
-    public Timestamp getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
     public double getAmount() {
@@ -39,7 +54,10 @@ public class Transaction {
     public String getCausal() {
         return causal;
     }
+    public Long getPost() {
+        return post;
+    }
     public String getDate() {
-        return timestamp.toString();
+        return new Timestamp(timestamp).toString();
     }
 }
@@ -1,4 +1,3 @@
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -16,6 +15,9 @@ public class User {
     // Saldo totale dell'utente
     private double wallet;
     // Storico delle transazioni dell'utente
+    private Ledger ledger;
+    // Storico delle transazioni nel formato dei salvataggi precedenti al registro: viene spostato nel registro al
+    // primo accesso e poi non viene più salvato
     private List<Transaction> transactions;
 
     /** Costruttore di base che assegna i parametri agli atributi
@@ -29,13 +31,28 @@ public class User {
         this.password = password;
         this.tags = tags;
         this.wallet = 0;
-        this.transactions = new ArrayList<>();
+        this.ledger = new Ledger();
 
         // I tag vengono convertiti in lowercase
         for (int i=0; i<tags.length; i++)
             tags[i] = tags[i].toLowerCase(Locale.ROOT);
     }
 
+    /** Costruttore che assegna tutti gli attributi di un utente già esistente, usato per ricostruire gli utenti
+     *  caricati da uno snapshot binario
+     *
+     * @param username Nome utente
+     * @param password Hash in SHA256 della password dell'utente
+     * @param tags Lista di tag scelti dall'utente
+     * @param wallet Saldo totale dell'utente
+     * @param ledger Storico delle transazioni dell'utente
+     */
+    public User(String username, String password, String[] tags, double wallet, Ledger ledger) {
+        this(username, password, tags);
+        this.wallet = wallet;
+        this.ledger = ledger;
+    }
+
     // Semplici getter di base
     public String getUsername() {
         return username;
@@ -46,23 +63,77 @@ public class User {
     public String[] getTags() {
         return tags;
     }
-    public List<Transaction> getTransactions() {
-        return transactions;
+    /** Restituisce una pagina dello storico delle transazioni: le più recenti tra quelle precedenti al cursore.
+     *  La pagina è una copia, che può essere letta mentre vengono accreditate nuove ricompense.
+     *
+     * @param before Cursore restituito dalla pagina precedente, null per partire dalla transazione più recente
+     * @param limit Numero massimo di transazioni
+     * @return La pagina di transazioni
+     */
+    public synchronized Ledger.Page getTransactions(Long before, int limit) {
+        return ledger().page(before, limit);
     }
-    public double getWallet() {
+    public synchronized double getWallet() {
         return wallet;
     }
+    /** Restituisce il registro delle transazioni, usato per salvarlo: non deve essere modificato e va letto
+     *  sincronizzati sull'utente
+     *
+     * @return Il registro delle transazioni
+     */
+    public synchronized Ledger getLedger() {
+        return ledger();
+    }
+
+    /** Restituisce una copia dell'utente nello stato attuale, usata per salvarlo mentre il server continua a
+     *  modificarlo. Lo storico delle transazioni non viene copiato ma condiviso (vedi {@link Ledger#view()}).
+     *
+     * @return La copia dell'utente
+     */
+    public synchronized User copy() {
+        return new User(username, password, tags, wallet, ledger().view());
+    }
 
     /** Aggiunge una transazione allo storico, aggiornando anche il saldo totale
      *
      * @param toAdd Transazione da aggiungere
      */
-    public void addReward(Transaction toAdd) {
-        if (this.transactions == null)
-            this.transactions = new ArrayList<>();
+    public synchronized void addReward(Transaction toAdd) {
         // Aggiunta del saldo
         this.wallet += toAdd.getAmount();
         // Aggiunta della transazione
-        this.transactions.add(toAdd);
+        ledger().add(toAdd);
+    }
+
+    /** Aggiunge in blocco le transazioni assegnate da un calcolo delle ricompense, aggiornando anche il saldo totale
+     *
+     * @param toAdd Transazioni da aggiungere
+     */
+    public synchronized void addRewards(Ledger toAdd) {
+        this.wallet += toAdd.total();
+        ledger().addAll(toAdd);
+    }
+
+    /** Sposta nel registro lo storico caricato da un salvataggio precedente al registro, se presente
+     *
+     */
+    public synchronized void convertLegacyTransactions() {
+        ledger();
+    }
+
+    /** Restituisce il registro delle transazioni, creandolo o spostandovi lo storico caricato da un salvataggio
+     *  precedente se necessario
+     *
+     * @return Il registro delle transazioni
+     */
+    private Ledger ledger() {
+        if (ledger == null)
+            ledger = new Ledger(transactions == null ? 4 : transactions.size());
+        if (transactions != null) {
+            for (Transaction t : transactions)
+                ledger.add(t);
+            transactions = null;
+        }
+        return ledger;
     }
 }
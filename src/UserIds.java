@@ -0,0 +1,141 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Dizionario degli utenti: assegna a ogni username un id intero denso (0, 1, 2, ...) e ne conserva un'unica istanza.
+ *  Le strutture interne del server (relazioni di follow, votanti dei post) fanno riferimento agli id, mentre i nomi
+ *  vengono usati solo quando si comunica con i client o si salvano i dati. Tutte le altre occorrenze di uno username
+ *  (autori dei post, voti, commenti) condividono l'istanza restituita da {@link #canonical(String)}.
+ *
+ */
+public class UserIds {
+    // Id assegnato a ogni username
+    private final ConcurrentHashMap<String, Integer> ids;
+    // Username indicizzati per id
+    private volatile String[] names;
+    // Numero di id assegnati
+    private int count;
+
+    public UserIds() {
+        ids = new ConcurrentHashMap<>();
+        names = new String[16];
+        count = 0;
+    }
+
+    /** Restituisce l'id di un utente, assegnandone uno nuovo se l'utente non è ancora registrato nel dizionario
+     *
+     * @param name Username
+     * @return L'id dell'utente
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null)
+                return id;
+
+            if (count == names.length)
+                names = Arrays.copyOf(names, count * 2);
+            // Il nome viene scritto prima di pubblicare l'id, così chi legge l'id trova sempre il nome
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    /** Restituisce l'id di un utente senza registrarlo
+     *
+     * @param name Username
+     * @return L'id dell'utente, -1 se l'utente non è nel dizionario
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /** Restituisce lo username corrispondente a un id
+     *
+     * @param id Id dell'utente
+     * @return Lo username
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /** Restituisce il numero di id assegnati
+     *
+     * @return Il numero di id assegnati
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Restituisce l'istanza condivisa di uno username, o lo username stesso se non è nel dizionario
+     *
+     * @param name Username
+     * @return L'istanza condivisa dello username
+     */
+    public String canonical(String name) {
+        Integer id = ids.get(name);
+        return id == null ? name : names[id];
+    }
+
+    /** Converte un insieme di id nei rispettivi username
+     *
+     * @param set Insieme di id
+     * @return Lista degli username
+     */
+    public List<String> toNames(IntSet set) {
+        int[] values = set.toArray();
+        List<String> ret = new ArrayList<>(values.length);
+        for (int id : values)
+            ret.add(names[id]);
+        return ret;
+    }
+
+    /** Scrive gli username in ordine di id, usata per salvare il dizionario senza copiarlo
+     *
+     * @param out Writer su cui scrivere la lista degli username
+     * @throws IOException In caso di errore di scrittura
+     */
+    public synchronized void writeNames(JsonWriter out) throws IOException {
+        out.beginArray();
+        for (int i=0; i<count; i++)
+            out.value(names[i]);
+        out.endArray();
+    }
+
+    /** Copia un altro dizionario, assegnando gli stessi id. Usata per salvare il dizionario mentre il server
+     *  continua a registrare utenti.
+     *
+     * @param other Dizionario da copiare
+     */
+    public void copyFrom(UserIds other) {
+        String[] otherNames;
+        int otherCount;
+        synchronized (other) {
+            otherNames = other.names;
+            otherCount = other.count;
+        }
+        load(Arrays.asList(otherNames).subList(0, otherCount));
+    }
+
+    /** Carica un dizionario salvato in precedenza: l'i-esimo username riceve l'id i
+     *
+     * @param loaded Username in ordine di id
+     */
+    public synchronized void load(List<String> loaded) {
+        ids.clear();
+        names = new String[Math.max(16, loaded.size())];
+        count = 0;
+        for (String name : loaded)
+            intern(name);
+    }
+}
@@ -1,5 +1,3 @@
-import java.sql.Timestamp;
-
 /** Classe che rappresenta il voto di un utente a un post
  *
  */
@@ -8,8 +6,8 @@ public class Vote {
     private final int value;
     // Utente che ha eseguito il voto
     private final String user;
-    // Data di creazione del voto
-    private final Timestamp timestamp;
+    // Data di creazione del voto, in millisecondi dal 1/1/1970
+    private final long timestamp;
 
     /** Semplice costruttore che assegna i parametri agli attributi
      *
@@ -18,13 +16,19 @@ public class Vote {
      */
     public Vote(String user, int value) {
         this.user = user;
-        this.timestamp = new Timestamp(System.currentTimeMillis());
+        this.timestamp = System.currentTimeMillis();
+        this.value = value;
+    }
+
+    public Vote(String user, int value, long timestamp) {
+        this.user = user;
+        this.timestamp = timestamp;
         this.value = value;
     }
 
     // Semplici getters
     public String getUser() { return user; }
-    public Timestamp getTimestamp() { return timestamp; }
+    public long getTimestamp() { return timestamp; }
     public boolean isPositive() { return value > 0; }
     public int getValue() {return value;}
 }
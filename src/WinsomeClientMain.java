@@ -1,4 +1,3 @@
-import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import exceptions.ConfigException;
 import org.json.JSONObject;
@@ -17,6 +16,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static java.lang.Math.min;
 
@@ -67,6 +67,36 @@ class WinsomeClientMain implements IRemoteClient {
     // Socket timeout
     private long socketTimeout;
 
+    // Paginazione
+    // Numero di post richiesti per ogni pagina di feed o blog
+    private int pageSize;
+    // Cursore della prossima pagina del feed, null se non ci sono altri post
+    private Long feedCursor;
+    // Cursore della prossima pagina del blog, null se non ci sono altri post
+    private Long blogCursor;
+    // Cursore della prossima pagina degli utenti con interessi comuni, null se non ce ne sono altri
+    private String usersCursor;
+    // Cursore della prossima pagina dello storico delle transazioni, null se non ce ne sono altre
+    private Long walletCursor;
+    // Numero di default dei post per pagina
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    // Codifica
+    // Codifica richiesta al server al momento del login
+    private String requestedCodec;
+    // Codifica usata al momento per comunicare con il server: JSON fino al primo login
+    private WireCodec codec;
+
+    // Modalità pipeline
+    // Numero massimo di richieste inviate al server senza averne ricevuto la risposta
+    private static final int MAX_IN_FLIGHT = 64;
+    // Indica se le richieste vengono inviate senza aspettare la risposta della richiesta precedente
+    private boolean pipelined;
+    // Identificativo da assegnare alla prossima richiesta inviata in modalità pipeline
+    private long nextCorrId;
+    // Richieste in attesa di risposta: a ogni identificativo corrisponde la funzione che gestisce la risposta
+    private final LinkedHashMap<Long, Consumer<ServerReply>> pendingReplies;
+
     /** Costruttore del Client: inizializza la lista dei followers, crea lo stub del client per la notifica dei follower
      *  e cerca lo stub del server per la procedura di registrazione.
      *
@@ -75,6 +105,10 @@ class WinsomeClientMain implements IRemoteClient {
         super();
 
         followers = new ArrayList<>();
+        pendingReplies = new LinkedHashMap<>();
+        pageSize = DEFAULT_PAGE_SIZE;
+        requestedCodec = JsonCodec.NAME;
+        codec = JsonCodec.INSTANCE;
     }
 
     /** Callback chiamata dal server per notificare un nuovo follower
@@ -161,6 +195,10 @@ class WinsomeClientMain implements IRemoteClient {
                         this.tableUnicode = Boolean.parseBoolean(line.split(" ")[1].trim());
                     else if (line.startsWith("SOCKET_TIMEOUT"))
                         this.socketTimeout = Long.parseLong(line.split(" ")[1].trim());
+                    else if (line.startsWith("PAGE_SIZE"))
+                        this.pageSize = Integer.parseInt(line.split(" ")[1].trim());
+                    else if (line.startsWith("WIRE_CODEC"))
+                        this.requestedCodec = line.split(" ")[1].trim();
                     else
                         throw new ConfigException("Parametro inaspettato " + line);
 
@@ -245,6 +283,7 @@ class WinsomeClientMain implements IRemoteClient {
             JSONObject req = new JSONObject();
             req.put("op", OpCodes.LOGIN);
             req.put("username", args[1]);
+            req.put("codec", requestedCodec);
             // Hashing della password per permettere al server di poterla confrontare con l'hash fornito al momento
             // della registrazione
             try {
@@ -256,17 +295,21 @@ class WinsomeClientMain implements IRemoteClient {
             }
 
             try {
-                // Invio della richiesta
-                ComUtility.sendSync(req.toString(), socket);
-
-                // Ricezione della risposta
-                JSONObject response = new JSONObject(ComUtility.receive(socket));
+                // Invio della richiesta e ricezione della risposta: il login cambia lo stato della sessione, per cui
+                // viene sempre eseguito dopo aver ricevuto le risposte alle richieste precedenti
+                ServerReply response = exchange(req);
                 ClientError.handleError("Login avvenuto con successo. Benvenut@ " + args[1],
                         response.getInt("errCode"), response.getString("errMsg"));
 
                 // In caso di successo, registro il client per la ricezione delle notifiche
                 if (response.getInt("errCode") == 0) {
                     currUsername = args[1];
+                    feedCursor = null;
+                    blogCursor = null;
+                    usersCursor = null;
+                    walletCursor = null;
+                    // Da questo momento uso la codifica confermata dal server
+                    codec = WireCodec.byName(response.optString("codec", JsonCodec.NAME));
 
                     try {
                         // Registrazine alla callback del server per i nuovi following
@@ -309,11 +352,8 @@ class WinsomeClientMain implements IRemoteClient {
             req.put("user", currUsername);
 
             try {
-                // Invio della richiesta
-                ComUtility.sendSync(req.toString(), socket);
-
-                // Ricezione della risposta e gestione dell'errore
-                JSONObject reply = new JSONObject(ComUtility.receive(socket));
+                // Invio della richiesta, ricezione della risposta e gestione dell'errore
+                ServerReply reply = exchange(req);
                 ClientError.handleError("Logout eseguito correttamente",
                         reply.getInt("errCode"), reply.getString("errMsg"));
 
@@ -356,14 +396,11 @@ class WinsomeClientMain implements IRemoteClient {
             return;
         }
 
-        // Tabella contenente i dati richiesti dall'utente
-        TableList output;
         // Argomenti (minimo uno, che specifica il tipo di contenuto da recuperare (users, following, followers)
         String[] args = getStringArgs(comm, 1);
 
-        // Richiesta e risposta
+        // Richiesta
         JSONObject request = new JSONObject();
-        JSONObject reply;
 
         // In ogni caso, inserisco il nome dell'utente che ha richiesto l'operazione
         request.put("user", currUsername);
@@ -375,26 +412,41 @@ class WinsomeClientMain implements IRemoteClient {
                 case "users": {
                     // Imposto l'operazione corretta
                     request.put("op", OpCodes.LIST_USERS);
+                    request.put("limit", pageSize);
 
                     try {
-                        // Spedisco richiesta e ricevo risposta
-                        ComUtility.sendSync(request.toString(), socket);
-                        reply = new JSONObject(ComUtility.receive(socket));
-
-                        // Gestione dell'errore
-                        if (ClientError.handleError("Lista degli utenti con cui condividi degli interessi: ",
-                                reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
-                            // In caso di successo, recupera la lista ritornata e stampala
-                            HashMap<String, String[]> names = new Gson().fromJson(reply.getString("items"),
-                                    new TypeToken<HashMap<String, String[]>>() {
-                                    }.getType());
-                            output = new TableList("Utente", "Interessi in comune");
-                            output.withUnicode(tableUnicode);
-
-                            for (String name : names.keySet())
-                                output.addRow(name, Arrays.toString(names.get(name)));
-                            output.print();
+                        // Con "list users next" richiedo la pagina successiva all'ultima visualizzata
+                        if (args.length > 2 && args[2].equals("next")) {
+                            drainReplies();
+                            if (usersCursor == null) {
+                                System.out.println("Non ci sono altri utenti da visualizzare");
+                                return;
+                            }
+                            request.put("after", usersCursor);
                         }
+
+                        // Spedisco richiesta e gestisco la risposta
+                        sendRequest(request, reply -> {
+                            // Gestione dell'errore
+                            if (ClientError.handleError("Lista degli utenti con cui condividi degli interessi: ",
+                                    reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
+                                // In caso di successo, recupera la lista ritornata e stampala
+                                LinkedHashMap<String, String[]> names = reply.getItems("items",
+                                        new TypeToken<LinkedHashMap<String, String[]>>() {
+                                        }.getType());
+                                TableList output = new TableList("Utente", "Interessi in comune");
+                                output.withUnicode(tableUnicode);
+
+                                for (String name : names.keySet())
+                                    output.addRow(name, Arrays.toString(names.get(name)));
+                                output.print();
+
+                                // Salvataggio del cursore della pagina successiva
+                                usersCursor = reply.has("next") ? reply.getString("next") : null;
+                                if (usersCursor != null)
+                                    System.out.println("Usa 'list users next' per visualizzare gli utenti successivi");
+                            }
+                        });
                     } catch (IOException e) {
                         System.err.println("Errore di comunicazione tra client e server");
                     }
@@ -402,7 +454,7 @@ class WinsomeClientMain implements IRemoteClient {
                 break;
                 case "followers": {
                     // Nel caso dei follower, basta stampare gli oggetti contenuti nella lista di followers
-                    output = new TableList("Nome utente");
+                    TableList output = new TableList("Nome utente");
                     output.withUnicode(tableUnicode);
                     for (String follower : followers)
                         output.addRow(follower);
@@ -413,22 +465,21 @@ class WinsomeClientMain implements IRemoteClient {
                     request.put("op", OpCodes.LIST_FOLLOWING);
 
                     try {
-                        ComUtility.sendSync(request.toString(), socket);
-                        reply = new JSONObject(ComUtility.receive(socket));
-
-                        // Stampa della lista in caso di successo della richiesta
-                        if (ClientError.handleError("Lista degli utenti che segui: ",
-                                reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
-                            List<String> names = new Gson().fromJson(reply.getString("items"),
-                                    new TypeToken<List<String>>() {
-                                    }.getType());
-                            output = new TableList("Nome utente");
-                            output.withUnicode(tableUnicode);
-
-                            for (String name : names)
-                                output.addRow(name);
-                            output.print();
-                        }
+                        sendRequest(request, reply -> {
+                            // Stampa della lista in caso di successo della richiesta
+                            if (ClientError.handleError("Lista degli utenti che segui: ",
+                                    reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
+                                List<String> names = reply.getItems("items",
+                                        new TypeToken<List<String>>() {
+                                        }.getType());
+                                TableList output = new TableList("Nome utente");
+                                output.withUnicode(tableUnicode);
+
+                                for (String name : names)
+                                    output.addRow(name);
+                                output.print();
+                            }
+                        });
                     }
                     catch (IOException e) {
                         System.err.println("Errore di comunicazione tra client e server");
@@ -454,9 +505,8 @@ class WinsomeClientMain implements IRemoteClient {
 
         String[] args = getStringArgs(comm, 1);
         if (args != null) {
-            // Richiesta e risposta
+            // Richiesta
             JSONObject req = new JSONObject();
-            JSONObject reply;
 
             // Preparazione della richiesta
             req.put("user", currUsername);
@@ -464,12 +514,9 @@ class WinsomeClientMain implements IRemoteClient {
             req.put("op", OpCodes.FOLLOW);
 
             try {
-                // Ricezinoe della risposta e gestione dell'errore
-                ComUtility.sendSync(req.toString(), socket);
-                reply = new JSONObject(ComUtility.receive(socket));
-
-                ClientError.handleError("Ora segui " + args[1],
-                        reply.getInt("errCode"), reply.getString("errMsg"));
+                // Invio della richiesta, ricezione della risposta e gestione dell'errore
+                sendRequest(req, reply -> ClientError.handleError("Ora segui " + args[1],
+                        reply.getInt("errCode"), reply.getString("errMsg")));
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -492,9 +539,8 @@ class WinsomeClientMain implements IRemoteClient {
         }
         String[] args = getStringArgs(comm, 1);
         if (args != null) {
-            // Richiesta e risposta
+            // Richiesta
             JSONObject req = new JSONObject();
-            JSONObject reply;
 
             // Preparazione della richiesta
             req.put("user", currUsername);
@@ -503,11 +549,8 @@ class WinsomeClientMain implements IRemoteClient {
 
             try {
                 // Invio della richiesta, ricezione della risposta e gestione dell'errore
-                ComUtility.sendSync(req.toString(), socket);
-                reply = new JSONObject(ComUtility.receive(socket));
-
-                ClientError.handleError("Hai smesso di seguire " + args[1],
-                        reply.getInt("errCode"), reply.getString("errMsg"));
+                sendRequest(req, reply -> ClientError.handleError("Hai smesso di seguire " + args[1],
+                        reply.getInt("errCode"), reply.getString("errMsg")));
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -554,16 +597,13 @@ class WinsomeClientMain implements IRemoteClient {
             req.put("postContent", args[1]);
 
             try {
-                // Invia richiesta, ricevi risposta e gestisci l'errore
-                ComUtility.sendSync(req.toString(), socket);
-                JSONObject reply = new JSONObject(ComUtility.receive(socket));
-
                 TableList output = new TableList("Titolo", "Contenuto")
                         .withUnicode(true).addRow(args[0], args[1]);
                 output.withUnicode(tableUnicode);
 
-                ClientError.handleError("Post creato con successo.", output,
-                        reply.getInt("errCode"), reply.getString("errMsg"));
+                // Invia richiesta, ricevi risposta e gestisci l'errore
+                sendRequest(req, reply -> ClientError.handleError("Post creato con successo.", output,
+                        reply.getInt("errCode"), reply.getString("errMsg")));
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -575,34 +615,19 @@ class WinsomeClientMain implements IRemoteClient {
     }
 
 
-    /** Implementa la visualizzazione del blog dell'utente
+    /** Implementa la visualizzazione del blog dell'utente, una pagina alla volta: il comando "blog" mostra i post
+     *  più recenti, mentre "blog next" mostra la pagina successiva a quella visualizzata per ultima
      *
+     * @param command Comando contenente gli eventuali parametri della funzione blog
      */
-    public void showBlog() {
+    public void showBlog(String command) {
         if (currUsername == null) {
             System.err.println("Non sei loggat@. Esegui l'accesso per completare l'operazione.");
             return;
         }
-        // Preparazione della tabella di risultati
-        TableList out = new TableList("Id post", "Titolo", "Autore", "Rewinner");
-        out.withUnicode(tableUnicode);
-        JSONObject req = new JSONObject();
-
-        // Preparazione della richiesta
-        req.put("op", OpCodes.SHOW_BLOG);
-        req.put("user", currUsername);
 
         try {
-            // Invio della richiesa e ricezione della risposta
-            ComUtility.sendSync(req.toString(), socket);
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-
-            // Stampa dei post del blog
-            List<Post> posts = new Gson().fromJson(reply.getString("items"), new TypeToken<List<Post>>() {
-            }.getType());
-            for (Post p : posts)
-                out.addRow("" + p.getId(), p.getTitle(), p.getAuthor(), p.getRewinner());
-            out.print();
+            requestPage(OpCodes.SHOW_BLOG, command, "blog", next -> blogCursor = next);
         }
         catch (IOException e) {
             System.err.println("Errore di comunicazione tra client e server");
@@ -610,39 +635,73 @@ class WinsomeClientMain implements IRemoteClient {
     }
 
 
-    /** Implementa la visualizzazione del blog dell'utente. In aggiunta alla specifica, si stampa anche il nome dello
-     *  utente che ha rewinnato un post, in modo da distinguere tra eventuali post originali e rewin di quel post
+    /** Implementa la visualizzazione del feed dell'utente, una pagina alla volta. In aggiunta alla specifica, si
+     *  stampa anche il nome dello utente che ha rewinnato un post, in modo da distinguere tra eventuali post originali
+     *  e rewin di quel post
      *
+     * @param command Comando contenente gli eventuali parametri della funzione feed
      */
-    public void showFeed() {
+    public void showFeed(String command) {
         if (currUsername == null) {
             System.err.println("Non sei loggat@. Esegui l'accesso per completare l'operazione.");
             return;
         }
 
-        // Preparazione della tabella dei risultati
-        TableList out = new TableList("Id post", "Titolo", "Autore", "Rewinner");
-        out.withUnicode(tableUnicode);
+        try {
+            requestPage(OpCodes.SHOW_FEED, command, "feed", next -> feedCursor = next);
+        }
+        catch (IOException e) {
+            System.err.println("Errore di comunicazione tra client e server");
+        }
+    }
+
+
+    /** Richiede al server una pagina del feed o del blog e la stampa
+     *
+     * @param op Codice dell'operazione (SHOW_FEED o SHOW_BLOG)
+     * @param command Comando inserito dall'utente
+     * @param name Nome del comando, usato nei messaggi all'utente
+     * @param setCursor Funzione che salva il cursore della pagina successiva a quella richiesta
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private void requestPage(int op, String command, String name, Consumer<Long> setCursor)
+            throws IOException {
+        String[] args = command.split(" ");
+        boolean next = args.length > 1 && args[1].equals("next");
         JSONObject req = new JSONObject();
 
         // Preparazione della richiesta
-        req.put("op", OpCodes.SHOW_FEED);
+        req.put("op", op);
         req.put("user", currUsername);
+        req.put("limit", pageSize);
+
+        if (next) {
+            // Il cursore viene aggiornato dalla risposta alla richiesta precedente, che deve quindi essere arrivata
+            drainReplies();
+            Long cursor = op == OpCodes.SHOW_FEED ? feedCursor : blogCursor;
+            if (cursor == null) {
+                System.out.println("Non ci sono altri post da visualizzare");
+                return;
+            }
+            req.put("before", cursor);
+        }
 
-        try {
-            ComUtility.sendSync(req.toString(), socket);
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-
-            // Stampo i post del feed
-            List<Post> posts = new Gson().fromJson(reply.getString("items"), new TypeToken<List<Post>>() {
+        sendRequest(req, reply -> {
+            // Stampa dei post della pagina
+            TableList out = new TableList("Id post", "Titolo", "Autore", "Rewinner");
+            out.withUnicode(tableUnicode);
+            List<Post> posts = reply.getItems("items", new TypeToken<List<Post>>() {
             }.getType());
             for (Post p : posts)
                 out.addRow("" + p.getId(), p.getTitle(), p.getAuthor(), p.getRewinner());
             out.print();
-        }
-        catch (IOException e) {
-            System.err.println("Errore di comunicazione tra client e server");
-        }
+
+            // Salvataggio del cursore della pagina successiva
+            Long nextCursor = reply.has("next") ? reply.getLong("next") : null;
+            setCursor.accept(nextCursor);
+            if (nextCursor != null)
+                System.out.println("Usa '" + name + " next' per visualizzare i post successivi");
+        });
     }
 
 
@@ -674,11 +733,8 @@ class WinsomeClientMain implements IRemoteClient {
 
         try {
             // Invio della richiesta, ricezione della risposta e gestione dell'errore
-            ComUtility.sendSync(req.toString(), socket);
-
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-            ClientError.handleError("Valutazione aggiunta", reply.getInt("errCode"),
-                    reply.getString("errMsg"));
+            sendRequest(req, reply -> ClientError.handleError("Valutazione aggiunta", reply.getInt("errCode"),
+                    reply.getString("errMsg")));
         }
         catch (IOException e) {
             System.err.println("Errore di comunicazione tra client e server");
@@ -715,11 +771,8 @@ class WinsomeClientMain implements IRemoteClient {
 
         try {
             // Invio della richiesta, ricezione della risposta e gestione dell'errore
-            ComUtility.sendSync(req.toString(), socket);
-
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-            ClientError.handleError("Commento aggiunto correttamente.", reply.getInt("errCode"),
-                    reply.getString("errMsg"));
+            sendRequest(req, reply -> ClientError.handleError("Commento aggiunto correttamente.",
+                    reply.getInt("errCode"), reply.getString("errMsg")));
         }
         catch (IOException e) {
             System.err.println("Errore di comunicazione tra client e server");
@@ -752,34 +805,32 @@ class WinsomeClientMain implements IRemoteClient {
             req.put("post", Long.parseLong(args[2]));
 
             try {
-                ComUtility.sendSync(req.toString(), socket);
-                String received = ComUtility.receive(socket);
-                JSONObject reply = new JSONObject(received);
-
-                // Se la richiesta è andata a buon fine
-                if (ClientError.handleError("Dettagli post " + args[2] + ": ",
-                        reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
-
-                    // Recupera la lista di commenti dal post
-                    List<Comment> comments = new Gson().fromJson(reply.getString("comments"),
-                            new TypeToken<List<Comment>>() {
-                            }.getType());
-                    // Stampa i dettagli del post
-                    out.addRow(args[2], reply.getString("title"), reply.getString("content"),
-                            "" + reply.getInt("nUpvotes"), "" + reply.getInt("nDownvotes"));
-                    out.print();
-
-                    // Se ci sono dei commenti, stampali
-                    if (comments != null) {
-                        System.out.println("Commenti: ");
-                        TableList commentTable = new TableList("Autore", "Commento");
-                        commentTable.withUnicode(tableUnicode);
-
-                        for (Comment c : comments)
-                            commentTable.addRow(c.getUser(), c.getContent());
-                        commentTable.print();
+                sendRequest(req, reply -> {
+                    // Se la richiesta è andata a buon fine
+                    if (ClientError.handleError("Dettagli post " + args[2] + ": ",
+                            reply.getInt("errCode"), reply.getString("errMsg")) == 0) {
+
+                        // Recupera la lista di commenti dal post
+                        List<Comment> comments = reply.getItems("comments",
+                                new TypeToken<List<Comment>>() {
+                                }.getType());
+                        // Stampa i dettagli del post
+                        out.addRow(args[2], reply.getString("title"), reply.getString("content"),
+                                "" + reply.getInt("nUpvotes"), "" + reply.getInt("nDownvotes"));
+                        out.print();
+
+                        // Se ci sono dei commenti, stampali
+                        if (comments != null) {
+                            System.out.println("Commenti: ");
+                            TableList commentTable = new TableList("Autore", "Commento");
+                            commentTable.withUnicode(tableUnicode);
+
+                            for (Comment c : comments)
+                                commentTable.addRow(c.getUser(), c.getContent());
+                            commentTable.print();
+                        }
                     }
-                }
+                });
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -813,10 +864,8 @@ class WinsomeClientMain implements IRemoteClient {
 
         try {
             // Invio la richiesta, ricevo la risposta e gestisco l'errore
-            ComUtility.sendSync(req.toString(), socket);
-
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-            ClientError.handleError("Post eliminato", reply.getInt("errCode"), reply.getString("errMsg"));
+            sendRequest(req, reply -> ClientError.handleError("Post eliminato", reply.getInt("errCode"),
+                    reply.getString("errMsg")));
         }
         catch (IOException e) {
             System.err.println("Errore di comunicazione tra client e server");
@@ -844,16 +893,13 @@ class WinsomeClientMain implements IRemoteClient {
         // Preparazione della richiesta
         JSONObject req = new JSONObject();
         req.put("user", currUsername);
-        req.put("post", args[1]);
+        req.put("post", Long.parseLong(args[1]));
         req.put("op", OpCodes.REWIN_POST);
 
         try {
             // Invio la richiesta, ricevo la risposta e gestisco l'errore
-            ComUtility.sendSync(req.toString(), socket);
-
-            JSONObject reply = new JSONObject(ComUtility.receive(socket));
-            ClientError.handleError("Il post e' stato rewinnato", reply.getInt("errCode"),
-                    reply.getString("errMsg"));
+            sendRequest(req, reply -> ClientError.handleError("Il post e' stato rewinnato", reply.getInt("errCode"),
+                    reply.getString("errMsg")));
         }
         catch (IOException e) {
             System.err.println("Errore di comunicazione tra client e server");
@@ -874,37 +920,52 @@ class WinsomeClientMain implements IRemoteClient {
         String[] args = getStringArgs(command, 0);
         JSONObject req = new JSONObject();
 
-        // Se ho un argomento solo (il nome del comando), stampo valore totale del portafoglio e storico delle transazioni
-        if (args.length == 1) {
+        // Se ho un argomento solo (il nome del comando), stampo valore totale del portafoglio e le transazioni più
+        // recenti; con l'argomento "next" stampo la pagina di transazioni precedente
+        if (args.length == 1 || args[1].equals("next")) {
             // Preparazione della richiesta
             req.put("op", OpCodes.WALLET);
             req.put("user", currUsername);
+            req.put("limit", pageSize);
             try {
-                // Invio della richiesta
-                ComUtility.sendSync(req.toString(), socket);
-                // Ricezione della risposta
-                JSONObject reply = new JSONObject(ComUtility.receive(socket));
-
-                // Verifico la presenza di errori
-                if (ClientError.handleError("", reply.getInt("errCode"),
-                        reply.getString("errMsg")) == 0) {
-                    // Se non si sono verificati errori, estraggo lo storico delle transazioni
-                    TableList transactionOut = new TableList("Data", "Importo", "Causale");
-                    transactionOut.withUnicode(tableUnicode);
-                    List<Transaction> transactions = new Gson().fromJson(reply.getString("transactions"),
-                            new TypeToken<List<Transaction>>() {
-                            }.getType());
-                    // Formattatore dei valori float
-                    DecimalFormat twoDigits = new DecimalFormat("0.00");
-
-                    // Stampa del totale
-                    System.out.println("Totale nel portafoglio: " + twoDigits.format(reply.getDouble("amount")) + " wincoins");
-                    // Stampa delle transazioni
-                    for (Transaction t : transactions)
-                        transactionOut.addRow(t.getDate(), "" + twoDigits.format(t.getAmount()), t.getCausal());
-                    System.out.println("Lista delle transazioni: ");
-                    transactionOut.print();
+                if (args.length > 1) {
+                    // Il cursore viene aggiornato dalla risposta alla richiesta precedente
+                    drainReplies();
+                    if (walletCursor == null) {
+                        System.out.println("Non ci sono altre transazioni da visualizzare");
+                        return;
+                    }
+                    req.put("before", walletCursor);
                 }
+
+                // Invio della richiesta e ricezione della risposta
+                sendRequest(req, reply -> {
+                    // Verifico la presenza di errori
+                    if (ClientError.handleError("", reply.getInt("errCode"),
+                            reply.getString("errMsg")) == 0) {
+                        // Se non si sono verificati errori, estraggo lo storico delle transazioni
+                        TableList transactionOut = new TableList("Data", "Importo", "Causale");
+                        transactionOut.withUnicode(tableUnicode);
+                        List<Transaction> transactions = reply.getItems("transactions",
+                                new TypeToken<List<Transaction>>() {
+                                }.getType());
+                        // Formattatore dei valori float
+                        DecimalFormat twoDigits = new DecimalFormat("0.00");
+
+                        // Stampa del totale
+                        System.out.println("Totale nel portafoglio: " + twoDigits.format(reply.getDouble("amount")) + " wincoins");
+                        // Stampa delle transazioni
+                        for (Transaction t : transactions)
+                            transactionOut.addRow(t.getDate(), "" + twoDigits.format(t.getAmount()), t.getCausal());
+                        System.out.println("Lista delle transazioni: ");
+                        transactionOut.print();
+
+                        // Salvataggio del cursore della pagina successiva
+                        walletCursor = reply.has("next") ? reply.getLong("next") : null;
+                        if (walletCursor != null)
+                            System.out.println("Usa 'wallet next' per visualizzare le transazioni precedenti");
+                    }
+                });
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -919,11 +980,8 @@ class WinsomeClientMain implements IRemoteClient {
             // Invio la richiesta, ricevo la risposta, gestisco l'errore e se non se ne sono verificati, stampo il
             // valore del portafoglio in bitcoin
             try {
-                ComUtility.sendSync(req.toString(), socket);
-
-                JSONObject reply = new JSONObject(ComUtility.receive(socket));
-                System.out.println("Totale nel portafoglio in Bitcoin: " +
-                        new DecimalFormat("0.00").format(reply.getDouble("btc")));
+                sendRequest(req, reply -> System.out.println("Totale nel portafoglio in Bitcoin: " +
+                        new DecimalFormat("0.00").format(reply.getDouble("btc"))));
             }
             catch (IOException e) {
                 System.err.println("Errore di comunicazione tra client e server");
@@ -982,6 +1040,113 @@ class WinsomeClientMain implements IRemoteClient {
         }
     }
 
+    /** Invia una richiesta al server e ne gestisce la risposta tramite la funzione passata come parametro.
+     *
+     *  Normalmente la risposta viene attesa e gestita subito. In modalità pipeline invece alla richiesta viene
+     *  assegnato un identificativo e la funzione viene conservata finché il server non invia la risposta
+     *  corrispondente: in tal modo è possibile inviare più richieste senza pagare un round trip per ognuna.
+     *
+     * @param req Richiesta da inviare
+     * @param onReply Funzione che gestisce la risposta del server
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private void sendRequest(JSONObject req, Consumer<ServerReply> onReply) throws IOException {
+        if (!pipelined) {
+            onReply.accept(exchange(req));
+            return;
+        }
+
+        // Se ci sono troppe richieste in attesa, aspetto la risposta alla più vecchia prima di inviarne altre
+        if (pendingReplies.size() >= MAX_IN_FLIGHT)
+            receivePending();
+
+        long corrId = nextCorrId++;
+        req.put("corrId", corrId);
+        pendingReplies.put(corrId, onReply);
+        ComUtility.sendSync(codec.encodeRequest(req), socket);
+    }
+
+    /** Invia una richiesta al server e ne attende la risposta. Eventuali richieste inviate in modalità pipeline
+     *  vengono completate prima di inviare la nuova richiesta.
+     *
+     * @param req Richiesta da inviare
+     * @return La risposta del server
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private ServerReply exchange(JSONObject req) throws IOException {
+        drainReplies();
+
+        ComUtility.sendSync(codec.encodeRequest(req), socket);
+        byte[] received = ComUtility.receive(socket);
+        if (received == null)
+            throw new IOException("Connessione chiusa dal server");
+
+        return codec.decodeReply(received);
+    }
+
+    /** Riceve una risposta dal server e la passa alla funzione associata al suo identificativo
+     *
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private void receivePending() throws IOException {
+        byte[] received = ComUtility.receive(socket);
+        if (received == null)
+            throw new IOException("Connessione chiusa dal server");
+
+        ServerReply reply = codec.decodeReply(received);
+        Consumer<ServerReply> onReply = pendingReplies.remove(reply.optLong("corrId", -1));
+        if (onReply != null)
+            onReply.accept(reply);
+    }
+
+    /** Riceve e gestisce le risposte a tutte le richieste inviate in modalità pipeline
+     *
+     * @throws IOException In caso di errore di comunicazione
+     */
+    private void drainReplies() throws IOException {
+        while (!pendingReplies.isEmpty())
+            receivePending();
+    }
+
+    /** Esegue in modalità pipeline i comandi contenuti in un file, uno per riga: le richieste vengono inviate una
+     *  dopo l'altra e le risposte vengono gestite man mano che arrivano. I comandi che cambiano la sessione (login
+     *  e logout) attendono comunque le risposte ai comandi precedenti.
+     *
+     * @param comm Comando contenente il path del file
+     */
+    public void batch(String comm) {
+        String[] args = getStringArgs(comm, 1);
+        if (args == null) {
+            System.err.println("Errore: specificare il file contenente i comandi da eseguire");
+            return;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(args[1]))) {
+            String line;
+            pipelined = true;
+
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                // Ignoro righe vuote e commenti, oltre a comandi che non hanno senso all'interno di un batch
+                if (line.equals("") || line.startsWith("#") || line.startsWith("batch") || line.startsWith("quit"))
+                    continue;
+                runCommand(line);
+            }
+
+            drainReplies();
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Errore: file " + args[1] + " non trovato");
+        }
+        catch (IOException e) {
+            System.err.println("Errore di comunicazione tra client e server");
+            pendingReplies.clear();
+        }
+        finally {
+            pipelined = false;
+        }
+    }
+
     /** Data una stringa contenente comando e parametri per una certa funzione, estrae i parametri
      *
      * @param comm Comando da parsare
@@ -1023,6 +1188,111 @@ class WinsomeClientMain implements IRemoteClient {
         return Arrays.copyOf(args.toArray(), args.size(), String[].class);
     }
 
+    /** Richiede operazioni diverse in base al comando inserito dall'utente
+     *
+     * @param command Comando da eseguire, comprensivo dei parametri
+     */
+    public void runCommand(String command) {
+        switch (command.split(" ")[0]) {
+            case "register":
+                signup(command);
+                break;
+            case "login":
+                login(command);
+                break;
+            case "logout":
+                logout();
+                break;
+            case "list":
+                list(command);
+                break;
+            case "follow":
+                follow(command);
+                break;
+            case "unfollow":
+                unfollow(command);
+                break;
+            case "post":
+                post(command);
+                break;
+            case "blog":
+                showBlog(command);
+                break;
+            case "feed":
+                showFeed(command);
+                break;
+            case "rate":
+                rate(command);
+                break;
+            case "comment":
+                comment(command);
+                break;
+            case "show":
+                if (command.split(" ").length > 1 && command.split(" ")[1].equals("post"))
+                    showPost(command);
+                break;
+            case "delete":
+                deletePost(command);
+                break;
+            case "rewin":
+                rewinPost(command);
+                break;
+            case "wallet":
+                wallet(command);
+                break;
+            case "batch":
+                batch(command);
+                break;
+            case "help":
+                System.out.println("ISTRUZIONI DI ESECUZIONE DEL CLIENT\n\n" +
+                        "help -> stampa questo messaggio.\n\n" +
+                        "quit -> chiude il client ed eventualmente la connessione con il server.\n\n" +
+                        "register <user> <password> <tag1> [<tag2>][<tag3>][<tag4>][<tag5>] ->" +
+                        "registra un utente con il nome 'user', password 'password' e lista di tag <tagn>. Il" +
+                        " primo tag è obbligatorio, gli altri sono opzionali.\n\n" +
+                        "login <user> <password> -> effettua il login dell'utente 'user' con la password 'password'.\n\n" +
+                        "logout -> effettua il logout dell'utente corrente.\n\n" +
+                        "list users -> mostra la lista degli utenti che condividono almeno un tag con l'utente " +
+                        "loggato al momento.\n\n" +
+                        "list users next -> mostra la pagina successiva della lista degli utenti.\n\n" +
+                        "list following -> mostra la lista degli utenti seguiti dall'utente loggato al momento.\n\n" +
+                        "list following -> mostra la lista dei followers dell'utente loggato al momento.\n\n" +
+                        "follow <user> -> permette all'utente correntemente loggato di seguire l'utente 'user'," +
+                        "ricevendone gli aggiornamenti sul feed.\n\n" +
+                        "unfollow <user> -> permette all'utente correntemente loggato di smettere di seguire l'utente" +
+                        " 'user', cessando di riceverne gli aggiornamenti sul feed.\n\n" +
+                        "post \"<titolo>\" \"<contenuto>\" -> crea un post avente come autore l'utente loggato al momento." +
+                        " Titolo e contenuto devono essere racchiusi tra doppi apici.\n\n" +
+                        "blog -> visualizza il blog dell'utente loggato, ovvero la lista di post da esso creati o rewinnati\n\n" +
+                        "blog next -> visualizza la pagina successiva del blog.\n\n" +
+                        "feed -> visualizza il feed dell'utente loggato, cioè la lista dei post creati o rewinnati dagli utenti seguiti.\n\n" +
+                        "feed next -> visualizza la pagina successiva del feed.\n\n" +
+                        "rate <postId> <val> -> consente di valutare un post presente nel feed dell'utente loggato" +
+                        " al momento. 'postId' e' l'identificativo del post, mentre 'val' e' il valore del voto: " +
+                        "se negativo vale -1, altrimenti vale 1.\n\n" +
+                        "comment <postId> \"<contenuto>\" -> aggiunge un commento al post con id 'postId', il cui contenuto" +
+                        " e' 'contenuto'. Tale parametro dev'essere racchiuso tra doppi apici.\n\n" +
+                        "show post <postId> -> mostra in dettaglio il post identificato dall'id <postId>, se esso e'" +
+                        " nel feed o nel blog dell'utente.\n\n" +
+                        "delete <postId> -> elimina il post con id <postId>. Nel caso di rewin si elimina solo il rewin, " +
+                        "altrimenti se il post era originale, si eliminano anche eventuali rewin, commenti e voti.\n\n" +
+                        "rewin <postId> -> effettua il rewin del post con id <postId>. Se si sta cercando di rewinnare " +
+                        "un rewin, l'effetto e' quello di rewinnare il post originale.\n\n" +
+                        "wallet -> visualizza il wallet dell'utente loggato al momento, ovvero il totale di wincoin" +
+                        " nel wallet e la lista delle transazioni più recenti indirizzate a quell'utente.\n\n" +
+                        "wallet next -> visualizza la pagina precedente delle transazioni.\n\n" +
+                        "wallet btc -> converte il totale di wincoin nel wallet dell'utente in bitcoin, generando " +
+                        "un tasso di conversione casuale tramite random.org.\n\n" +
+                        "batch <file> -> esegue i comandi contenuti nel file 'file', uno per riga, inviando le " +
+                        "richieste al server senza attendere ogni volta la risposta precedente.\n\n");
+            case "quit":
+                break;
+            default:
+                System.err.println("Comando errato o non ammesso");
+                break;
+        }
+    }
+
     public static void main(String[] args) {
         if (args.length < 1) {
             new ConfigException("File non indicato").printErr();
@@ -1053,96 +1323,8 @@ class WinsomeClientMain implements IRemoteClient {
                 // Leggi il comando
                 currCommand = reader.readLine();
 
-                // Richiedi operazioni diverse in base al comando
-                switch (currCommand.split(" ")[0]) {
-                    case "register":
-                        client.signup(currCommand);
-                        break;
-                    case "login":
-                        client.login(currCommand);
-                        break;
-                    case "logout":
-                        client.logout();
-                        break;
-                    case "list":
-                        client.list(currCommand);
-                        break;
-                    case "follow":
-                        client.follow(currCommand);
-                        break;
-                    case "unfollow":
-                        client.unfollow(currCommand);
-                        break;
-                    case "post":
-                        client.post(currCommand);
-                        break;
-                    case "blog":
-                        client.showBlog();
-                        break;
-                    case "feed":
-                        client.showFeed();
-                        break;
-                    case "rate":
-                        client.rate(currCommand);
-                        break;
-                    case "comment":
-                        client.comment(currCommand);
-                        break;
-                    case "show":
-                        if (currCommand.split(" ").length > 1 && currCommand.split(" ")[1].equals("post"))
-                            client.showPost(currCommand);
-                        break;
-                    case "delete":
-                        client.deletePost(currCommand);
-                        break;
-                    case "rewin":
-                        client.rewinPost(currCommand);
-                        break;
-                    case "wallet":
-                        client.wallet(currCommand);
-                        break;
-                    case "help":
-                        System.out.println("ISTRUZIONI DI ESECUZIONE DEL CLIENT\n\n" +
-                                "help -> stampa questo messaggio.\n\n" +
-                                "quit -> chiude il client ed eventualmente la connessione con il server.\n\n" +
-                                "register <user> <password> <tag1> [<tag2>][<tag3>][<tag4>][<tag5>] ->" +
-                                "registra un utente con il nome 'user', password 'password' e lista di tag <tagn>. Il" +
-                                " primo tag è obbligatorio, gli altri sono opzionali.\n\n" +
-                                "login <user> <password> -> effettua il login dell'utente 'user' con la password 'password'.\n\n" +
-                                "logout -> effettua il logout dell'utente corrente.\n\n" +
-                                "list users -> mostra la lista degli utenti che condividono almeno un tag con l'utente " +
-                                "loggato al momento.\n\n" +
-                                "list following -> mostra la lista degli utenti seguiti dall'utente loggato al momento.\n\n" +
-                                "list following -> mostra la lista dei followers dell'utente loggato al momento.\n\n" +
-                                "follow <user> -> permette all'utente correntemente loggato di seguire l'utente 'user'," +
-                                "ricevendone gli aggiornamenti sul feed.\n\n" +
-                                "unfollow <user> -> permette all'utente correntemente loggato di smettere di seguire l'utente" +
-                                " 'user', cessando di riceverne gli aggiornamenti sul feed.\n\n" +
-                                "post \"<titolo>\" \"<contenuto>\" -> crea un post avente come autore l'utente loggato al momento." +
-                                " Titolo e contenuto devono essere racchiusi tra doppi apici.\n\n" +
-                                "blog -> visualizza il blog dell'utente loggato, ovvero la lista di post da esso creati o rewinnati\n\n" +
-                                "feed -> visualizza il feed dell'utente loggato, cioè la lista dei post creati o rewinnati dagli utenti seguiti.\n\n" +
-                                "rate <postId> <val> -> consente di valutare un post presente nel feed dell'utente loggato" +
-                                " al momento. 'postId' e' l'identificativo del post, mentre 'val' e' il valore del voto: " +
-                                "se negativo vale -1, altrimenti vale 1.\n\n" +
-                                "comment <postId> \"<contenuto>\" -> aggiunge un commento al post con id 'postId', il cui contenuto" +
-                                " e' 'contenuto'. Tale parametro dev'essere racchiuso tra doppi apici.\n\n" +
-                                "show post <postId> -> mostra in dettaglio il post identificato dall'id <postId>, se esso e'" +
-                                " nel feed o nel blog dell'utente.\n\n" +
-                                "delete <postId> -> elimina il post con id <postId>. Nel caso di rewin si elimina solo il rewin, " +
-                                "altrimenti se il post era originale, si eliminano anche eventuali rewin, commenti e voti.\n\n" +
-                                "rewin <postId> -> effettua il rewin del post con id <postId>. Se si sta cercando di rewinnare " +
-                                "un rewin, l'effetto e' quello di rewinnare il post originale.\n\n" +
-                                "wallet -> visualizza il wallet dell'utente loggato al momento, ovvero il totale di wincoin" +
-                                " nel wallet e la lista delle transazioni indirizzate a quell'utente.\n\n" +
-                                "wallet btc -> converte il totale di wincoin nel wallet dell'utente in bitcoin, generando " +
-                                "un tasso di conversione casuale tramite random.org.\n\n");
-                    case "quit":
-                        break;
-                    default:
-                        System.err.println("Comando errato o non ammesso");
-                        break;
-                }
+                // Esegui il comando
+                client.runCommand(currCommand);
             }
 
             client.closeConnection();
@@ -12,6 +12,7 @@ import java.rmi.registry.*;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.net.InetSocketAddress;
 import java.rmi.*;
 
@@ -28,6 +29,8 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     private int rmiPort;
     // Host name dell'RMI
     private String rmiHostName;
+    // Dimensione massima in byte di una richiesta inviata da un client
+    private int maxFrameSize;
 
     // Parametri del threadpool
     // Core threads
@@ -44,12 +47,18 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     private long rejectionWait;
 
     // Infrastruttura del server
-    // Selector usato per il channel multiplexing
-    private Selector selector;
     // Socket del server
     private ServerSocketChannel serverSocket;
     // Socket udp multicast del server
     private DatagramSocket multicastSocket;
+    // Numero di thread di rete, ognuno con il proprio selector
+    private int selectorThreads;
+    // Reactor che accetta le nuove connessioni: con un solo thread di rete gestisce anche le richieste dei client
+    private ServerReactor acceptor;
+    // Reactor tra cui vengono distribuite le connessioni dei client
+    private ServerReactor[] reactors;
+    // Contatore usato per distribuire a turno le connessioni tra reactor ugualmente carichi
+    private int nextReactor;
     // ThreadPool che si occupa di gestire le richieste provenienti dai client
     private ExecutorService threadPool;
     // Lista di stub di client da notificare riguardo nuovi follower o unfollowing
@@ -62,10 +71,10 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     // Dati relativi agli utenti e alle relazioni tra loro
     // Utenti: a ogni username corrisponde un oggetto che rappresenta il rispettivo utente
     private ConcurrentHashMap<String, User> users;
-    // Followers: a ogni username corrisponde la lista degli username degli utenti che lo seguono
-    private ConcurrentHashMap<String, Vector<String>> followers;
-    // Following: a ogni username corrisponde la lista degli username degli utenti seguiti
-    private ConcurrentHashMap<String, Vector<String>> following;
+    // Dizionario degli utenti: a ogni username corrisponde un id intero usato dalle strutture interne
+    private final UserIds userIds;
+    // Relazioni di follow: per ogni utente gli insiemi dei follower e degli utenti seguiti
+    private final FollowGraph followGraph;
 
     // Dati relativi a post, voti, commenti e rewin
     // Mette in relazione ogni username con la lista di post che ha creato
@@ -74,16 +83,46 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     private ConcurrentHashMap<Long, Post> posts;
     // Voti: a ogni id di post corrisponde la lista delle valutazioni che quel post ha ricevuto
     private ConcurrentHashMap<Long, Vector<Vote>> votes;
+    // Riepilogo dei voti: a ogni id di post corrispondono il numero di voti positivi e negativi e gli utenti che
+    // l'hanno votato
+    private ConcurrentHashMap<Long, PostVotes> voteCounters;
     // Commenti: a ogni id di post corrisponde la lista dei commenti che quel post ha ricevuto
     private ConcurrentHashMap<Long, Vector<Comment>> comments;
     // Rewins: a ogni id di post originale corrisponde la lista degli id dei post di rewin di quel post originale
     private ConcurrentHashMap<Long, Vector<Long>> rewins;
+    // Rewin di ogni utente: per ogni utente associa all'id di un post originale l'id del rewin che ne ha fatto
+    private ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> userRewins;
+    // Attività dei post non ancora considerata dal calcolo delle ricompense
+    private RewardDeltas rewardDeltas;
+    // Timeline materializzate dei feed degli utenti
+    private FeedTimelines timelines;
+    // Indice dei tag degli utenti
+    private final TagIndex tagIndex;
+    // Numero massimo di post mantenuti nella timeline di ogni utente
+    private int feedSize;
+    // Numero massimo di post restituiti da una singola richiesta di visualizzazione del feed o del blog
+    private int maxPageSize;
+    // Allocatore degli id dei post
+    private PostIdAllocator postIds;
+    // Numero di id di post riservati alla volta da ogni thread
+    private int postIdBlock;
+    // Id di questo nodo, incluso negli id dei post per distinguerli da quelli generati da altre istanze del server
+    private int nodeId;
+    // Numero di bit degli id dei post riservati all'id del nodo
+    private int nodeIdBits;
 
     // Threads
     // Thread gestore della persistenza
     private ServerPersistence persistenceThread;
-    // Thread del calcolo delle ricompense
-    private ServerRewards rewardsThread;
+    // Calcolo periodico delle ricompense
+    private ServerRewards rewards;
+    // Log delle modifiche successive all'ultimo salvataggio
+    private MutationLog mutationLog;
+    // Lock dei salvataggi: le operazioni che modificano lo stato lo prendono in lettura, il salvataggio in scrittura,
+    // così che ogni salvataggio corrisponda a un punto preciso del log delle modifiche
+    private final ReentrantReadWriteLock checkpointLock;
+    // Modifiche allo stato, usate dai salvataggi per riscrivere solo le sezioni modificate
+    private final ChangeTracker changes;
 
     // Altri parametri
     // Intervallo di tempo che intercorre tra un calcolo delle ricompense e l'altro
@@ -91,8 +130,40 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     // Percentuale di ricompense assegnate all'autore di un post. Gli n curatori, a seconda di quanto hanno contribuito,
     // ricevono una frazione del valore (totalReward - authorRewardPercentage)
     private float authorRewardPercentage;
+    // Numero di thread usati per calcolare le ricompense
+    private int rewardThreads;
     // Intervallo di tempo che intercorre tra un salvataggio del server e l'altro
     private long autoSaveRate;
+    // Numero di snapshot mantenuti su disco
+    private int snapshotGenerations;
+    // Gli snapshot vengono scritti in formato binario?
+    private boolean binarySnapshots;
+    // Politica di sincronizzazione su disco del log delle modifiche
+    private MutationLog.FsyncPolicy walFsync;
+    // Intervallo di sincronizzazione su disco del log delle modifiche, con la politica INTERVAL
+    private long walFsyncInterval;
+
+    // Valori di default dei parametri opzionali
+    // Dimensione massima di default di una richiesta
+    private static final int DEFAULT_MAX_FRAME_SIZE = 65536;
+    // Numero di default dei thread di rete
+    private static final int DEFAULT_SELECTOR_THREADS = 1;
+    // Numero di default dei post mantenuti nella timeline di ogni utente
+    private static final int DEFAULT_FEED_SIZE = 1000;
+    // Numero massimo di default dei post in una pagina di feed o blog
+    private static final int DEFAULT_MAX_PAGE_SIZE = 50;
+    // Numero di default degli id di post riservati alla volta da ogni thread
+    private static final int DEFAULT_POST_ID_BLOCK = 1;
+    // Numero di default dei thread di calcolo delle ricompense
+    private static final int DEFAULT_REWARD_THREADS = 1;
+    // Intervallo di default di sincronizzazione su disco del log delle modifiche
+    private static final long DEFAULT_WAL_FSYNC_INTERVAL = 100;
+    // Numero di default degli snapshot mantenuti su disco
+    private static final int DEFAULT_SNAPSHOT_GENERATIONS = 3;
+    // Dimensione dei buffer di lettura del selector
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Numero massimo di buffer di lettura mantenuti nel pool
+    private static final int MAX_POOLED_BUFFERS = 64;
 
     /** Semplice costruttore che si occupa di inizializzare le strutture dati
      *
@@ -100,16 +171,36 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     public WinsomeServerMain() {
         toNotify = new ConcurrentHashMap<>();
         activeSessions = new ConcurrentHashMap<>();
+        maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        selectorThreads = DEFAULT_SELECTOR_THREADS;
+        feedSize = DEFAULT_FEED_SIZE;
+        maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+        postIdBlock = DEFAULT_POST_ID_BLOCK;
+        rewardThreads = DEFAULT_REWARD_THREADS;
+        walFsync = MutationLog.FsyncPolicy.INTERVAL;
+        walFsyncInterval = DEFAULT_WAL_FSYNC_INTERVAL;
+        snapshotGenerations = DEFAULT_SNAPSHOT_GENERATIONS;
+        binarySnapshots = false;
+        nodeId = 0;
+        nodeIdBits = 0;
 
         users = new ConcurrentHashMap<>();
-        followers = new ConcurrentHashMap<>();
-        following = new ConcurrentHashMap<>();
+        userIds = new UserIds();
+        followGraph = new FollowGraph(userIds);
 
         authorPost = new ConcurrentHashMap<>();
         posts = new ConcurrentHashMap<>();
         votes = new ConcurrentHashMap<>();
+        voteCounters = new ConcurrentHashMap<>();
         comments = new ConcurrentHashMap<>();
         rewins = new ConcurrentHashMap<>();
+        userRewins = new ConcurrentHashMap<>();
+        // Allocatore degli id dei post con i parametri di default, sostituito all'avvio secondo la configurazione
+        postIds = new PostIdAllocator(DEFAULT_POST_ID_BLOCK, 0, 0);
+        rewardDeltas = new RewardDeltas();
+        tagIndex = new TagIndex();
+        checkpointLock = new ReentrantReadWriteLock();
+        changes = new ChangeTracker();
     }
 
     /** Aggiunge alla lista delle sessioni la SelectionKey specificata come parametro, assegandola allo username
@@ -195,6 +286,39 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
                         this.rejectionWait = Long.parseLong(line.split(" ")[1].trim());
                     else if (line.startsWith("THREAD_QUEUE_SIZE"))
                         this.queueSize = Integer.parseInt(line.split(" ")[1].trim());
+                    else if (line.startsWith("MAX_FRAME_SIZE"))
+                        this.maxFrameSize = Integer.parseInt(line.split(" ")[1].trim());
+                    else if (line.startsWith("SELECTOR_THREADS"))
+                        this.selectorThreads = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("FEED_SIZE"))
+                        this.feedSize = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("MAX_PAGE_SIZE"))
+                        this.maxPageSize = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("REWARD_THREADS"))
+                        this.rewardThreads = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("POST_ID_BLOCK"))
+                        this.postIdBlock = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("WAL_FSYNC_INTERVAL_MS"))
+                        this.walFsyncInterval = Math.max(1, Long.parseLong(line.split(" ")[1].trim()));
+                    else if (line.startsWith("WAL_FSYNC")) {
+                        try {
+                            this.walFsync = MutationLog.FsyncPolicy.valueOf(line.split(" ")[1].trim().toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            throw new ConfigException("Politica di sincronizzazione del log sconosciuta " + line);
+                        }
+                    }
+                    else if (line.startsWith("SNAPSHOT_FORMAT")) {
+                        String format = line.split(" ")[1].trim();
+                        if (!format.equalsIgnoreCase("json") && !format.equalsIgnoreCase("binary"))
+                            throw new ConfigException("Formato degli snapshot sconosciuto " + line);
+                        this.binarySnapshots = format.equalsIgnoreCase("binary");
+                    }
+                    else if (line.startsWith("SNAPSHOT_GENERATIONS"))
+                        this.snapshotGenerations = Math.max(1, Integer.parseInt(line.split(" ")[1].trim()));
+                    else if (line.startsWith("NODE_ID_BITS"))
+                        this.nodeIdBits = Integer.parseInt(line.split(" ")[1].trim());
+                    else if (line.startsWith("NODE_ID"))
+                        this.nodeId = Integer.parseInt(line.split(" ")[1].trim());
                     else
                         throw new ConfigException("Parametro inaspettato " + line);
 
@@ -221,112 +345,149 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
     public void open() throws IOException {
         // Apertura del socket TCP
         InetSocketAddress address = new InetSocketAddress(tcpPort);
-        selector = Selector.open();
         serverSocket = ServerSocketChannel.open();
 
+        // Creazione dei reactor: con un solo thread di rete, lo stesso selector accetta le connessioni e gestisce
+        // le richieste dei client, altrimenti l'acceptor si limita a distribuire le connessioni tra gli altri reactor
+        reactors = new ServerReactor[selectorThreads];
+        if (selectorThreads == 1) {
+            reactors[0] = new ServerReactor(this, maxFrameSize, READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+            acceptor = reactors[0];
+        }
+        else {
+            for (int i=0; i<selectorThreads; i++)
+                reactors[i] = new ServerReactor(this, maxFrameSize, READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+            acceptor = new ServerReactor(this, maxFrameSize, READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+        }
+
         // Inizializzazione del threadpool
         threadPool = new ThreadPoolExecutor(nCoreThreads, maxThreads, threadKeepAlive,
                 TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
                 new RepeatPolicy(rejectionAttempts, rejectionWait));
 
+        // Prepara l'allocatore degli id dei post, che il caricamento aggiorna con gli id già in uso
+        try {
+            postIds = new PostIdAllocator(postIdBlock, nodeId, nodeIdBits);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigException(e.getMessage());
+        }
+
         // Carica il server con i dati salvati in precedenza se ce ne sono
+        mutationLog = new MutationLog("data.json.log", walFsync, walFsyncInterval);
         ServerPersistence.loadServer("data.json", this);
         System.out.println("Caricati dati del server");
 
+        // Ricostruisce gli indici dei rewin eventualmente mancanti nei dati caricati
+        rebuildRewinIndex();
+        // Ricostruisce il riepilogo dei voti se non è presente nei dati caricati
+        if (voteCounters.isEmpty())
+            rebuildVoteCounters();
+        // Riapplica le modifiche registrate dopo il salvataggio, poi inizia a registrare le nuove
+        ServerPersistence.replayLog(this);
+        mutationLog.open();
+        // Costruisce l'indice dei tag degli utenti caricati
+        tagIndex.rebuild(users.values());
+
+        // Costruisce le timeline dei feed a partire dai dati caricati
+        timelines = new FeedTimelines(this, feedSize);
+        timelines.rebuildAll();
+
         // Inizia la routine di salvataggio dei dati
-        persistenceThread = new ServerPersistence(this, "data.json", autoSaveRate);
+        persistenceThread = new ServerPersistence(this, "data.json", autoSaveRate, snapshotGenerations,
+                binarySnapshots);
         persistenceThread.setDaemon(true);
         persistenceThread.start();
         System.out.println("Abilitato salvataggio server");
 
-        // Inizia la routine di calcolo delle ricompense
-        rewardsThread = new ServerRewards(this, rewardRate, authorRewardPercentage);
-        rewardsThread.setDaemon(true);
-        rewardsThread.start();
-
         // Apri socket multicast per notifica delle ricompense
         multicastSocket = new DatagramSocket();
 
+        // Inizia la routine di calcolo delle ricompense, dopo aver aperto il socket: un calcolo interrotto da un
+        // riavvio viene ripreso subito e ne notifica il completamento
+        rewards = new ServerRewards(this, rewardRate, authorRewardPercentage, rewardThreads);
+        rewards.start();
+
         // Binding indirizzo e registrazione selector
         serverSocket.bind(address);
         serverSocket.configureBlocking(false);
-        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+        serverSocket.register(acceptor.getSelector(), SelectionKey.OP_ACCEPT);
 
         System.out.println("Server in ascolto...");
     }
 
     /** Routine di gestione delle richieste. I client inviano delle richieste, che il client assegna a un thread worker:
-     *  quando i thread worker finiscono di elaborarle, allegano una stringa che rappresenta un oggetto JSON di risposta.
-     *  Quando il client è pronto per ricevere dati, tale allegato viene spedito.
+     *  quando i thread worker finiscono di elaborarle, accodano alla connessione la risposta codificata e abilitano
+     *  l'interesse per la scrittura. Quando il client è pronto per ricevere dati, le risposte in coda vengono spedite,
+     *  eventualmente in più riprese se il canale non accetta tutti i byte in una volta.
+     *
+     *  Se sono configurati più thread di rete, ogni reactor viene eseguito su un thread dedicato, mentre questo thread
+     *  si occupa solamente di accettare le connessioni.
      *
      */
     @Override
     public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            // Select
-            try {
-                selector.select(100);
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
+        if (acceptor != reactors[0]) {
+            for (int i=0; i<reactors.length; i++) {
+                Thread reactorThread = new Thread(reactors[i], "reactor-" + i);
+                reactorThread.setDaemon(true);
+                reactorThread.start();
             }
+        }
 
-            // Ottenimento delle chiavi pronte
-            Set<SelectionKey> readyKeys = selector.selectedKeys();
-            Iterator<SelectionKey> keyIt = readyKeys.iterator();
+        acceptor.run();
 
-            while (keyIt.hasNext()) {
-                // Ottieni la chiave corrente e rimuovila dal set di chiavi pronte
-                SelectionKey currKey = keyIt.next();
-                keyIt.remove();
+        System.out.println("Chiusura del server avviata");
+        System.exit(0);
+    }
 
-                try {
-                    // Se è acceptable, stabilisco una connessione con il nuovo client e lo configuro per la lettura
-                    // e per la scrittura
-                    if (currKey.isAcceptable()) {
-                        SocketChannel client = serverSocket.accept();
-                        System.out.println("Accettata connessione da: " + client.getLocalAddress());
-
-                        client.configureBlocking(false);
-                        client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    }
-                    // Se è readable e valida, leggo la richiesta e la assegno a un worker
-                    else if (currKey.isReadable() && currKey.isValid()) {
-                        // Ottengo il channel del client
-                        SocketChannel channel = (SocketChannel) currKey.channel();
-                        // Ricevo il contenuto dal channel
-                        String content = ComUtility.receive(channel);
-
-                        // In tal caso si è verificato un errore ed è meglio disconnettersi dal client per evitare
-                        // problemi in futuro
-                        if (content.equals("")) {
-                            endSession(currKey);
-                            currKey.cancel();
-                            System.out.println("Client disconnesso");
-                        } else {
-                            // Ricrea l'oggetto json
-                            JSONObject json = new JSONObject(content);
-                            // Avvia l'esecuzione della richiesta ricevuta
-                            this.threadPool.execute(new WinsomeWorker(this, new ClientRequest(currKey, json)));
-                        }
-                    }
-                    // Se la chiave è writable, è valida e ha un allegato, lo spedisco
-                    else if (currKey.isWritable() && currKey.isValid() && currKey.attachment() != null) {
-                        // Spedisci l'attachment
-                        ComUtility.sendAsync(currKey);
-                    }
-                }
-                // In caso di eccezione, chiudo la connessione
-                catch (IOException e) {
-                    endSession(currKey);
-                    currKey.cancel();
-                    System.out.println("Connessione chiusa");
-                }
-            }
+    /** Accetta una nuova connessione e la assegna al reactor che gestisce meno client al momento. A parità di carico,
+     *  i reactor vengono scelti a turno.
+     *
+     * @param socket Socket del server su cui è pronta una nuova connessione
+     * @throws IOException In caso di errore nella configurazione del canale
+     */
+    public void accept(ServerSocketChannel socket) throws IOException {
+        SocketChannel client = socket.accept();
+        if (client == null)
+            return;
+
+        System.out.println("Accettata connessione da: " + client.getLocalAddress());
+        client.configureBlocking(false);
+
+        // Scelta del reactor meno carico, partendo da quello successivo all'ultimo scelto
+        ServerReactor chosen = reactors[nextReactor];
+        for (int i=1; i<reactors.length; i++) {
+            ServerReactor candidate = reactors[(nextReactor + i) % reactors.length];
+            if (candidate.getConnectionCount() < chosen.getConnectionCount())
+                chosen = candidate;
         }
+        nextReactor = (nextReactor + 1) % reactors.length;
 
-        System.out.println("Chiusura del server avviata");
-        System.exit(0);
+        chosen.assign(client);
+    }
+
+    /** Avvia l'esecuzione di una richiesta ricevuta da un reactor. Se un'altra richiesta dello stesso client è ancora
+     *  in esecuzione, la nuova richiesta viene eseguita solo al termine delle precedenti.
+     *
+     * @param request Richiesta da eseguire
+     */
+    public void dispatch(ClientRequest request) {
+        if (request.getConnection().offerRequest(request))
+            this.threadPool.execute(new WinsomeWorker(this, request));
+    }
+
+    /** Chiamata da un worker al termine dell'esecuzione di una richiesta: avvia l'esecuzione della prossima richiesta
+     *  dello stesso client, se ce n'è una
+     *
+     * @param request Richiesta appena eseguita
+     */
+    public void completed(ClientRequest request) {
+        ClientConnection connection = request.getConnection();
+        ClientRequest next = connection.nextRequest();
+        if (next != null)
+            this.threadPool.execute(new WinsomeWorker(this, next));
+        // Con una richiesta in meno in coda, il client potrebbe poter essere letto di nuovo
+        connection.updateReadInterest(request.getKey());
     }
 
     /** Abilita lo stub RMI usato dal client per registrare nuovi utenti
@@ -364,41 +525,18 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
                     }
                     System.out.println("Task terminati");
 
-                    // Invio eventuali risposte e chiudo le connessioni
-                    // Select
-                    try {
-                        selector.select(100);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Ottenimento delle chiavi pronte
-                    Set<SelectionKey> readyKeys = selector.selectedKeys();
-                    Iterator<SelectionKey> keyIt = readyKeys.iterator();
-
-                    while (keyIt.hasNext()) {
-                        SelectionKey currKey = keyIt.next();
-                        keyIt.remove();
-
-                        if (currKey.isWritable() && currKey.isValid() && currKey.attachment() != null) {
-                            try {
-                                System.out.println("Send async");
-                                ComUtility.sendAsync(currKey);
-                                System.out.println("Sent");
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            currKey.cancel();
-                            System.out.println("Canceled");
-                        }
-                    }
+                    // Invio eventuali risposte in coda e chiudo le connessioni
+                    for (ServerReactor reactor : reactors)
+                        reactor.closeAll();
                     System.out.println("Connessioni chiuse");
 
+                    // Arresto i calcoli delle ricompense, lasciando terminare quello in corso
+                    rewards.shutdown();
                     // Salvo lo stato del server
                     persistenceThread.saveServer();
+                    mutationLog.close();
                     // Termina i thread in esecuzione
                     persistenceThread.stop();
-                    rewardsThread.stop();
                     System.out.println("Stato del server salvato");
                 }
             )
@@ -432,7 +570,16 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
             // Se tutto va bene, aggiungi un nuovo utente con le caratteristiche specificate
             else {
                 User toAdd = new User(username, password, tags);
-                users.put(username, toAdd);
+                checkpointLock.readLock().lock();
+                try {
+                    users.put(username, toAdd);
+                    userIds.intern(username);
+                    mutationLog.logSignup(toAdd);
+                    changes.mark(ChangeTracker.Section.USERS);
+                } finally {
+                    checkpointLock.readLock().unlock();
+                }
+                tagIndex.addUser(toAdd);
                 ret.put("errCode", 0);
                 ret.put("errMsg", "Ok");
             }
@@ -454,11 +601,8 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
         toNotify.put(username, client);
 
         // Invia i follower correnti del client
-        Vector<String> followers = this.followers.get(username);
-        if (followers != null) {
-            for (String follower : followers) {
-                client.newFollower(follower, false);
-            }
+        for (String follower : followGraph.getFollowers(username)) {
+            client.newFollower(follower, false);
         }
     }
 
@@ -535,23 +679,36 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
 
     // Semplici getters per gli attributi
     public ConcurrentHashMap<String, User> getUsers() {return users;}
-    public ConcurrentHashMap<String, Vector<String>> getFollowers() {return followers;}
-    public ConcurrentHashMap<String, Vector<String>> getFollowing() {return following;}
+    public MutationLog getMutationLog() {return mutationLog;}
+    public ChangeTracker getChangeTracker() {return changes;}
+    public ReentrantReadWriteLock getCheckpointLock() {return checkpointLock;}
+    public UserIds getUserIds() {return userIds;}
+    public PostIdAllocator getPostIds() {return postIds;}
+    public RewardDeltas getRewardDeltas() {return rewardDeltas;}
+    public void setRewardDeltas(RewardDeltas rewardDeltas) {this.rewardDeltas = rewardDeltas;}
+    public FollowGraph getFollowGraph() {return followGraph;}
     public ConcurrentHashMap<String, Vector<Long>> getAuthorPost() {return authorPost;}
     public ConcurrentHashMap<Long, Vector<Vote>> getVotes() {return votes;}
+    public ConcurrentHashMap<Long, PostVotes> getVoteCounters() {return voteCounters;}
     public ConcurrentHashMap<Long, Post> getPosts() {return posts;}
     public ConcurrentHashMap<Long, Vector<Comment>> getComments() {return this.comments;}
     public ConcurrentHashMap<Long, Vector<Long>> getRewins() {return this.rewins;}
+    public ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> getUserRewins() {return this.userRewins;}
+    public FeedTimelines getTimelines() {return this.timelines;}
+    public TagIndex getTagIndex() {return this.tagIndex;}
+    public int getMaxPageSize() {return this.maxPageSize;}
     public String getMulticastAddress() {return this.multicastAddress;}
     public int getMulticastPort() {return this.udpPort;}
 
     // Semplici setters per gli attributi
     public void setUsers(ConcurrentHashMap<String, User> users) {this.users = users;}
-    public void setFollowers(ConcurrentHashMap<String, Vector<String>> followers) {this.followers = followers;}
-    public void setFollowing(ConcurrentHashMap<String, Vector<String>> following) {this.following = following;}
     public void setVotes(ConcurrentHashMap<Long, Vector<Vote>> votes){this.votes = votes;}
+    public void setVoteCounters(ConcurrentHashMap<Long, PostVotes> voteCounters){this.voteCounters = voteCounters;}
     public void setComments(ConcurrentHashMap<Long, Vector<Comment>> comments){this.comments = comments;}
     public void setRewins(ConcurrentHashMap<Long, Vector<Long>> rewins) { this.rewins = rewins; }
+    public void setUserRewins(ConcurrentHashMap<String, ConcurrentHashMap<Long, Long>> userRewins) {
+        this.userRewins = userRewins;
+    }
 
     /** Imposta la lista dei post. Essendo chiamata dal ServerPersistence per caricare il server, oltre a caricare i
      *  post, si assegnano anche i post originali agli autori (i rewin non vengono assegnati a un autore)
@@ -559,7 +716,6 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
      * @param posts I post caricati dal ServerPersistence thread
      */
     public void setPosts(ConcurrentHashMap<Long, Post> posts) {
-        long postId = 0;
         this.posts = posts;
 
         synchronized (authorPost) {
@@ -568,11 +724,53 @@ class WinsomeServerMain implements Runnable, IRemoteServer {
                     this.authorPost.computeIfAbsent(p.getAuthor(), k -> new Vector<>());
                     this.authorPost.get(p.getAuthor()).add(p.getId());
                 }
-                postId = Math.max(postId, p.getId());
+                // Gli id dei post caricati non devono essere assegnati di nuovo
+                postIds.reserveUpTo(p.getId());
+            }
+        }
+    }
+
+
+    /** Completa gli indici dei rewin dopo il caricamento dei dati. I salvataggi precedenti all'introduzione degli
+     *  indici non contengono l'id del post originale dei rewin né i rewin di ogni utente: in tal caso vengono ricavati
+     *  dalla mappa dei rewin, da cui vengono anche rimossi eventuali rewin non più esistenti.
+     *
+     */
+    public void rebuildRewinIndex() {
+        for (Map.Entry<Long, Vector<Long>> entry : rewins.entrySet()) {
+            entry.getValue().removeIf(id -> !posts.containsKey(id));
+            for (Long id : entry.getValue()) {
+                Post p = posts.get(id);
+                if (!p.hasOriginalId())
+                    p.setOriginalId(entry.getKey());
+            }
+        }
+
+        for (Post p : posts.values()) {
+            if (!p.hasOriginalId())
+                p.setOriginalId(p.getId());
+        }
+
+        if (userRewins.isEmpty()) {
+            for (Post p : posts.values()) {
+                if (p.isRewin())
+                    userRewins.computeIfAbsent(p.getRewinner(), k -> new ConcurrentHashMap<>())
+                            .put(p.getOriginalId(), p.getId());
             }
         }
+    }
 
-        Post.setMinId(postId + 1);
+
+    /** Ricostruisce il riepilogo dei voti di ogni post a partire dalle liste dei voti. Usata quando i dati caricati
+     *  provengono da un salvataggio precedente all'introduzione del riepilogo.
+     *
+     */
+    public void rebuildVoteCounters() {
+        for (Map.Entry<Long, Vector<Vote>> entry : votes.entrySet()) {
+            PostVotes counters = voteCounters.computeIfAbsent(entry.getKey(), k -> new PostVotes());
+            for (Vote v : entry.getValue())
+                counters.addVote(userIds.intern(v.getUser()), v.isPositive());
+        }
     }
 
 
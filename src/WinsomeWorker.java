@@ -1,4 +1,3 @@
-import com.google.gson.Gson;
 import org.json.JSONObject;
 
 import java.io.IOException;
@@ -8,6 +7,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 public class WinsomeWorker implements Runnable {
     // Richiesta da risolvere
@@ -51,19 +51,25 @@ public class WinsomeWorker implements Runnable {
                     // notifiche di calcolo delle ricompense
                     reply.put("mcAddress", server.getMulticastAddress());
                     reply.put("mcPort", server.getMulticastPort());
+                    // Comunico al client la codifica che verrà usata per il resto della connessione
+                    WireCodec codec = WireCodec.byName(request.getJson().optString("codec"));
+                    reply.put("codec", codec.getName());
 
                     // L'utente è adesso in una sessione
                     server.addSession(user, key);
-                    key.attach(reply.toString());
+                    // La risposta viene codificata con la codifica precedente, dopodiché la connessione passa a
+                    // quella scelta dal client
+                    ComUtility.attachReply(reply, request);
+                    request.getConnection().setCodec(codec);
                 }
                 else
-                    ComUtility.attachError(-2, "Password errata", key);
+                    ComUtility.attachError(-2, "Password errata", request);
             }
             else
-                ComUtility.attachError(-1, "Utente gia' loggato", key);
+                ComUtility.attachError(-1, "Utente gia' loggato", request);
         }
         else
-            ComUtility.attachError(-3, "Utente non esistente", key);
+            ComUtility.attachError(-3, "Utente non esistente", request);
     }
 
     /** Risolve le richieste di logout
@@ -75,9 +81,9 @@ public class WinsomeWorker implements Runnable {
 
         // Se l'utente è all'interno di una sessione
         if (server.endSession(user) != null)
-            ComUtility.attachAck(key);
+            ComUtility.attachAck(request);
         else
-            ComUtility.attachError(-1, "Utente non loggato", key);
+            ComUtility.attachError(-1, "Utente non loggato", request);
     }
 
     /** Risolve le richieste di visualizzazione degli utenti che hanno almeno un tag in comune con l'utente che ha
@@ -85,35 +91,37 @@ public class WinsomeWorker implements Runnable {
      *
      */
     public void listUsers()  {
+        // Parametri della richiesta
+        JSONObject req = request.getJson();
         // Utente che ha effettuato la richiesta
-        String user = request.getJson().getString("user");
-        // Oggetto corrispondente al suddetto utente
-        User currUser = server.getUser(user);
+        String user = req.getString("user");
+        // Ultimo utente della pagina precedente, null se si richiede la prima pagina
+        String after = req.has("after") ? req.getString("after") : null;
+        int limit = pageLimit(req);
 
         // Preparazione della risposta
         JSONObject json = new JSONObject();
-        Gson gson = new Gson();
 
-        // Creo un'hashmap per salvare, per ogni nome utente, la lista di tag in comune con esso
-        HashMap<String, String[]> ret = new HashMap<>();
-
-        for (User u : server.getUsers().values()) {
-            // Ignoro l'utente che ha effetuato la richiesta
-            if (!u.equals(currUser)) {
-                // Ottengo i tag in comune
-                String[] commonTags = getCommonTags(user, u.getUsername());
-
-                // Se ce ne sono, aggiungo l'utente alla mappa di ritorno
-                if (commonTags.length > 0)
-                    ret.put(u.getUsername(), commonTags);
+        // Ottengo, in ordine di nome, gli utenti che hanno dei tag in comune con l'utente
+        NavigableMap<String, String[]> sharing = server.getTagIndex().getUsersSharingTags(user, after, limit);
+
+        // Creo una mappa per salvare, per ogni nome utente della pagina, la lista di tag in comune con esso
+        LinkedHashMap<String, String[]> ret = new LinkedHashMap<>();
+        String last = null;
+        for (Map.Entry<String, String[]> entry : sharing.entrySet()) {
+            // Se ci sono altri utenti oltre la pagina, indico al client da dove ripartire
+            if (ret.size() == limit) {
+                json.put("next", last);
+                break;
             }
+            ret.put(entry.getKey(), entry.getValue());
+            last = entry.getKey();
         }
 
         // Invio della risposta
         json.put("errCode", 0);
         json.put("errMsg", "OK");
-        json.put("items", gson.toJson(ret));
-        key.attach(json.toString());
+        ComUtility.attachReply(json, ret, request);
     }
 
 
@@ -127,18 +135,14 @@ public class WinsomeWorker implements Runnable {
 
         // Preparazione della risposta
         JSONObject json = new JSONObject();
-        Gson gson = new Gson();
-        // Ottengo la lista dei following
-        Vector<String> toConvert = server.getFollowing().get(user);
-        if (toConvert == null)
-            toConvert = new Vector<>();
-
-        // Invio la risposta, convertendo la lista dei following in un array di nomi utente
-        json.put("items", gson.toJson(toConvert));
+        // Ottengo la lista dei following, ordinata per nome
+        Vector<String> toConvert = new Vector<>(new TreeSet<>(server.getFollowGraph().getFollowing(user)));
+
+        // Invio la risposta, allegando la lista dei nomi utente seguiti
         json.put("errCode", 0);
         json.put("errMsg", "OK");
 
-        key.attach(json.toString());
+        ComUtility.attachReply(json, toConvert, request);
     }
 
 
@@ -153,48 +157,44 @@ public class WinsomeWorker implements Runnable {
         // Utente che ha inviato la richiesta
         String follower = request.getJson().getString("user");
 
-        ConcurrentHashMap<String, Vector<String>> followers = server.getFollowers();
-        ConcurrentHashMap<String, Vector<String>> following = server.getFollowing();
+        FollowGraph graph = server.getFollowGraph();
 
-        synchronized (following) {
-            // Evito che l'utente da seguire non sia già seguito
-            if (following.get(follower) != null && following.get(follower).contains(toFollow)) {
-                ComUtility.attachError(-1, "Stai gia' seguendo questo utente", key);
-                return;
-            }
-            // Verifico che l'utente da seguire esista
-            if (!server.getUsers().containsKey(toFollow)) {
-                ComUtility.attachError(-2, "L'utente da seguire non esiste", key);
-                return;
-            }
-            // Evito che l'utente si segua da solo
-            if (toFollow.equals(follower)) {
-                ComUtility.attachError(-3, "Non puoi seguire te stess@", key);
-                return;
-            }
-            // Ottengo i tag in comune
-            String[] commonTags = getCommonTags(toFollow, follower);
-            // Ed evito che un utente possa seguire un utente con uci non condivide nessun tag
-            if (commonTags.length == 0) {
-                ComUtility.attachError(-4, "L'utente da seguire non condivide alcun interesse con te", key);
-                return;
-            }
-
-            // Aggiungo l'utente da seguire alla lista dei following
-            if (!following.containsKey(follower)) {
-                following.put(follower, new Vector<>());
-            }
-            following.get(follower).add(toFollow);
+        // Evito che l'utente da seguire non sia già seguito
+        if (graph.isFollowing(follower, toFollow)) {
+            ComUtility.attachError(-1, "Stai gia' seguendo questo utente", request);
+            return;
+        }
+        // Verifico che l'utente da seguire esista
+        if (!server.getUsers().containsKey(toFollow)) {
+            ComUtility.attachError(-2, "L'utente da seguire non esiste", request);
+            return;
+        }
+        // Evito che l'utente si segua da solo
+        if (toFollow.equals(follower)) {
+            ComUtility.attachError(-3, "Non puoi seguire te stess@", request);
+            return;
+        }
+        // Ottengo i tag in comune
+        String[] commonTags = server.getTagIndex().getCommonTags(toFollow, follower);
+        // Ed evito che un utente possa seguire un utente con uci non condivide nessun tag
+        if (commonTags.length == 0) {
+            ComUtility.attachError(-4, "L'utente da seguire non condivide alcun interesse con te", request);
+            return;
         }
 
-        synchronized (followers) {
-            // Altrimenti prendo la map dei followers e aggiungo il nuovo follower
-            if (!followers.containsKey(toFollow)) {
-                followers.put(toFollow, new Vector<>());
-            }
-            followers.get(toFollow).add(follower);
+        // Aggiungo la relazione in entrambe le direzioni; se nel frattempo è stata aggiunta da un'altra richiesta
+        // l'utente è già seguito
+        if (!graph.follow(follower, toFollow)) {
+            ComUtility.attachError(-1, "Stai gia' seguendo questo utente", request);
+            return;
         }
 
+        server.getMutationLog().logFollow(follower, toFollow);
+        server.getChangeTracker().mark(ChangeTracker.Section.FOLLOWS);
+
+        // Aggiungo i post dell'utente seguito al feed del follower
+        server.getTimelines().follow(follower, toFollow);
+
         // Notifico il client dell'aggiunta di un follower
         try {
             server.notifyNewFollower(follower, toFollow, true);
@@ -206,7 +206,7 @@ public class WinsomeWorker implements Runnable {
         reply.put("errCode", 0);
         reply.put("errMsg", "OK");
 
-        key.attach(reply.toString());
+        ComUtility.attachReply(reply, request);
     }
 
 
@@ -223,38 +223,32 @@ public class WinsomeWorker implements Runnable {
 
         // Verifico che l'utente da smettere di seguire esista
         if (!server.getUsers().containsKey(toUnfollow)) {
-            ComUtility.attachError(-2, "L'utente da smettere di seguire non esiste", key);
+            ComUtility.attachError(-2, "L'utente da smettere di seguire non esiste", request);
             return;
         }
-        ConcurrentHashMap<String, Vector<String>> followers = server.getFollowers();
-        synchronized (followers) {
-            // Se l'utente non sta ancora seguendo l'utente da smettere di seguire
-            if (followers.get(toUnfollow) == null || !followers.get(toUnfollow).contains(follower)) {
-                // Ritorna un codice di errore
-                ComUtility.attachError(-1, "Non stai ancora seguendo questo utente", key);
-                return;
-            }
+        // Rimuovo la relazione in entrambe le direzioni; se l'utente non sta ancora seguendo l'utente da smettere di
+        // seguire ritorno un codice di errore
+        if (!server.getFollowGraph().unfollow(follower, toUnfollow)) {
+            ComUtility.attachError(-1, "Non stai ancora seguendo questo utente", request);
+            return;
+        }
+        server.getMutationLog().logUnfollow(follower, toUnfollow);
+        server.getChangeTracker().mark(ChangeTracker.Section.FOLLOWS);
 
-            // Altrimenti posso continuare a impostare le relazioni di follower-following
-            followers.get(toUnfollow).remove(follower);
-            // Invia la notifica di unfollow ai client connessi
-            try {
-                server.notifyUnfollow(follower, toUnfollow);
-            } catch (IOException e) {
-                System.err.println("Errore nella notifica di unfollow");
-            }
+        // Invia la notifica di unfollow ai client connessi
+        try {
+            server.notifyUnfollow(follower, toUnfollow);
+        } catch (IOException e) {
+            System.err.println("Errore nella notifica di unfollow");
         }
 
-        // Aggiorna la lista dei following dell'ex-follower
-        ConcurrentHashMap<String, Vector<String>> following = server.getFollowing();
-        synchronized (following) {
-            following.get(follower).remove(toUnfollow);
+        // Rimuovo dal feed i post dell'utente non più seguito
+        server.getTimelines().unfollow(follower);
 
-            reply.put("errCode", 0);
-            reply.put("errMsg", "OK");
+        reply.put("errCode", 0);
+        reply.put("errMsg", "OK");
 
-            key.attach(reply.toString());
-        }
+        ComUtility.attachReply(reply, request);
     }
 
     /** Risolve le richieste di creazione di un nuovo post
@@ -265,7 +259,9 @@ public class WinsomeWorker implements Runnable {
         JSONObject req = request.getJson();
         String user = req.getString("user");
         ConcurrentHashMap<String, Vector<Long>> posts = server.getAuthorPost();
-        Post toAdd = new Post(req.getString("postTitle"), req.getString("postContent"), user);
+        Post toAdd = new Post(server.getPostIds().nextId(), req.getString("postTitle"), req.getString("postContent"), user);
+        // Il post partecipa ai calcoli delle ricompense a partire dal prossimo
+        toAdd.setRewardCycle(server.getRewardDeltas().getCycle());
 
         // Aggiunta del post alla lista
         synchronized (posts) {
@@ -273,8 +269,12 @@ public class WinsomeWorker implements Runnable {
             posts.get(user).add(toAdd.getId());
             server.getPosts().put(toAdd.getId(), toAdd);
         }
+        server.getMutationLog().logPost(toAdd);
+        server.getChangeTracker().mark(ChangeTracker.Section.POSTS);
+        // Aggiunta del post ai feed dei follower
+        server.getTimelines().addPost(toAdd);
         // Invio di un ack
-        ComUtility.attachAck(key);
+        ComUtility.attachAck(request);
     }
 
 
@@ -282,34 +282,16 @@ public class WinsomeWorker implements Runnable {
      *
      */
     public void viewBlog() {
-        // Risposta
-        JSONObject reply = new JSONObject();
+        // Parametri della richiesta
+        JSONObject req = request.getJson();
         // Utente che ha richiesto la visualizzazione del blog
-        String user = request.getJson().getString("user");
-        // Ottenimento dei post di cui user è l'autore
-        Vector<Long> userBlog = server.getAuthorPost().get(user);
-        Vector<Post> ret = new Vector<>();
-
-        if (userBlog == null)
-            userBlog = new Vector<>();
-        for (Long p : userBlog)
-            ret.add(server.getPosts().get(p));
-
-        // Aggiungo eventuali rewin
-        for (Vector<Long> rewins : server.getRewins().values()) {
-            for (Long l : rewins) {
-                if (server.getPosts().get(l).getRewinner().equals(user)) {
-                    ret.add(server.getPosts().get(l));
-                }
-            }
-        }
-
-        // Ordino la lista dei post per data decrescente
-        Collections.sort(ret);
+        String user = req.getString("user");
+        // Ottenimento della pagina di post creati o rewinnati dall'utente
+        FeedTimelines.Page page = server.getTimelines().getBlog(user, optCursor(req, "before"),
+                optCursor(req, "after"), pageLimit(req));
 
         // Aggiungo i post alla risposta e la invio
-        reply.put("items", new Gson().toJson(ret));
-        key.attach(reply.toString());
+        sendPage(page);
     }
 
 
@@ -317,16 +299,16 @@ public class WinsomeWorker implements Runnable {
      *
      */
     public void viewFeed() {
-        // Risposta
-        JSONObject reply = new JSONObject();
+        // Parametri della richiesta
+        JSONObject req = request.getJson();
         // Utente che ha inoltrato la richiesta
-        String user = request.getJson().getString("user");
-        // Ottenimento del feed
-        Vector<Post> userFeed = getFeed(user);
+        String user = req.getString("user");
+        // Ottenimento della pagina di feed
+        FeedTimelines.Page page = server.getTimelines().getFeed(user, optCursor(req, "before"),
+                optCursor(req, "after"), pageLimit(req));
 
         // Invio del feed
-        reply.put("items", new Gson().toJson(userFeed));
-        key.attach(reply.toString());
+        sendPage(page);
     }
 
 
@@ -346,9 +328,10 @@ public class WinsomeWorker implements Runnable {
 
         synchronized (posts) {
             // Controllo che l'utente possa visualizzare il post che desidera votare nel proprio feed
-            if (!getFeed(author).contains(posts.get(originalPost)) && !posts.get(post).getRewinner().equals(author)) {
+            Post toRate = posts.get(originalPost);
+            if (toRate == null || (!server.getTimelines().isInFeed(author, toRate) && !toRate.getRewinner().equals(author))) {
                 ComUtility.attachError(-2, "Errore di votazione: non puoi votare un post che non fa " +
-                        "parte del tuo feed", key);
+                        "parte del tuo feed", request);
                 return;
             }
 
@@ -358,34 +341,36 @@ public class WinsomeWorker implements Runnable {
 
             // Evito che un utente si autovaluti
             if (posts.get(post).getAuthor().equals(author)) {
-                ComUtility.attachError(-3, "Errore di votazione: non puoi votare un tuo post.", key);
+                ComUtility.attachError(-3, "Errore di votazione: non puoi votare un tuo post.", request);
                 return;
             }
         }
 
-        // Prendo i voti correnti del post originale
-        ConcurrentHashMap<Long, Vector<Vote>> votes = server.getVotes();
-        Vector<Vote> currVotes = votes.get(post);
-
-        if (currVotes == null)
-            votes.put(post, new Vector<>());
-        currVotes = votes.get(post);
+        Vote toAdd = new Vote(author, req.getInt("value"));
+        // Il voto viene registrato con lo stesso lock dell'eliminazione dei post: un post eliminato dopo i controlli
+        // non riceve un riepilogo, una lista di voti o un'attività che nessuno eliminerebbe più
+        synchronized (server) {
+            if (!posts.containsKey(post)) {
+                ComUtility.attachError(-2, "Errore di votazione: non puoi votare un post che non fa " +
+                        "parte del tuo feed", request);
+                return;
+            }
 
-        synchronized (currVotes) {
-            // Verifico che il voto non sia già stato inserito
-            for (Vote v : currVotes) {
-                if (v.getUser().equals(author)) {
-                    ComUtility.attachError(-1, "Errore di votazione: hai gia' votato questo post.", key);
-                    return;
-                }
+            // Registro il voto nel riepilogo dei voti del post originale, verificando che non sia già stato inserito
+            PostVotes counters = server.getVoteCounters().computeIfAbsent(post, k -> new PostVotes());
+            if (!counters.addVote(server.getUserIds().intern(author), toAdd.isPositive())) {
+                ComUtility.attachError(-1, "Errore di votazione: hai gia' votato questo post.", request);
+                return;
             }
 
-            // Se i controlli sono stati superati, aggiungo il post
-            Vote toAdd = new Vote(author, req.getInt("value"));
-            currVotes.add(toAdd);
+            // Se i controlli sono stati superati, aggiungo il voto alla lista usata per il calcolo delle ricompense
+            server.getVotes().computeIfAbsent(post, k -> new Vector<>()).add(toAdd);
+            server.getRewardDeltas().addVote(post, author, toAdd.getValue());
+            server.getMutationLog().logRate(post, toAdd);
+            server.getChangeTracker().mark(ChangeTracker.Section.VOTES, ChangeTracker.Section.REWARDS);
         }
 
-        ComUtility.attachAck(key);
+        ComUtility.attachAck(request);
     }
 
 
@@ -403,20 +388,21 @@ public class WinsomeWorker implements Runnable {
 
         ConcurrentHashMap<String, Vector<Long>> posts = server.getAuthorPost();
         ConcurrentHashMap<Long, Vector<Comment>> comments = server.getComments();
-        Vector<Post> userFeed = getFeed(user);
 
         if (posts != null) {
             synchronized (posts) {
                 if (posts.get(user) != null && posts.get(user).contains(post)) {
                     ComUtility.attachError(-1, "Errore nell'aggiunta del commento: non puoi commentare i tuoi " +
-                            "stessi post", key);
+                            "stessi post", request);
                     return;
                 }
                 ConcurrentHashMap<Long, Post> idPost = server.getPosts();
                 synchronized (idPost) {
-                    if (!userFeed.contains(idPost.get(post)) && !idPost.get(post).getRewinner().equals(user)) {
+                    Post toComment = idPost.get(post);
+                    if (toComment == null || (!server.getTimelines().isInFeed(user, toComment) &&
+                            !toComment.getRewinner().equals(user))) {
                         ComUtility.attachError(-2, "Errore nell'aggiunta del commento: impossibile commentare un" +
-                                " post non presente all'interno del feed", key);
+                                " post non presente all'interno del feed", request);
                         return;
                     }
                 }
@@ -425,16 +411,29 @@ public class WinsomeWorker implements Runnable {
             }
         }
         else {
-            ComUtility.attachError(-3, "Errore nell'aggiunta del commento: non ci sono post nel server", key);
+            ComUtility.attachError(-3, "Errore nell'aggiunta del commento: non ci sono post nel server", request);
             return;
         }
 
-        synchronized (comments) {
-            comments.computeIfAbsent(post, k -> new Vector<>());
-            comments.get(post).add(new Comment(user, req.getString("comment")));
+        Comment toAdd = new Comment(user, req.getString("comment"));
+        // Come per i voti, il commento viene registrato con lo stesso lock dell'eliminazione dei post
+        synchronized (server) {
+            if (!server.getPosts().containsKey(post)) {
+                ComUtility.attachError(-2, "Errore nell'aggiunta del commento: impossibile commentare un" +
+                        " post non presente all'interno del feed", request);
+                return;
+            }
+
+            synchronized (comments) {
+                comments.computeIfAbsent(post, k -> new Vector<>());
+                comments.get(post).add(toAdd);
+            }
+            server.getRewardDeltas().addComment(post, user);
+            server.getMutationLog().logComment(post, toAdd);
+            server.getChangeTracker().mark(ChangeTracker.Section.COMMENTS, ChangeTracker.Section.REWARDS);
         }
 
-        ComUtility.attachAck(key);
+        ComUtility.attachAck(request);
     }
 
 
@@ -450,8 +449,6 @@ public class WinsomeWorker implements Runnable {
         Long post = req.getLong("post");
         // Utente che ha richiesto la visualizzazione
         String user = req.getString("user");
-        // Feed dell'utente
-        Vector<Post> feed = getFeed(user);
         // Mappa dei post
         ConcurrentHashMap<Long, Post> posts = server.getPosts();
 
@@ -460,11 +457,7 @@ public class WinsomeWorker implements Runnable {
             Post toShow = posts.get(post);
 
             // Se il post esiste e (il post è nel feed o nel blog dell'utente)
-            if (toShow != null && (feed.contains(toShow) || toShow.getAuthor().equals(user) || toShow.getRewinner().equals(user))) {
-                // Tengo traccia dei voti
-                int nNegative = 0;
-                int nPositive = 0;
-
+            if (toShow != null && (server.getTimelines().isInFeed(user, toShow) || toShow.getAuthor().equals(user) || toShow.getRewinner().equals(user))) {
                 // Ottengo il post originale nel caso l'id si riferisca a un suo rewin
                 post = getOriginalPost(post);
                 // Ottengo l'oggetto Post corrispondente
@@ -472,32 +465,23 @@ public class WinsomeWorker implements Runnable {
 
                 // Ottengo i commenti di quel post
                 Vector<Comment> comments = server.getComments().get(post);
-                // E i voti
-                Vector<Vote> votes = server.getVotes().get(post);
-
-                // Calcolo i voti positivi e quelli negativi
-                if (votes != null) {
-                    for (Vote v : votes) {
-                        if (v.isPositive())
-                            nPositive++;
-                        else
-                            nNegative++;
-                    }
-                }
+                // E il riepilogo dei voti
+                PostVotes votes = server.getVoteCounters().get(post);
+                int nPositive = votes == null ? 0 : votes.getUpvotes();
+                int nNegative = votes == null ? 0 : votes.getDownvotes();
 
                 // Invio la risposta con i dettagli desiderati dal client
                 reply.put("errCode", 0);
                 reply.put("errMsg", "OK");
                 reply.put("title", toShow.getTitle());
-                reply.put("comments", new Gson().toJson(comments));
                 reply.put("nUpvotes", nPositive);
                 reply.put("nDownvotes", nNegative);
                 reply.put("content", toShow.getContent());
 
-                key.attach(reply.toString());
+                ComUtility.attachReply(reply, comments, request);
             } else {
                 ComUtility.attachError(-1, "Errore di visualizzazione: non sei autorizzato a vedere questo post",
-                        key);
+                        request);
             }
         }
     }
@@ -518,39 +502,56 @@ public class WinsomeWorker implements Runnable {
 
         // Verifico che il post da eliminare esista
         if (toDelete == null) {
-            ComUtility.attachError(-1, "Il post da eliminare non esiste.", key);
+            ComUtility.attachError(-1, "Il post da eliminare non esiste.", request);
             return;
         }
         // E che l'utente sia autorizzato a eliminare il post (cioè che lo abbia creato)
         if (!toDelete.getAuthor().equals(user) && !toDelete.getRewinner().equals(user)) {
             ComUtility.attachError(-2, "Impossibile eliminare un post di cui non si e' l'autore.",
-                    key);
+                    request);
             return;
         }
 
         synchronized(server) {
-            // Rimuovo il post dall'insieme dei post
+            // Rimuovo il post dall'insieme dei post e dai feed
             server.getPosts().remove(post);
+            server.getTimelines().removePost(toDelete);
             // Se non sto rimuovendo un rewin, allora cancello anche commenti e voti, oltre a rimuovere il post dalla
             // lista dei post creati dall'utente
-            if (!toDelete.isRewin()) {
+            if (toDelete.isRewin()) {
+                // Rimuovo il rewin dagli indici dei rewin
+                Vector<Long> postRewins = server.getRewins().get(toDelete.getOriginalId());
+                if (postRewins != null)
+                    postRewins.remove(post);
+                unindexRewin(toDelete);
+            }
+            else {
                 server.getAuthorPost().get(user).remove(toDelete.getId());
                 // Rimuovo i voti
                 server.getVotes().remove(post);
+                server.getVoteCounters().remove(post);
+                server.getRewardDeltas().removePost(post);
                 // Rimuovo i commenti
                 server.getComments().remove(post);
                 // Rimuovi i rewin
                 if (server.getRewins().get(post) != null) {
                     for (Long p : server.getRewins().get(post)) {
-                        server.getPosts().remove(p);
+                        Post rewin = server.getPosts().remove(p);
+                        if (rewin != null) {
+                            server.getTimelines().removePost(rewin);
+                            unindexRewin(rewin);
+                        }
                     }
                 }
                 server.getRewins().remove(post);
             }
+            server.getMutationLog().logDelete(post);
+            server.getChangeTracker().mark(ChangeTracker.Section.POSTS, ChangeTracker.Section.VOTES,
+                    ChangeTracker.Section.COMMENTS, ChangeTracker.Section.REWINS, ChangeTracker.Section.REWARDS);
         }
 
         // Mando un ack al client
-        ComUtility.attachAck(key);
+        ComUtility.attachAck(request);
     }
 
 
@@ -564,38 +565,45 @@ public class WinsomeWorker implements Runnable {
         String user = req.getString("user");
         // Id del post da rewinnare
         Long post = req.getLong("post");
-        // Feed dell'utente
-        Vector<Post> feed = getFeed(user);
         ConcurrentHashMap<Long, Post> posts = server.getPosts();
         ConcurrentHashMap<Long, Vector<Long>> rewins = server.getRewins();
 
         synchronized (posts) {
             synchronized (rewins) {
                 // Verifico che il post da rewinnare sia visibile dall'utente
-                if (!feed.contains(server.getPosts().get(post))) {
-                    ComUtility.attachError(-1, "Il post da rewinnare non e' presente nel tuo feed.", key);
+                Post toRewin = server.getPosts().get(post);
+                if (toRewin == null || !server.getTimelines().isInFeed(user, toRewin)) {
+                    ComUtility.attachError(-1, "Il post da rewinnare non e' presente nel tuo feed.", request);
                     return;
                 }
                 // Verifico che l'utente non abbia già rewinnato il post
-                for (Long p : server.getRewins().keySet()) {
-                    for (Long p2 : server.getRewins().get(p)) {
-                        if (server.getPosts().get(p2).getRewinner().equals(user)) {
-                            ComUtility.attachError(-2, "Hai gia' rewinnato questo post.", key);
-                            return;
-                        }
-                    }
+                long originalId = toRewin.getOriginalId();
+                ConcurrentHashMap<Long, Long> ownRewins = server.getUserRewins()
+                        .computeIfAbsent(user, k -> new ConcurrentHashMap<>());
+                if (ownRewins.containsKey(originalId)) {
+                    ComUtility.attachError(-2, "Hai gia' rewinnato questo post.", request);
+                    return;
+                }
+                Post original = posts.get(originalId);
+                if (original == null) {
+                    ComUtility.attachError(-1, "Il post da rewinnare non e' presente nel tuo feed.", request);
+                    return;
                 }
 
                 // Creo un post di rewin, basato sul post originale (quindi se sto rewinnando un rewin, non faccio altro che
                 // rewinnare il post originale)
-                Post toAdd = new Post(server.getPosts().get(getOriginalPost(post)), user);
-                server.getRewins().computeIfAbsent(post, k -> new Vector<>());
-                server.getRewins().get(getOriginalPost(post)).add(toAdd.getId());
-                server.getPosts().put(toAdd.getId(), toAdd);
+                Post toAdd = new Post(server.getPostIds().nextId(), original, user);
+                rewins.computeIfAbsent(originalId, k -> new Vector<>()).add(toAdd.getId());
+                ownRewins.put(originalId, toAdd.getId());
+                posts.put(toAdd.getId(), toAdd);
+                server.getMutationLog().logPost(toAdd);
+                server.getChangeTracker().mark(ChangeTracker.Section.POSTS, ChangeTracker.Section.REWINS);
+                // Aggiunta del rewin ai feed dei follower di chi l'ha rewinnato e dell'autore
+                server.getTimelines().addPost(toAdd);
             }
         }
 
-        ComUtility.attachAck(key);
+        ComUtility.attachAck(request);
     }
 
 
@@ -610,14 +618,19 @@ public class WinsomeWorker implements Runnable {
         // Risposta da inviare
         JSONObject reply = new JSONObject();
 
-        // Invio della risposta, allegando la lista delle transazioni effettuate e l'ammontare totale nel
-        // portafoglio dell'utente
+        // Utente del portafoglio
+        User u = server.getUser(user);
+        // Pagina dello storico delle transazioni, dalle più recenti
+        Ledger.Page page = u.getTransactions(optCursor(req, "before"), pageLimit(req));
+
+        // Invio della risposta, allegando la pagina di transazioni e l'ammontare totale nel portafoglio dell'utente
         reply.put("errCode", 0);
         reply.put("errMsg", "OK");
-        reply.put("amount", server.getUser(user).getWallet());
-        reply.put("transactions", new Gson().toJson(server.getUsers().get(user).getTransactions()));
+        reply.put("amount", u.getWallet());
+        if (page.getNext() != null)
+            reply.put("next", page.getNext());
 
-        key.attach(reply.toString());
+        ComUtility.attachReply(reply, page.getTransactions(), request);
     }
 
 
@@ -658,31 +671,42 @@ public class WinsomeWorker implements Runnable {
         reply.put("errMsg", "OK");
         reply.put("btc", server.getUser(user).getWallet() * factor);
 
-        key.attach(reply.toString());
+        ComUtility.attachReply(reply, request);
     }
 
 
-    /** Funzione di utilità che, dato un utente, ritorna la lista di post che sono presenti nel suo feed. Ogni post
-     *  del feed è stato creato o rewinnato da un follower dell'utente specificato come parametro
+    /** Funzione di utilità che invia al client una pagina di post, insieme al cursore da usare per richiedere la
+     *  pagina successiva se ci sono altri post
      *
-     * @param user Utente di cui si desidera ottenere il feed
-     * @return Lista di post che rappresenta il feed dell'utente al momento della chiamata
+     * @param page Pagina da inviare
      */
-    private Vector<Post> getFeed(String user) {
-        Vector<Post> ret = new Vector<>();
-        Vector<String> following = server.getFollowing().get(user);
-
-        if (following != null) {
-            for (Post p : server.getPosts().values()) {
-                // Includo i rewin, ma non quelli che ha fatto l'utente che richiede il feed
-                if ((following.contains(p.getAuthor()) || following.contains(p.getRewinner())) && !p.getRewinner().equals(user)) {
-                    ret.add(p);
-                }
-            }
-        }
+    private void sendPage(FeedTimelines.Page page) {
+        JSONObject reply = new JSONObject();
+
+        if (page.getNext() != null)
+            reply.put("next", page.getNext());
+        ComUtility.attachReply(reply, page.getPosts(), request);
+    }
 
-        Collections.sort(ret);
-        return ret;
+    /** Funzione di utilità che restituisce il numero di post richiesti dal client, limitato alla dimensione massima
+     *  delle pagine configurata nel server
+     *
+     * @param req Richiesta del client
+     * @return Il numero di post da restituire
+     */
+    private int pageLimit(JSONObject req) {
+        int limit = req.optInt("limit", server.getMaxPageSize());
+        return Math.max(1, Math.min(limit, server.getMaxPageSize()));
+    }
+
+    /** Funzione di utilità che restituisce un cursore di paginazione, se presente nella richiesta
+     *
+     * @param req Richiesta del client
+     * @param name Nome del cursore
+     * @return L'id del post usato come cursore, null se non specificato
+     */
+    private Long optCursor(JSONObject req, String name) {
+        return req.has(name) ? req.getLong(name) : null;
     }
 
     /** Funzione di utilità che, dato l'id di un post che si presume essere un rewin, ritorna il corrispettivo id del
@@ -691,47 +715,21 @@ public class WinsomeWorker implements Runnable {
      * @param rewin Id del post che si suppone essere un rewin
      * @return L'id del post originale se rewin è un id di un post di rewin, rewin altrimenti
      */
-    private synchronized Long getOriginalPost(Long rewin) {
-        if (server.getPosts().get(rewin).isRewin()) {
-            Iterator<Long> postsIt = server.getRewins().keySet().iterator();
-
-            // Finché non ho trovato il post originale
-            while (postsIt.hasNext()) {
-                Long rewinned = postsIt.next();
-                // Controllo tra i rewin e restituisco la chiave che contiene la versione rewinnata del post
-                if (server.getRewins().get(rewinned).contains(rewin)) {
-                    return rewinned;
-                }
-            }
-        }
-        return rewin;
+    private Long getOriginalPost(Long rewin) {
+        Post p = server.getPosts().get(rewin);
+        return p == null ? rewin : p.getOriginalId();
     }
 
-    /** Funzione di utilità che ritorna un array contenente i tag in comune tra due utenti
+    /** Funzione di utilità che rimuove un rewin eliminato dall'indice dei rewin del suo autore
      *
-     * @param userA Primo utente
-     * @param userB Secondo utente
-     * @return Un array di stringhe contenente i tag in comune tra il primo e il secondo utente
+     * @param rewin Rewin eliminato
      */
-    private String[] getCommonTags(String userA, String userB) {
-        // Ottenimento dei rispettivi oggetti utente
-        User a = server.getUser(userA);
-        User b = server.getUser(userB);
-
-        // Ottenimento dei tag
-        String[] aTags = a.getTags();
-        List<String> bTags = Arrays.asList(b.getTags());
-        List<String> ret = new ArrayList<>();
-
-        // Aggiunta dei tag se sono in comune
-        for (String aTag : aTags)
-            if (bTags.contains(aTag))
-                ret.add(aTag);
-
-        return Arrays.copyOf(ret.toArray(), ret.size(), String[].class);
+    private void unindexRewin(Post rewin) {
+        ConcurrentHashMap<Long, Long> ownRewins = server.getUserRewins().get(rewin.getRewinner());
+        if (ownRewins != null)
+            ownRewins.remove(rewin.getOriginalId(), rewin.getId());
     }
 
-
     /** Routine del worker: data la richiesta che deve risolvere, a seconda del codice operazione invoca la funzione
      *  corretta per gestirla
      *
@@ -740,10 +738,24 @@ public class WinsomeWorker implements Runnable {
     public void run() {
         // Ottieni richiesta e client (attraverso la selection key)
         JSONObject currRequest = request.getJson();
+        // Lock del salvataggio, se preso dalla richiesta
+        Lock checkpoint = null;
 
         try {
+            // Lo username di chi ha inviato la richiesta viene sostituito con l'istanza condivisa dal dizionario degli
+            // utenti, così che post, voti e commenti creati dalla richiesta non ne contengano una copia
+            if (currRequest.has("user"))
+                currRequest.put("user", server.getUserIds().canonical(currRequest.getString("user")));
+            // Le operazioni che modificano lo stato del server non vengono eseguite durante un salvataggio
+            int op = currRequest.optInt("op", -1);
+            if (isMutation(op)) {
+                Lock lock = server.getCheckpointLock().readLock();
+                lock.lock();
+                checkpoint = lock;
+            }
+
             // Esegui le diverse operazioni
-            switch (currRequest.getInt("op")) {
+            switch (op) {
                 case OpCodes.LOGIN:
                     login(currRequest.getString("username"), currRequest.getString("password"));
                     break;
@@ -799,5 +811,31 @@ public class WinsomeWorker implements Runnable {
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            if (checkpoint != null)
+                checkpoint.unlock();
+            // Avvia l'eventuale richiesta successiva dello stesso client
+            server.completed(request);
+        }
+    }
+
+    /** Indica se un'operazione modifica lo stato persistente del server
+     *
+     * @param op Codice dell'operazione
+     * @return true se l'operazione modifica lo stato del server
+     */
+    private static boolean isMutation(int op) {
+        switch (op) {
+            case OpCodes.FOLLOW:
+            case OpCodes.UNFOLLOW:
+            case OpCodes.CREATE_POST:
+            case OpCodes.RATE_POST:
+            case OpCodes.COMMENT_POST:
+            case OpCodes.DELETE_POST:
+            case OpCodes.REWIN_POST:
+                return true;
+            default:
+                return false;
+        }
     }
 }
@@ -0,0 +1,92 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Codifica usata per trasmettere richieste e risposte tra client e server. Ogni connessione usa la codifica JSON
+ *  finché, al momento del login, il client non ne richiede una diversa.
+ *
+ *  Richieste e risposte vengono rappresentate in memoria come oggetti JSON, in modo che il server possa gestirle
+ *  allo stesso modo indipendentemente dalla codifica. L'unica eccezione sono le liste di elementi restituite da alcune
+ *  operazioni (post, commenti, transazioni, utenti), che vengono passate alla codifica come oggetti Java: sarà la
+ *  codifica stessa a decidere come trasmetterle.
+ *
+ */
+public interface WireCodec {
+    /** Codifica una richiesta in un messaggio pronto per l'invio
+     *
+     * @param request Richiesta da codificare
+     * @return Il buffer, in modalità lettura, contenente dimensione e contenuto del messaggio
+     */
+    ByteBuffer encodeRequest(JSONObject request);
+
+    /** Decodifica il contenuto di un messaggio contenente una richiesta
+     *
+     * @param frame Contenuto del messaggio
+     * @return La richiesta decodificata
+     * @throws IOException Se il messaggio non è una richiesta valida
+     */
+    JSONObject decodeRequest(byte[] frame) throws IOException;
+
+    /** Codifica una risposta in un messaggio pronto per l'invio
+     *
+     * @param op Codice dell'operazione a cui si sta rispondendo
+     * @param reply Campi della risposta
+     * @param items Lista di elementi restituita dall'operazione, null se l'operazione non ne restituisce
+     * @return Il buffer, in modalità lettura, contenente dimensione e contenuto del messaggio
+     */
+    ByteBuffer encodeReply(int op, JSONObject reply, Object items);
+
+    /** Decodifica il contenuto di un messaggio contenente una risposta
+     *
+     * @param frame Contenuto del messaggio
+     * @return La risposta decodificata
+     * @throws IOException Se il messaggio non è una risposta valida
+     */
+    ServerReply decodeReply(byte[] frame) throws IOException;
+
+    /** Nome con cui la codifica viene richiesta dal client al momento del login
+     *
+     * @return Il nome della codifica
+     */
+    String getName();
+
+    /** Restituisce la codifica corrispondente al nome passato come parametro
+     *
+     * @param name Nome della codifica
+     * @return La codifica richiesta, quella JSON se il nome non è riconosciuto
+     */
+    static WireCodec byName(String name) {
+        if (BinaryCodec.NAME.equals(name))
+            return BinaryCodec.INSTANCE;
+        return JsonCodec.INSTANCE;
+    }
+
+    /** Restituisce la codifica con cui è stato prodotto un messaggio: i messaggi JSON iniziano sempre con una
+     *  parentesi graffa, mentre quelli binari iniziano con il codice dell'operazione
+     *
+     * @param frame Contenuto del messaggio
+     * @return La codifica del messaggio
+     */
+    static WireCodec forFrame(byte[] frame) {
+        if (frame.length > 0 && frame[0] == '{')
+            return JsonCodec.INSTANCE;
+        return BinaryCodec.INSTANCE;
+    }
+
+    /** Restituisce il nome del campo che, nella risposta a una certa operazione, contiene la lista di elementi
+     *
+     * @param op Codice dell'operazione
+     * @return Il nome del campo
+     */
+    static String itemsField(int op) {
+        switch (op) {
+            case OpCodes.SHOW_POST:
+                return "comments";
+            case OpCodes.WALLET:
+                return "transactions";
+            default:
+                return "items";
+        }
+    }
+}